@@ -0,0 +1,53 @@
+package com.learnkafka.codec;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.IOException;
+
+/**
+ * Reads a LibraryEvent in whichever {@link LibraryEventWireFormat} the content-type header
+ * names. Records without the header are treated as JSON.
+ * <p>
+ * Each module's {@code LibraryEventDeserializer} binds it to its own LibraryEvent class.
+ */
+public abstract class AbstractLibraryEventDeserializer<T> implements Deserializer<T> {
+
+    private final ObjectReader objectReader;
+
+    protected AbstractLibraryEventDeserializer(Class<T> libraryEventClass) {
+        this.objectReader = new ObjectMapper()
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .readerFor(libraryEventClass);
+    }
+
+    protected abstract T decodeBinary(byte[] data);
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        return decode(LibraryEventWireFormat.JSON, data);
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, byte[] data) {
+        return decode(LibraryEventWireFormat.from(headers, LibraryEventWireFormat.JSON), data);
+    }
+
+    private T decode(LibraryEventWireFormat format, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            if (format == LibraryEventWireFormat.BINARY) {
+                return decodeBinary(data);
+            }
+            return objectReader.readValue(data);
+        } catch (IOException | RuntimeException e) {
+            throw new SerializationException("Error deserializing " + format + " LibraryEvent", e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.learnkafka.codec;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.util.Map;
+
+/**
+ * Writes a LibraryEvent in the configured {@link LibraryEventWireFormat} and stamps the
+ * content-type header. When the record already carries a content-type header (a republished
+ * record for example) that format wins, so a record keeps the codec it was produced with.
+ * <p>
+ * Each module's {@code LibraryEventSerializer} binds it to its own LibraryEvent class.
+ */
+public abstract class AbstractLibraryEventSerializer<T> implements Serializer<T> {
+
+    public static final String WIRE_FORMAT_CONFIG = "library.event.wire-format";
+
+    private final ObjectWriter objectWriter;
+
+    private LibraryEventWireFormat wireFormat = LibraryEventWireFormat.BINARY;
+
+    protected AbstractLibraryEventSerializer(Class<T> libraryEventClass) {
+        this.objectWriter = new ObjectMapper().writerFor(libraryEventClass);
+    }
+
+    protected abstract byte[] encodeBinary(T data);
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        Object configured = configs.get(WIRE_FORMAT_CONFIG);
+        if (configured != null) {
+            wireFormat = LibraryEventWireFormat.valueOf(configured.toString().trim().toUpperCase());
+        }
+    }
+
+    @Override
+    public byte[] serialize(String topic, T data) {
+        return encode(wireFormat, data);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, T data) {
+        LibraryEventWireFormat format = LibraryEventWireFormat.from(headers, wireFormat);
+        headers.remove(LibraryEventWireFormat.HEADER);
+        headers.add(format.header());
+        return encode(format, data);
+    }
+
+    private byte[] encode(LibraryEventWireFormat format, T data) {
+        if (data == null) {
+            return null;
+        }
+        if (format == LibraryEventWireFormat.BINARY) {
+            return encodeBinary(data);
+        }
+        try {
+            return objectWriter.writeValueAsBytes(data);
+        } catch (JsonProcessingException e) {
+            throw new SerializationException("Error serializing LibraryEvent to JSON", e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.learnkafka.codec;
+
+import org.apache.kafka.common.utils.ByteUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary layout of a LibraryEvent, version 1 :
+ *
+ * <pre>
+ * byte    version
+ * byte    presence flags (libraryEventId, libraryEventType, book, bookId, bookName, bookAuthor)
+ * varint  libraryEventId            (zig-zag)
+ * varint  libraryEventType ordinal  (NEW = 0, UPDATE = 1, new types are only appended)
+ * varint  bookId                    (zig-zag)
+ * varint  bookName length, then UTF-8 bytes
+ * varint  bookAuthor length, then UTF-8 bytes
+ * </pre>
+ *
+ * Absent fields are skipped entirely. The producer and the consumer both write and read through this class, each
+ * {@code LibraryEventBinaryCodec} only maps its own model classes, so any change needs a new version byte instead of
+ * an edit of this one.
+ */
+public final class LibraryEventBinaryLayout {
+
+    public static final byte VERSION = 1;
+
+    private static final int LIBRARY_EVENT_ID = 0x01;
+    private static final int LIBRARY_EVENT_TYPE = 0x02;
+    private static final int BOOK = 0x04;
+    private static final int BOOK_ID = 0x08;
+    private static final int BOOK_NAME = 0x10;
+    private static final int BOOK_AUTHOR = 0x20;
+
+    private LibraryEventBinaryLayout() {
+    }
+
+    /**
+     * Builds a library event of the calling module from the decoded fields, the book fields are null when it has no book.
+     */
+    @FunctionalInterface
+    public interface Target<E, T extends Enum<T>> {
+
+        E create(Integer libraryEventId, T libraryEventType, boolean hasBook, Integer bookId, String bookName, String bookAuthor);
+    }
+
+    // the book fields are ignored without a book
+    public static byte[] encode(Integer libraryEventId, Enum<?> libraryEventType, boolean hasBook,
+                                Integer bookId, String bookName, String bookAuthor) {
+
+        byte[] bookNameBytes = !hasBook || bookName == null ? null : bookName.getBytes(StandardCharsets.UTF_8);
+        byte[] bookAuthorBytes = !hasBook || bookAuthor == null ? null : bookAuthor.getBytes(StandardCharsets.UTF_8);
+
+        int flags = 0;
+        int size = 2;
+        if (libraryEventId != null) {
+            flags |= LIBRARY_EVENT_ID;
+            size += ByteUtils.sizeOfVarint(libraryEventId);
+        }
+        if (libraryEventType != null) {
+            flags |= LIBRARY_EVENT_TYPE;
+            size += ByteUtils.sizeOfUnsignedVarint(libraryEventType.ordinal());
+        }
+        if (hasBook) {
+            flags |= BOOK;
+            if (bookId != null) {
+                flags |= BOOK_ID;
+                size += ByteUtils.sizeOfVarint(bookId);
+            }
+            if (bookNameBytes != null) {
+                flags |= BOOK_NAME;
+                size += ByteUtils.sizeOfUnsignedVarint(bookNameBytes.length) + bookNameBytes.length;
+            }
+            if (bookAuthorBytes != null) {
+                flags |= BOOK_AUTHOR;
+                size += ByteUtils.sizeOfUnsignedVarint(bookAuthorBytes.length) + bookAuthorBytes.length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.put((byte) flags);
+        if ((flags & LIBRARY_EVENT_ID) != 0) {
+            ByteUtils.writeVarint(libraryEventId, buffer);
+        }
+        if ((flags & LIBRARY_EVENT_TYPE) != 0) {
+            ByteUtils.writeUnsignedVarint(libraryEventType.ordinal(), buffer);
+        }
+        if ((flags & BOOK_ID) != 0) {
+            ByteUtils.writeVarint(bookId, buffer);
+        }
+        if ((flags & BOOK_NAME) != 0) {
+            writeBytes(bookNameBytes, buffer);
+        }
+        if ((flags & BOOK_AUTHOR) != 0) {
+            writeBytes(bookAuthorBytes, buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param types the values of the module's LibraryEventType, indexed by the ordinal on the wire
+     */
+    public static <E, T extends Enum<T>> E decode(byte[] data, T[] types, Target<E, T> target) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported library event binary version : " + version);
+        }
+        int flags = buffer.get();
+
+        Integer libraryEventId = null;
+        T libraryEventType = null;
+        if ((flags & LIBRARY_EVENT_ID) != 0) {
+            libraryEventId = ByteUtils.readVarint(buffer);
+        }
+        if ((flags & LIBRARY_EVENT_TYPE) != 0) {
+            int ordinal = ByteUtils.readUnsignedVarint(buffer);
+            if (ordinal >= types.length) {
+                throw new IllegalArgumentException("Unknown library event type ordinal : " + ordinal);
+            }
+            libraryEventType = types[ordinal];
+        }
+        Integer bookId = null;
+        String bookName = null;
+        String bookAuthor = null;
+        if ((flags & BOOK_ID) != 0) {
+            bookId = ByteUtils.readVarint(buffer);
+        }
+        if ((flags & BOOK_NAME) != 0) {
+            bookName = readString(buffer);
+        }
+        if ((flags & BOOK_AUTHOR) != 0) {
+            bookAuthor = readString(buffer);
+        }
+        return target.create(libraryEventId, libraryEventType, (flags & BOOK) != 0, bookId, bookName, bookAuthor);
+    }
+
+    private static void writeBytes(byte[] bytes, ByteBuffer buffer) {
+        ByteUtils.writeUnsignedVarint(bytes.length, buffer);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = ByteUtils.readUnsignedVarint(buffer);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,58 @@
+package com.learnkafka.codec;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Headers that follow a library event from the producer to the database : the {@value #INGEST_TIMESTAMP} the
+ * producer built the record at, in microseconds since the epoch as 8 big endian bytes, and a {@value #CORRELATION_ID}.
+ * Both are copied to the retry and dead letter topics with the rest of the headers.
+ */
+public final class LibraryEventTraceHeaders {
+
+    public static final String INGEST_TIMESTAMP = "ingest-timestamp-us";
+
+    public static final String CORRELATION_ID = "correlation-id";
+
+    private LibraryEventTraceHeaders() {
+    }
+
+    public static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    public static Header ingestTimestamp(long epochMicros) {
+        return new RecordHeader(INGEST_TIMESTAMP, ByteBuffer.allocate(Long.BYTES).putLong(epochMicros).array());
+    }
+
+    // random rather than UUID.randomUUID, which goes through the shared SecureRandom on every record
+    public static Header newCorrelationId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String correlationId = new UUID(random.nextLong(), random.nextLong()).toString();
+        return new RecordHeader(CORRELATION_ID, correlationId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The ingest timestamp in microseconds since the epoch, -1 when the record has none.
+     */
+    public static long ingestTimestamp(Headers headers) {
+        Header header = headers == null ? null : headers.lastHeader(INGEST_TIMESTAMP);
+        if (header == null || header.value() == null || header.value().length != Long.BYTES) {
+            return -1;
+        }
+        return ByteBuffer.wrap(header.value()).getLong();
+    }
+
+    public static String correlationId(Headers headers) {
+        Header header = headers == null ? null : headers.lastHeader(CORRELATION_ID);
+        return header == null || header.value() == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,50 @@
+package com.learnkafka.codec;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire formats a LibraryEvent record value can be written in. The format travels in the
+ * {@value #HEADER} record header so JSON and binary records can share the same topic.
+ * Records without the header are legacy JSON.
+ */
+public enum LibraryEventWireFormat {
+
+    JSON("application/json"),
+    BINARY("application/vnd.library-event.v1+binary");
+
+    public static final String HEADER = "content-type";
+
+    private final String contentType;
+    private final Header header;
+
+    LibraryEventWireFormat(String contentType) {
+        this.contentType = contentType;
+        this.header = new RecordHeader(HEADER, contentType.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    public Header header() {
+        return header;
+    }
+
+    public static LibraryEventWireFormat from(Headers headers, LibraryEventWireFormat defaultFormat) {
+        Header header = headers == null ? null : headers.lastHeader(HEADER);
+        if (header == null || header.value() == null) {
+            return defaultFormat;
+        }
+        String contentType = new String(header.value(), StandardCharsets.UTF_8);
+        for (LibraryEventWireFormat format : values()) {
+            if (format.contentType.equals(contentType)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported library event content type : " + contentType);
+    }
+}
@@ -0,0 +1,27 @@
+package com.learnkafka.diagnostics;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * One record seen by a stage. The detail is kept by reference and only rendered when the recorder is dumped.
+ */
+@Getter
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FlightRecord {
+
+    private final Instant timestamp;
+    private final Integer key;
+    private final Integer partition;
+    private final Long offset;
+    private final Object detail;
+    private final String error;
+
+    public boolean isFailed() {
+        return error != null;
+    }
+}
@@ -0,0 +1,116 @@
+package com.learnkafka.diagnostics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the most recent records of every stage in a bounded ring, instead of logging each of them. Writers claim a
+ * slot with one atomic increment and never wait on each other or on a reader, older records are overwritten.
+ * <p>
+ * The rings are read through the {@code flightrecorder} actuator endpoint, and a summary line per stage is logged
+ * on a fixed interval.
+ */
+@Component
+@Slf4j
+public class FlightRecorder {
+
+    private final int capacity;
+
+    private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    public FlightRecorder(@Value("${library-events.flight-recorder.capacity:256}") int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void record(String stage, Integer key, Integer partition, Long offset, Object detail) {
+        ring(stage).add(new FlightRecord(Instant.now(), key, partition, offset, detail, null));
+    }
+
+    public void recordFailure(String stage, Integer key, Integer partition, Long offset, Object detail, Throwable error) {
+        ring(stage).add(new FlightRecord(Instant.now(), key, partition, offset, detail, String.valueOf(error.getMessage())));
+    }
+
+    /**
+     * Recent records of every stage, oldest first.
+     */
+    public Map<String, List<FlightRecord>> dump() {
+        Map<String, List<FlightRecord>> records = new TreeMap<>();
+        rings.forEach((stage, ring) -> records.put(stage, ring.snapshot()));
+        return records;
+    }
+
+    public List<FlightRecord> dump(String stage) {
+        Ring ring = rings.get(stage);
+        return ring == null ? Collections.emptyList() : ring.snapshot();
+    }
+
+    @Scheduled(fixedDelayString = "${library-events.flight-recorder.summary-interval-ms:10000}")
+    public void logSummary() {
+        rings.forEach((stage, ring) -> {
+            long records = ring.records.sumThenReset();
+            long failures = ring.failures.sumThenReset();
+            if (failures > 0) {
+                log.warn("{} : {} records, {} failed since the last summary", stage, records, failures);
+            } else if (records > 0) {
+                log.info("{} : {} records since the last summary", stage, records);
+            }
+        });
+    }
+
+    private Ring ring(String stage) {
+        Ring ring = rings.get(stage);
+        return ring != null ? ring : rings.computeIfAbsent(stage, s -> new Ring(capacity));
+    }
+
+    private static final class Ring {
+
+        private final AtomicReferenceArray<FlightRecord> slots;
+
+        private final AtomicLong sequence = new AtomicLong();
+
+        private final LongAdder records = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private Ring(int capacity) {
+            this.slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        private void add(FlightRecord record) {
+            long slot = sequence.getAndIncrement();
+            slots.lazySet((int) (slot % slots.length()), record);
+            records.increment();
+            if (record.isFailed()) {
+                failures.increment();
+            }
+        }
+
+        // a writer racing with the snapshot may leave one slot newer than the rest, good enough for debugging
+        private List<FlightRecord> snapshot() {
+            long end = sequence.get();
+            long start = Math.max(0, end - slots.length());
+            List<FlightRecord> snapshot = new ArrayList<>((int) (end - start));
+            for (long slot = start; slot < end; slot++) {
+                FlightRecord record = slots.get((int) (slot % slots.length()));
+                if (record != null) {
+                    snapshot.add(record);
+                }
+            }
+            return snapshot;
+        }
+    }
+}
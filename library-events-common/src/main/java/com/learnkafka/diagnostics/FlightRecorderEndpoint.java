@@ -0,0 +1,33 @@
+package com.learnkafka.diagnostics;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code /actuator/flightrecorder} dumps every stage, {@code /actuator/flightrecorder/{stage}} a single one.
+ */
+@Component
+@Endpoint(id = "flightrecorder")
+public class FlightRecorderEndpoint {
+
+    private final FlightRecorder flightRecorder;
+
+    public FlightRecorderEndpoint(FlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    @ReadOperation
+    public Map<String, List<FlightRecord>> records() {
+        return flightRecorder.dump();
+    }
+
+    @ReadOperation
+    public List<FlightRecord> records(@Selector String stage) {
+        return flightRecorder.dump(stage);
+    }
+}
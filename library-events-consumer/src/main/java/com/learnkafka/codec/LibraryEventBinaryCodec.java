@@ -0,0 +1,40 @@
+package com.learnkafka.codec;
+
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.entity.LibraryEventType;
+
+/**
+ * The {@link LibraryEventBinaryLayout} over the entity classes of the consumer.
+ */
+public final class LibraryEventBinaryCodec {
+
+    private static final LibraryEventType[] TYPES = LibraryEventType.values();
+
+    private LibraryEventBinaryCodec() {
+    }
+
+    public static byte[] encode(LibraryEvent libraryEvent) {
+        Book book = libraryEvent.getBook();
+        return book == null
+                ? LibraryEventBinaryLayout.encode(libraryEvent.getLibraryEventId(), libraryEvent.getLibraryEventType(), false, null, null, null)
+                : LibraryEventBinaryLayout.encode(libraryEvent.getLibraryEventId(), libraryEvent.getLibraryEventType(), true,
+                        book.getBookId(), book.getBookName(), book.getBookAuthor());
+    }
+
+    public static LibraryEvent decode(byte[] data) {
+        return LibraryEventBinaryLayout.decode(data, TYPES, (libraryEventId, libraryEventType, hasBook, bookId, bookName, bookAuthor) -> {
+            LibraryEvent libraryEvent = new LibraryEvent();
+            libraryEvent.setLibraryEventId(libraryEventId);
+            libraryEvent.setLibraryEventType(libraryEventType);
+            if (hasBook) {
+                Book book = new Book();
+                book.setBookId(bookId);
+                book.setBookName(bookName);
+                book.setBookAuthor(bookAuthor);
+                libraryEvent.setBook(book);
+            }
+            return libraryEvent;
+        });
+    }
+}
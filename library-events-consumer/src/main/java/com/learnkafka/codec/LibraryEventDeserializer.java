@@ -0,0 +1,18 @@
+package com.learnkafka.codec;
+
+import com.learnkafka.entity.LibraryEvent;
+
+/**
+ * The {@link AbstractLibraryEventDeserializer} of the consumer's entity LibraryEvent.
+ */
+public class LibraryEventDeserializer extends AbstractLibraryEventDeserializer<LibraryEvent> {
+
+    public LibraryEventDeserializer() {
+        super(LibraryEvent.class);
+    }
+
+    @Override
+    protected LibraryEvent decodeBinary(byte[] data) {
+        return LibraryEventBinaryCodec.decode(data);
+    }
+}
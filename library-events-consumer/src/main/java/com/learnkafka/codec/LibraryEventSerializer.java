@@ -0,0 +1,18 @@
+package com.learnkafka.codec;
+
+import com.learnkafka.entity.LibraryEvent;
+
+/**
+ * The {@link AbstractLibraryEventSerializer} of the consumer's entity LibraryEvent.
+ */
+public class LibraryEventSerializer extends AbstractLibraryEventSerializer<LibraryEvent> {
+
+    public LibraryEventSerializer() {
+        super(LibraryEvent.class);
+    }
+
+    @Override
+    protected byte[] encodeBinary(LibraryEvent data) {
+        return LibraryEventBinaryCodec.encode(data);
+    }
+}
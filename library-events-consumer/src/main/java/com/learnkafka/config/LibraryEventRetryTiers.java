@@ -0,0 +1,76 @@
+package com.learnkafka.config;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The delay tiers of {@code topics.retry-tiers}, one topic each, {@code library-events.retry-1s} for a {@code 1s}
+ * tier. A record failing with a recoverable exception goes to the first tier, to the next one each time it fails
+ * again there, and to the DLT after the last. It carries a {@value #NOT_BEFORE} header, the epoch millis it was
+ * republished at plus the delay of its tier as 8 big endian bytes, before which the retry listener leaves it alone.
+ */
+@Component
+public class LibraryEventRetryTiers {
+
+    public static final String NOT_BEFORE = "retry-not-before-ms";
+
+    private static final String TOPIC_PREFIX = "library-events.retry-";
+
+    private final List<String> topics;
+
+    private final List<Duration> delays;
+
+    public LibraryEventRetryTiers(@Value("${topics.retry-tiers:1s,10s,1m}") String[] tiers) {
+        this.topics = Arrays.stream(tiers).map(tier -> TOPIC_PREFIX + tier.trim()).collect(Collectors.toList());
+        this.delays = Arrays.stream(tiers).map(tier -> DurationStyle.detectAndParse(tier.trim())).collect(Collectors.toList());
+    }
+
+    public String[] getTopics() {
+        return topics.toArray(new String[0]);
+    }
+
+    public boolean isTier(String topic) {
+        return topics.contains(topic);
+    }
+
+    /**
+     * How long a record republished to the tier topic waits before it is due.
+     */
+    public Duration delay(String tierTopic) {
+        return delays.get(topics.indexOf(tierTopic));
+    }
+
+    /**
+     * The tier topic a record that failed on {@code topic} goes to, null when it was in the last tier.
+     */
+    public String next(String topic) {
+        int tier = topics.indexOf(topic) + 1;
+        return tier < topics.size() ? topics.get(tier) : null;
+    }
+
+    public Header notBefore(String tierTopic, long nowMillis) {
+        long notBefore = nowMillis + delay(tierTopic).toMillis();
+        return new RecordHeader(NOT_BEFORE, ByteBuffer.allocate(Long.BYTES).putLong(notBefore).array());
+    }
+
+    /**
+     * The epoch millis the record is due at, 0 when it has no header.
+     */
+    public static long notBefore(Headers headers) {
+        Header header = headers == null ? null : headers.lastHeader(NOT_BEFORE);
+        if (header == null || header.value() == null || header.value().length != Long.BYTES) {
+            return 0;
+        }
+        return ByteBuffer.wrap(header.value()).getLong();
+    }
+}
@@ -1,23 +1,42 @@
 package com.learnkafka.config;
 
+import com.learnkafka.codec.LibraryEventSerializer;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.jpa.LibraryEventCacheEviction;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.kafka.KafkaException;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaOperations;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ContainerProperties;
 import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
 import org.springframework.kafka.listener.DefaultErrorHandler;
-import org.springframework.kafka.support.ExponentialBackOffWithMaxRetries;
+import org.springframework.kafka.listener.SeekUtils;
 import org.springframework.util.backoff.FixedBackOff;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 @Configuration
 @EnableKafka
@@ -25,54 +44,119 @@ import java.util.List;
 public class LibraryEventsConsumerConfig {
 
     @Autowired
-    KafkaTemplate kafkaTemplate;
+    KafkaTemplate<Integer, ?> kafkaTemplate;
 
-    @Value("${topics.retry}")
-    private String retryTopic;
+    @Autowired
+    LibraryEventCacheEviction cacheEviction;
+
+    @Autowired
+    LibraryEventRetryTiers retryTiers;
 
     @Value("${topics.dlt}")
     private String deadLetterTopic;
 
+    // threads beyond the partition count of library-events stay idle
+    @Value("${library-events.consumer.concurrency:3}")
+    private int concurrency;
+
+    @Value("${library-events.consumer.batch.max-poll-records:500}")
+    private int batchMaxPollRecords;
+
+    @Value("${library-events.consumer.parallel.max-poll-records:500}")
+    private int parallelMaxPollRecords;
+
+    // how late a retry tier partition may resume after its record is due
+    @Value("${library-events.retry.poll-timeout-ms:500}")
+    private long retryPollTimeoutMs;
+
+    // the recoverer's templates with serializer overrides, each owns a copy of the producer factory
+    private final List<KafkaTemplate<Integer, ?>> overrideTemplates = new ArrayList<>();
+
+    @Bean
     public DeadLetterPublishingRecoverer publishingRecoverer(){
 
-        DeadLetterPublishingRecoverer recoverer = new DeadLetterPublishingRecoverer(kafkaTemplate,
+        DeadLetterPublishingRecoverer recoverer = new DeadLetterPublishingRecoverer(recovererTemplates(),
                 (r,e) -> {
-                    if (e.getCause() instanceof RecoverableDataAccessException) {
+                    String retryTopic = retryTopic(r, e);
+                    if (retryTopic != null) {
                         return new TopicPartition(retryTopic, r.partition());
                     } else {
                         return new TopicPartition(deadLetterTopic, r.partition());
                     }
 
                 });
+        recoverer.setHeadersFunction((r, e) -> {
+            String retryTopic = retryTopic(r, e);
+            return retryTopic == null ? new RecordHeaders()
+                    : new RecordHeaders(new Header[]{retryTiers.notBefore(retryTopic, System.currentTimeMillis())});
+        });
 
         return recoverer;
     }
 
-    public DefaultErrorHandler errorHandler() {
+    // the next delay tier for a recoverable failure, null when the record goes to the DLT. The whole cause chain is
+    // looked at : a batch failure arrives as ListenerExecutionFailedException -> BatchListenerFailedException -> cause
+    private String retryTopic(ConsumerRecord<?, ?> r, Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RecoverableDataAccessException) {
+                return retryTiers.next(r.topic());
+            }
+        }
+        return null;
+    }
 
-        var exceptionsToIgnoreList = List.of(IllegalArgumentException.class);
+    /*
+     * The template is picked by the type of the failed value : decoded LibraryEvents are written back with
+     * LibraryEventSerializer (which keeps the content-type of the original record), and values that could not be
+     * deserialized at all are forwarded as the raw bytes.
+     */
+    private Map<Class<?>, KafkaOperations<?, ?>> recovererTemplates() {
+
+        KafkaTemplate<Integer, ?> libraryEventTemplate = new KafkaTemplate<>(kafkaTemplate.getProducerFactory(),
+                Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, LibraryEventSerializer.class,
+                        LibraryEventSerializer.WIRE_FORMAT_CONFIG, "json"));
+        KafkaTemplate<Integer, ?> bytesTemplate = new KafkaTemplate<>(kafkaTemplate.getProducerFactory(),
+                Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class));
+        overrideTemplates.add(libraryEventTemplate);
+        overrideTemplates.add(bytesTemplate);
+
+        Map<Class<?>, KafkaOperations<?, ?>> templates = new LinkedHashMap<>();
+        templates.put(LibraryEvent.class, libraryEventTemplate);
+        templates.put(byte[].class, bytesTemplate);
+        templates.put(Object.class, kafkaTemplate);
+        return templates;
+    }
 
-        var exceptionsToRetryList = List.of(RecoverableDataAccessException.class);
+    // the context only closes the auto-configured producer factory
+    @PreDestroy
+    void destroyOverrideTemplates() throws Exception {
+        for (KafkaTemplate<Integer, ?> template : overrideTemplates) {
+            if (template.getProducerFactory() instanceof DisposableBean) {
+                ((DisposableBean) template.getProducerFactory()).destroy();
+            }
+        }
+    }
 
-        var fixedBackOff = new FixedBackOff(1000L, 2);
-        var expBackOff = new ExponentialBackOffWithMaxRetries(2);
-        expBackOff.setInitialInterval(1000L);
-        expBackOff.setMultiplier(2.0);
-        expBackOff.setMaxInterval(10000L);
+    /*
+     * No retries in place, a failed record is handed to the recoverer at once and the partition moves on : recoverable
+     * failures wait in the retry tiers, everything else goes to the DLT. The retry listener throws a
+     * KafkaBackoffException for a record that is not due yet, the recoverer passes it back so the record is sought
+     * again instead of being published.
+     */
+    public DefaultErrorHandler errorHandler() {
 
-        var errorHandler = new DefaultErrorHandler(
-                publishingRecoverer(),
-                expBackOff
+        return new DefaultErrorHandler(
+                (record, exception) -> {
+                    if (SeekUtils.isBackoffException(exception)) {
+                        throw (RuntimeException) exception;
+                    }
+                    String retryTopic = retryTopic(record, exception);
+                    log.info("Failed Record {}-{}@{} goes to {}, Exception : {}", record.topic(), record.partition(),
+                            record.offset(), retryTopic != null ? retryTopic : deadLetterTopic, exception.getMessage());
+                    publishingRecoverer().accept(record, exception);
+                },
+                new FixedBackOff(0L, 0L)
         );
-
-       // exceptionsToIgnoreList.forEach(errorHandler::addNotRetryableExceptions);
-        exceptionsToRetryList.forEach(errorHandler::addRetryableExceptions);
-
-        errorHandler.setRetryListeners((record, ex, deliveryAttempt) -> {
-            log.info("Failed Record in Retry Listener, Exception : {}, deliveryAttempt : {},",
-                    ex.getMessage(), deliveryAttempt);
-        });
-        return errorHandler;
     }
 
     @Bean
@@ -81,11 +165,77 @@ public class LibraryEventsConsumerConfig {
                 ConsumerFactory<Object, Object> kafkaConsumerFactory) {
             ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
             configurer.configure(factory, kafkaConsumerFactory);
-            factory.setConcurrency(3);
+            factory.setConcurrency(concurrency);
             factory.setCommonErrorHandler(errorHandler());
+            factory.getContainerProperties().setConsumerRebalanceListener(cacheEviction);
 
             return factory;
         }
-    }
 
+    /*
+     * Same consumer and error handler settings, a whole poll per listener call. The listener reports a failed record
+     * with a BatchListenerFailedException : the offsets before it are committed, the record itself is recovered like
+     * a single record, and the rest of the batch is polled again.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "library-events.consumer.batch.enabled", havingValue = "true")
+    ConcurrentKafkaListenerContainerFactory<?,?> batchKafkaListenerContainerFactory(
+            ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+            ConsumerFactory<Object, Object> kafkaConsumerFactory) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, kafkaConsumerFactory);
+        factory.setConcurrency(concurrency);
+        factory.setBatchListener(true);
+        factory.setCommonErrorHandler(errorHandler());
+        factory.getContainerProperties().setConsumerRebalanceListener(cacheEviction);
+
+        Properties consumerProperties = new Properties();
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(batchMaxPollRecords));
+        factory.getContainerProperties().setKafkaConsumerProperties(consumerProperties);
+        return factory;
+    }
+    
+    /*
+     * The retry tiers : pausing a partition only takes effect on the next poll, a short poll timeout keeps the
+     * records close to their due time.
+     */
+    @Bean
+    ConcurrentKafkaListenerContainerFactory<?,?> retryKafkaListenerContainerFactory(
+            ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+            ConsumerFactory<Object, Object> kafkaConsumerFactory) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, kafkaConsumerFactory);
+        factory.setConcurrency(concurrency);
+        DefaultErrorHandler errorHandler = errorHandler();
+        // a record not due yet is sought back to on every back off, failures are still logged by the error handler
+        errorHandler.setLogLevel(KafkaException.Level.DEBUG);
+        factory.setCommonErrorHandler(errorHandler);
+        factory.getContainerProperties().setPollTimeout(retryPollTimeoutMs);
+        factory.getContainerProperties().setConsumerRebalanceListener(cacheEviction);
+        return factory;
+    }
 
+    /*
+     * A poll per listener call, processed concurrently per libraryEventId by KeyOrderedDispatcher. The listener commits
+     * the offsets itself, up to the first record of each partition that is not done, so the container does not.
+     * Concurrency stays the number of consumers, the lanes are the parallelism within them.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "library-events.consumer.parallel.enabled", havingValue = "true")
+    ConcurrentKafkaListenerContainerFactory<?,?> parallelKafkaListenerContainerFactory(
+            ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+            ConsumerFactory<Object, Object> kafkaConsumerFactory) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, kafkaConsumerFactory);
+        factory.setConcurrency(concurrency);
+        factory.setBatchListener(true);
+        factory.setCommonErrorHandler(errorHandler());
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        factory.getContainerProperties().setConsumerRebalanceListener(cacheEviction);
+
+        Properties consumerProperties = new Properties();
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(parallelMaxPollRecords));
+        factory.getContainerProperties().setKafkaConsumerProperties(consumerProperties);
+        return factory;
+    }
+}
@@ -0,0 +1,221 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.service.LibraryEventService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.log.LogAccessor;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.listener.ListenerUtils;
+import org.springframework.kafka.support.serializer.DeserializationException;
+import org.springframework.kafka.support.serializer.SerializationUtils;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Processes the records of a poll on a fixed set of lanes, one thread each. A record goes to the lane of its
+ * libraryEventId, so the events of one library event stay in order while different ones run concurrently, whatever
+ * the partition count. NEW events carry no id yet and are spread over the lanes.
+ * <p>
+ * Runs on the consumer thread, which waits for the lanes and meanwhile commits every partition up to its first
+ * record that is not done, the committed offset never passes a record still in a lane. A failed record is handed to
+ * the recoverer (retry tiers / DLT) like the error handler would. Only a record the recoverer could not take fails
+ * the batch, from that record on.
+ * <p>
+ * Once a record failed, the records of its partition after it that no lane started yet are skipped, a later event of
+ * the same library event never overtakes it. The error handler seeks back to the failed record, the records after it
+ * that a lane already finished are remembered and not processed again when they come back.
+ */
+@Component
+@ConditionalOnProperty(name = "library-events.consumer.parallel.enabled", havingValue = "true")
+@Slf4j
+public class KeyOrderedDispatcher implements DisposableBean {
+
+    private static final LogAccessor LOG_ACCESSOR = new LogAccessor(KeyOrderedDispatcher.class);
+
+    private static final int NOT_DONE = 0;
+    private static final int DONE = 1;
+    private static final int FAILED = 2;
+    private static final int SKIPPED = 3;
+
+    private final LibraryEventService libraryEventService;
+
+    private final DeadLetterPublishingRecoverer recoverer;
+
+    private final ExecutorService[] lanes;
+
+    private final long commitIntervalMs;
+
+    // per partition, the offsets done behind a failed record, a partition is only dispatched by its consumer's thread
+    private final Map<TopicPartition, Set<Long>> doneAhead = new ConcurrentHashMap<>();
+
+    public KeyOrderedDispatcher(LibraryEventService libraryEventService, DeadLetterPublishingRecoverer publishingRecoverer,
+                                @Value("${library-events.consumer.parallel.workers:8}") int workers,
+                                @Value("${library-events.consumer.parallel.commit-interval-ms:1000}") long commitIntervalMs) {
+        this.libraryEventService = libraryEventService;
+        this.recoverer = publishingRecoverer;
+        this.commitIntervalMs = commitIntervalMs;
+        this.lanes = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            String name = "library-event-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+        }
+    }
+
+    public void dispatch(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords, Consumer<?, ?> consumer) throws InterruptedException {
+
+        AtomicIntegerArray states = new AtomicIntegerArray(consumerRecords.size());
+        CountDownLatch finished = new CountDownLatch(consumerRecords.size());
+        Map<TopicPartition, Long> failedAt = new ConcurrentHashMap<>();
+        Set<TopicPartition> seen = new HashSet<>();
+        for (int i = 0; i < consumerRecords.size(); i++) {
+            int index = i;
+            ConsumerRecord<Integer, LibraryEvent> consumerRecord = consumerRecords.get(i);
+            TopicPartition partition = new TopicPartition(consumerRecord.topic(), consumerRecord.partition());
+            Set<Long> done = doneAhead.get(partition);
+            if (done != null && seen.add(partition)) {
+                // redelivered from here on, what is before was committed
+                done.removeIf(offset -> offset < consumerRecord.offset());
+            }
+            if (done != null && done.remove(consumerRecord.offset())) {
+                states.set(index, DONE);
+                finished.countDown();
+                continue;
+            }
+            lanes[laneOf(consumerRecord)].execute(() -> {
+                Long failed = failedAt.get(partition);
+                if (failed != null && failed < consumerRecord.offset()) {
+                    states.set(index, SKIPPED);
+                } else if (process(consumerRecord)) {
+                    states.set(index, DONE);
+                } else {
+                    states.set(index, FAILED);
+                    failedAt.merge(partition, consumerRecord.offset(), Math::min);
+                }
+                finished.countDown();
+            });
+        }
+
+        Map<TopicPartition, Long> committed = new HashMap<>();
+        while (!finished.await(commitIntervalMs, TimeUnit.MILLISECONDS)) {
+            commit(consumerRecords, states, committed, consumer);
+        }
+        commit(consumerRecords, states, committed, consumer);
+
+        if (failedAt.isEmpty()) {
+            return;
+        }
+        int firstFailed = -1;
+        for (int i = 0; i < consumerRecords.size(); i++) {
+            ConsumerRecord<Integer, LibraryEvent> consumerRecord = consumerRecords.get(i);
+            TopicPartition partition = new TopicPartition(consumerRecord.topic(), consumerRecord.partition());
+            if (firstFailed < 0 && states.get(i) == FAILED) {
+                firstFailed = i;
+            } else if (firstFailed >= 0 && states.get(i) == DONE) {
+                doneAhead.computeIfAbsent(partition, k -> ConcurrentHashMap.newKeySet()).add(consumerRecord.offset());
+            }
+        }
+        throw new BatchListenerFailedException("Library event could not be processed nor recovered", firstFailed);
+    }
+
+    private int laneOf(ConsumerRecord<Integer, LibraryEvent> consumerRecord) {
+        LibraryEvent libraryEvent = consumerRecord.value();
+        Integer libraryEventId = libraryEvent != null ? libraryEvent.getLibraryEventId() : consumerRecord.key();
+        long hash = libraryEventId != null ? libraryEventId : consumerRecord.offset();
+        return (int) Math.floorMod(hash, (long) lanes.length);
+    }
+
+    // the error handler's recovery, in the lane : the records after it with the same key wait for it
+    private boolean process(ConsumerRecord<Integer, LibraryEvent> consumerRecord) {
+
+        RuntimeException failure;
+        try {
+            if (consumerRecord.value() == null) {
+                failure = deserializationFailure(consumerRecord);
+            } else {
+                libraryEventService.processLibraryEvent(consumerRecord);
+                return true;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        log.info("Failed Record in lane {}, Exception : {}", Thread.currentThread().getName(), failure.getMessage());
+        return recover(consumerRecord, failure);
+    }
+
+    private boolean recover(ConsumerRecord<Integer, LibraryEvent> consumerRecord, RuntimeException failure) {
+        try {
+            recoverer.accept(consumerRecord, failure);
+            return true;
+        } catch (RuntimeException e) {
+            log.error("Could not recover the record at {}-{}@{} : {}", consumerRecord.topic(), consumerRecord.partition(),
+                    consumerRecord.offset(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static RuntimeException deserializationFailure(ConsumerRecord<Integer, LibraryEvent> consumerRecord) {
+        DeserializationException exception = ListenerUtils.getExceptionFromHeader(consumerRecord,
+                SerializationUtils.VALUE_DESERIALIZER_EXCEPTION_HEADER, LOG_ACCESSOR);
+        return exception != null ? exception : new IllegalArgumentException("Library Event could not be deserialized");
+    }
+
+    // per partition, the offset of the first record that is not done, or the one after the last
+    private static void commit(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords, AtomicIntegerArray states,
+                               Map<TopicPartition, Long> committed, Consumer<?, ?> consumer) {
+
+        Map<TopicPartition, Long> positions = new LinkedHashMap<>();
+        List<TopicPartition> blocked = new ArrayList<>();
+        for (int i = 0; i < consumerRecords.size(); i++) {
+            ConsumerRecord<Integer, LibraryEvent> consumerRecord = consumerRecords.get(i);
+            TopicPartition partition = new TopicPartition(consumerRecord.topic(), consumerRecord.partition());
+            if (blocked.contains(partition)) {
+                continue;
+            }
+            if (states.get(i) == DONE) {
+                positions.put(partition, consumerRecord.offset() + 1);
+            } else {
+                blocked.add(partition);
+            }
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        positions.forEach((partition, position) -> {
+            if (!position.equals(committed.get(partition))) {
+                offsets.put(partition, new OffsetAndMetadata(position));
+            }
+        });
+        if (!offsets.isEmpty()) {
+            consumer.commitSync(offsets);
+            offsets.forEach((partition, offset) -> committed.put(partition, offset.offset()));
+            log.debug("Committed {}", offsets);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
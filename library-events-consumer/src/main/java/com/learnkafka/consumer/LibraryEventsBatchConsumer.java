@@ -0,0 +1,47 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.diagnostics.LibraryEventLatencyMetrics;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.service.LibraryEventService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Takes the place of {@link LibraryEventsConsumer} with {@code library-events.consumer.batch.enabled=true}, same
+ * topic and group, a whole poll per call.
+ */
+@Component
+@ConditionalOnProperty(name = "library-events.consumer.batch.enabled", havingValue = "true")
+@Slf4j
+public class LibraryEventsBatchConsumer {
+
+    private final LibraryEventService libraryEventService;
+
+    private final FlightRecorder flightRecorder;
+
+    private final LibraryEventLatencyMetrics latencyMetrics;
+
+    public LibraryEventsBatchConsumer(LibraryEventService libraryEventService, FlightRecorder flightRecorder,
+                                      LibraryEventLatencyMetrics latencyMetrics) {
+        this.libraryEventService = libraryEventService;
+        this.flightRecorder = flightRecorder;
+        this.latencyMetrics = latencyMetrics;
+    }
+
+    @KafkaListener(id = LibraryEventsConsumer.LISTENER_ID, topics = {"library-events"}, groupId = "lbrary-events-listener-group", containerFactory = "batchKafkaListenerContainerFactory")
+    public void onMessage(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords) {
+
+        for (ConsumerRecord<Integer, LibraryEvent> consumerRecord : consumerRecords) {
+            flightRecorder.record("consumer.batch", consumerRecord.key(), consumerRecord.partition(), consumerRecord.offset(), consumerRecord.value());
+            latencyMetrics.consumed(consumerRecord);
+        }
+        log.debug("{} ConsumerRecords in the batch", consumerRecords.size());
+        libraryEventService.processLibraryEvents(consumerRecords);
+    }
+}
@@ -1,26 +1,42 @@
 package com.learnkafka.consumer;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.diagnostics.LibraryEventLatencyMetrics;
+import com.learnkafka.entity.LibraryEvent;
 import com.learnkafka.service.LibraryEventService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
 @Component
+@ConditionalOnExpression("!${library-events.consumer.batch.enabled:false} && !${library-events.consumer.parallel.enabled:false}")
 @Slf4j
 public class LibraryEventsConsumer {
 
+    // the main listener, whichever of the record, batch or parallel consumers it is
+    static final String LISTENER_ID = "library-events-listener";
+
     private final LibraryEventService libraryEventService;
 
-    public LibraryEventsConsumer(LibraryEventService libraryEventService) {
+    private final FlightRecorder flightRecorder;
+
+    private final LibraryEventLatencyMetrics latencyMetrics;
+
+    public LibraryEventsConsumer(LibraryEventService libraryEventService, FlightRecorder flightRecorder,
+                                  LibraryEventLatencyMetrics latencyMetrics) {
         this.libraryEventService = libraryEventService;
+        this.flightRecorder = flightRecorder;
+        this.latencyMetrics = latencyMetrics;
     }
 
-    @KafkaListener(topics = {"library-events"},groupId = "lbrary-events-listener-group")
-    public void onMessage(ConsumerRecord<Integer,String> consumerRecord) throws JsonProcessingException {
+    @KafkaListener(id = LISTENER_ID, topics = {"library-events"},groupId = "lbrary-events-listener-group")
+    public void onMessage(ConsumerRecord<Integer,LibraryEvent> consumerRecord) {
 
-        log.info("ConsumerRecord : {}",consumerRecord);
+        flightRecorder.record("consumer.main", consumerRecord.key(), consumerRecord.partition(), consumerRecord.offset(), consumerRecord.value());
+        latencyMetrics.consumed(consumerRecord);
+        log.debug("ConsumerRecord : {}",consumerRecord);
         libraryEventService.processLibraryEvent(consumerRecord);
 
     }
@@ -0,0 +1,47 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.diagnostics.LibraryEventLatencyMetrics;
+import com.learnkafka.entity.LibraryEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Takes the place of {@link LibraryEventsConsumer} with {@code library-events.consumer.parallel.enabled=true}, same
+ * topic and group, the records of a poll are processed by {@link KeyOrderedDispatcher}.
+ */
+@Component
+@ConditionalOnProperty(name = "library-events.consumer.parallel.enabled", havingValue = "true")
+@Slf4j
+public class LibraryEventsParallelConsumer {
+
+    private final KeyOrderedDispatcher dispatcher;
+
+    private final FlightRecorder flightRecorder;
+
+    private final LibraryEventLatencyMetrics latencyMetrics;
+
+    public LibraryEventsParallelConsumer(KeyOrderedDispatcher dispatcher, FlightRecorder flightRecorder,
+                                         LibraryEventLatencyMetrics latencyMetrics) {
+        this.dispatcher = dispatcher;
+        this.flightRecorder = flightRecorder;
+        this.latencyMetrics = latencyMetrics;
+    }
+
+    @KafkaListener(id = LibraryEventsConsumer.LISTENER_ID, topics = {"library-events"}, groupId = "lbrary-events-listener-group", containerFactory = "parallelKafkaListenerContainerFactory")
+    public void onMessage(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords, Consumer<?, ?> consumer) throws InterruptedException {
+
+        for (ConsumerRecord<Integer, LibraryEvent> consumerRecord : consumerRecords) {
+            flightRecorder.record("consumer.parallel", consumerRecord.key(), consumerRecord.partition(), consumerRecord.offset(), consumerRecord.value());
+            latencyMetrics.consumed(consumerRecord);
+        }
+        log.debug("{} ConsumerRecords dispatched", consumerRecords.size());
+        dispatcher.dispatch(consumerRecords, consumer);
+    }
+}
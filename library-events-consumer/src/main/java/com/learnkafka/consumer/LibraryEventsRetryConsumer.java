@@ -1,32 +1,92 @@
 package com.learnkafka.consumer;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.learnkafka.config.LibraryEventRetryTiers;
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.diagnostics.LibraryEventLatencyMetrics;
+import com.learnkafka.entity.LibraryEvent;
 import com.learnkafka.service.LibraryEventService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.KafkaBackoffException;
+import org.springframework.kafka.listener.MessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumes the retry tiers. A record is only processed once its {@link LibraryEventRetryTiers#NOT_BEFORE} is
+ * reached : until then its partition is paused, the record sought back to and the partition resumed at the due time,
+ * while the consumer keeps polling the other tiers. The records of a tier are due in the order they were published,
+ * so the first one waiting holds the others of its partition only as long as they would wait anyway.
+ */
 @Component
 @Slf4j
-public class LibraryEventsRetryConsumer {
-
+public class LibraryEventsRetryConsumer implements DisposableBean {
 
+    static final String LISTENER_ID = "library-events-retry-listener";
 
     private final LibraryEventService libraryEventService;
 
-    public LibraryEventsRetryConsumer(LibraryEventService libraryEventService) {
+    private final FlightRecorder flightRecorder;
+
+    private final LibraryEventLatencyMetrics latencyMetrics;
+
+    private final KafkaListenerEndpointRegistry endpointRegistry;
+
+    private final ScheduledExecutorService resumer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "library-events-retry-resumer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LibraryEventsRetryConsumer(LibraryEventService libraryEventService, FlightRecorder flightRecorder,
+                                       LibraryEventLatencyMetrics latencyMetrics, KafkaListenerEndpointRegistry endpointRegistry) {
         this.libraryEventService = libraryEventService;
+        this.flightRecorder = flightRecorder;
+        this.latencyMetrics = latencyMetrics;
+        this.endpointRegistry = endpointRegistry;
     }
 
-    @KafkaListener(topics = {"${topics.retry}"},autoStartup = "${retryListener.startup:true}", groupId = "retry-listener-group")
-    public void onMessage(ConsumerRecord<Integer,String> consumerRecord) throws JsonProcessingException {
+    @KafkaListener(id = LISTENER_ID, topics = "#{@libraryEventRetryTiers.topics}", containerFactory = "retryKafkaListenerContainerFactory",
+            autoStartup = "${retryListener.startup:true}", groupId = "retry-listener-group")
+    public void onMessage(ConsumerRecord<Integer,LibraryEvent> consumerRecord) {
 
-        log.info("ConsumerRecord in Retry Consumer : {}",consumerRecord);
-        consumerRecord.headers()
-                        .forEach(header -> log.info("Key : {} and Value : {}",header.key(),new String(header.value())));
+        long notBefore = LibraryEventRetryTiers.notBefore(consumerRecord.headers());
+        long now = System.currentTimeMillis();
+        if (notBefore > now) {
+            pauseUntil(consumerRecord, notBefore, now);
+        }
+
+        flightRecorder.record("consumer.retry", consumerRecord.key(), consumerRecord.partition(), consumerRecord.offset(), consumerRecord.value());
+        latencyMetrics.consumed(consumerRecord);
+        if (log.isDebugEnabled()) {
+            log.debug("ConsumerRecord in Retry Consumer : {}",consumerRecord);
+            consumerRecord.headers()
+                    .forEach(header -> log.debug("Key : {} and Value : {}",header.key(),new String(header.value())));
+        }
         libraryEventService.processLibraryEvent(consumerRecord);
 
     }
+
+    // the error handler seeks the partition back to the record, the pause keeps the next polls from returning it
+    private void pauseUntil(ConsumerRecord<Integer, LibraryEvent> consumerRecord, long notBefore, long now) {
+
+        TopicPartition topicPartition = new TopicPartition(consumerRecord.topic(), consumerRecord.partition());
+        MessageListenerContainer container = endpointRegistry.getListenerContainer(LISTENER_ID);
+        container.pausePartition(topicPartition);
+        resumer.schedule(() -> container.resumePartition(topicPartition), notBefore - now, TimeUnit.MILLISECONDS);
+        throw new KafkaBackoffException("Library event not due for " + (notBefore - now) + " ms", topicPartition,
+                LISTENER_ID, notBefore);
+    }
+
+    @Override
+    public void destroy() {
+        resumer.shutdownNow();
+    }
 }
@@ -0,0 +1,268 @@
+package com.learnkafka.consumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import com.learnkafka.config.LibraryEventRetryTiers;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sizes the concurrency of the library-events and retry listener containers from their backlog, between
+ * {@code min} and {@code max} and never above the partition count.
+ * <p>
+ * Every interval it reads the lag of the container's group and the end offsets of its topic, and the busy time of
+ * its listeners from the {@code spring.kafka.listener} timers. Busy time over the records committed meanwhile is the
+ * processing time per record, the concurrency needed is the arrival rate plus the lag spread over
+ * {@code drain-seconds}, times that processing time, at {@code target-utilization}. A container is scaled up as soon
+ * as it needs more consumers, and down only after it needed fewer for {@code scale-down-intervals} in a row.
+ * <p>
+ * A record of a retry tier is not due before the delay of its tier went by since it was republished, so on a tier
+ * topic the end offset is the first record younger than that delay : the records waiting for their time are neither
+ * lag nor arrivals, more consumers would only pause on them.
+ * <p>
+ * Concurrency only applies when a container starts, so a change stops and starts it : its consumers leave and join
+ * the group, in between nothing is consumed. Stopped containers (the retry listener with
+ * {@code retryListener.startup=false}) are left alone. Each change counts in
+ * {@code library.events.consumer.autoscaler.scaled}, tagged by listener and direction.
+ */
+@Component
+@ConditionalOnProperty(name = "library-events.consumer.autoscaler.enabled", havingValue = "true")
+@Slf4j
+public class ListenerConcurrencyAutoscaler implements DisposableBean {
+
+    private static final List<String> LISTENER_IDS = List.of(LibraryEventsConsumer.LISTENER_ID, LibraryEventsRetryConsumer.LISTENER_ID);
+
+    private static final Duration ADMIN_TIMEOUT = Duration.ofSeconds(10);
+
+    private final KafkaListenerEndpointRegistry endpointRegistry;
+
+    private final MeterRegistry registry;
+
+    private final AdminClient adminClient;
+
+    private final LibraryEventRetryTiers retryTiers;
+
+    private final int min;
+
+    private final int max;
+
+    private final double drainSeconds;
+
+    private final double targetUtilization;
+
+    private final int scaleDownIntervals;
+
+    private final Map<String, Listener> listeners = new HashMap<>();
+
+    public ListenerConcurrencyAutoscaler(KafkaListenerEndpointRegistry endpointRegistry, MeterRegistry registry,
+                                         ConsumerFactory<?, ?> consumerFactory, LibraryEventRetryTiers retryTiers,
+                                         @Value("${library-events.consumer.autoscaler.min:1}") int min,
+                                         @Value("${library-events.consumer.autoscaler.max:6}") int max,
+                                         @Value("${library-events.consumer.autoscaler.drain-seconds:60}") double drainSeconds,
+                                         @Value("${library-events.consumer.autoscaler.target-utilization:0.75}") double targetUtilization,
+                                         @Value("${library-events.consumer.autoscaler.scale-down-intervals:6}") int scaleDownIntervals) {
+        this.endpointRegistry = endpointRegistry;
+        this.registry = registry;
+        // the consumers' bootstrap servers, the admin client of the context may point elsewhere
+        this.adminClient = AdminClient.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG,
+                consumerFactory.getConfigurationProperties().get(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG)));
+        this.retryTiers = retryTiers;
+        this.min = min;
+        this.max = max;
+        this.drainSeconds = drainSeconds;
+        this.targetUtilization = targetUtilization;
+        this.scaleDownIntervals = scaleDownIntervals;
+    }
+
+    @Scheduled(fixedDelayString = "${library-events.consumer.autoscaler.interval-ms:10000}",
+            initialDelayString = "${library-events.consumer.autoscaler.interval-ms:10000}")
+    public void scale() {
+        for (String id : LISTENER_IDS) {
+            MessageListenerContainer container = endpointRegistry.getListenerContainer(id);
+            if (container instanceof ConcurrentMessageListenerContainer && container.isRunning()) {
+                try {
+                    scale(listeners.computeIfAbsent(id, k -> new Listener(k, (ConcurrentMessageListenerContainer<?, ?>) container)));
+                } catch (ExecutionException | TimeoutException | RuntimeException e) {
+                    log.warn("Could not size the concurrency of {} : {}", id, e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void scale(Listener listener) throws ExecutionException, InterruptedException, TimeoutException {
+
+        ConcurrentMessageListenerContainer<?, ?> container = listener.container;
+        String[] topics = container.getContainerProperties().getTopics();
+        Map<String, TopicDescription> descriptions = adminClient.describeTopics(List.of(topics)).allTopicNames()
+                .get(ADMIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+
+        long nowMillis = System.currentTimeMillis();
+        Map<TopicPartition, OffsetSpec> latest = new HashMap<>();
+        Map<TopicPartition, OffsetSpec> due = new HashMap<>();
+        descriptions.values().forEach(description -> description.partitions().forEach(partition -> {
+            TopicPartition topicPartition = new TopicPartition(description.name(), partition.partition());
+            latest.put(topicPartition, OffsetSpec.latest());
+            if (retryTiers.isTier(description.name())) {
+                due.put(topicPartition, OffsetSpec.forTimestamp(nowMillis - retryTiers.delay(description.name()).toMillis()));
+            }
+        }));
+        Map<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> endOffsets = adminClient.listOffsets(latest).all()
+                .get(ADMIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        Map<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> dueOffsets = due.isEmpty() ? Map.of()
+                : adminClient.listOffsets(due).all().get(ADMIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        Map<TopicPartition, OffsetAndMetadata> committedOffsets = adminClient.listConsumerGroupOffsets(container.getGroupId())
+                .partitionsToOffsetAndMetadata().get(ADMIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+
+        long end = 0;
+        long committed = 0;
+        for (Map.Entry<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> entry : endOffsets.entrySet()) {
+            OffsetAndMetadata offset = committedOffsets.get(entry.getKey());
+            long partitionCommitted = offset != null ? offset.offset() : entry.getValue().offset();
+            end += Math.max(partitionCommitted, dueEnd(entry.getValue().offset(), dueOffsets.get(entry.getKey())));
+            committed += partitionCommitted;
+        }
+        long now = System.nanoTime();
+        double busySeconds = busySeconds(listener.id);
+        int partitions = latest.size();
+        listener.lag = end - committed;
+
+        if (listener.sampledAt != 0) {
+            double seconds = (now - listener.sampledAt) / 1e9;
+            long processed = committed - listener.committed;
+            if (processed > 0) {
+                listener.secondsPerRecord = Math.max(0, busySeconds - listener.busySeconds) / processed;
+            }
+            double arrivalRate = (end - listener.end) / seconds;
+            resize(listener, desired(listener, arrivalRate), partitions);
+        }
+        listener.sampledAt = now;
+        listener.end = end;
+        listener.committed = committed;
+        listener.busySeconds = busySeconds;
+    }
+
+    // the first record not yet due, -1 when none was republished within the delay of the tier
+    static long dueEnd(long end, ListOffsetsResult.ListOffsetsResultInfo firstNotDue) {
+        return firstNotDue == null || firstNotDue.offset() < 0 ? end : Math.min(end, firstNotDue.offset());
+    }
+
+    int desired(Listener listener, double arrivalRate) {
+        int current = listener.container.getConcurrency();
+        if (listener.lag == 0 && arrivalRate == 0) {
+            return min;
+        }
+        if (Double.isNaN(listener.secondsPerRecord)) {
+            // nothing processed yet to measure with, only push a backlog that is not moving
+            return listener.lag > 0 ? current + 1 : current;
+        }
+        double busyConsumers = (arrivalRate + listener.lag / drainSeconds) * listener.secondsPerRecord;
+        return (int) Math.ceil(busyConsumers / targetUtilization);
+    }
+
+    void resize(Listener listener, int desired, int partitions) {
+        ConcurrentMessageListenerContainer<?, ?> container = listener.container;
+        int current = container.getConcurrency();
+        int target = Math.max(min, Math.min(desired, Math.min(max, partitions)));
+
+        if (target > current) {
+            listener.lowIntervals = 0;
+            restart(listener, current, target, "up");
+        } else if (target < current) {
+            if (++listener.lowIntervals >= scaleDownIntervals) {
+                listener.lowIntervals = 0;
+                restart(listener, current, target, "down");
+            }
+        } else {
+            listener.lowIntervals = 0;
+        }
+    }
+
+    private void restart(Listener listener, int current, int target, String direction) {
+        log.info("Scaling {} {} from {} to {} consumers, lag {}, {} ms per record", listener.id, direction, current, target,
+                listener.lag, String.format("%.2f", listener.secondsPerRecord * 1000));
+        restart(listener.container, target);
+        Counter.builder("library.events.consumer.autoscaler.scaled")
+                .description("Concurrency changes of the listener containers")
+                .tag("listener", listener.id)
+                .tag("direction", direction)
+                .register(registry)
+                .increment();
+    }
+
+    void restart(ConcurrentMessageListenerContainer<?, ?> container, int concurrency) {
+        container.stop();
+        container.setConcurrency(concurrency);
+        container.start();
+    }
+
+    private double busySeconds(String id) {
+        return registry.find("spring.kafka.listener").timers().stream()
+                .filter(timer -> {
+                    String name = timer.getId().getTag("name");
+                    return name != null && name.startsWith(id + "-");
+                })
+                .mapToDouble(timer -> timer.totalTime(TimeUnit.SECONDS))
+                .sum();
+    }
+
+    @Override
+    public void destroy() {
+        adminClient.close(ADMIN_TIMEOUT);
+    }
+
+    final class Listener {
+
+        final String id;
+
+        final ConcurrentMessageListenerContainer<?, ?> container;
+
+        long sampledAt;
+        long end;
+        long committed;
+        double busySeconds;
+        double secondsPerRecord = Double.NaN;
+        int lowIntervals;
+        volatile long lag;
+
+        Listener(String id, ConcurrentMessageListenerContainer<?, ?> container) {
+            this.id = id;
+            this.container = container;
+            Gauge.builder("library.events.consumer.autoscaler.concurrency", container, ConcurrentMessageListenerContainer::getConcurrency)
+                    .description("Consumers of the listener container")
+                    .tag("listener", id)
+                    .register(registry);
+            Gauge.builder("library.events.consumer.autoscaler.lag", this, listener -> listener.lag)
+                    .description("Records of the listener's topic not yet committed by its group")
+                    .tag("listener", id)
+                    .register(registry);
+        }
+    }
+}
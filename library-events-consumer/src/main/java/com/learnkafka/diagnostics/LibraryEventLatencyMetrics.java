@@ -0,0 +1,71 @@
+package com.learnkafka.diagnostics;
+
+import com.learnkafka.codec.LibraryEventTraceHeaders;
+import com.learnkafka.config.LibraryEventRetryTiers;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.entity.LibraryEventType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Freshness of library events, from the ingest timestamp the producer stamped on the record to the listener picking
+ * it up and to the book being saved. Both timers publish a percentile histogram tagged by event type and by path,
+ * {@code retry} for records of the retry tiers, whose latency includes the failed attempts and the delays before it.
+ * <p>
+ * The ingest timestamp comes from the producer's clock, so the numbers are only as good as the clock sync between
+ * the hosts, negative values are counted as zero. Records without the header are not timed.
+ */
+@Component
+public class LibraryEventLatencyMetrics {
+
+    static final String CONSUME = "library.events.consumer.ingest.to.consume";
+    static final String PERSIST = "library.events.consumer.ingest.to.persist";
+
+    private final MeterRegistry registry;
+
+    private final LibraryEventRetryTiers retryTiers;
+
+    private final Map<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+    public LibraryEventLatencyMetrics(MeterRegistry registry, LibraryEventRetryTiers retryTiers) {
+        this.registry = registry;
+        this.retryTiers = retryTiers;
+    }
+
+    public void consumed(ConsumerRecord<Integer, LibraryEvent> consumerRecord) {
+        record(CONSUME, "Time from ingest at the producer to the listener", consumerRecord);
+    }
+
+    public void persisted(ConsumerRecord<Integer, LibraryEvent> consumerRecord) {
+        record(PERSIST, "Time from ingest at the producer to the book saved", consumerRecord);
+    }
+
+    private void record(String name, String description, ConsumerRecord<Integer, LibraryEvent> consumerRecord) {
+        long ingestMicros = LibraryEventTraceHeaders.ingestTimestamp(consumerRecord.headers());
+        if (ingestMicros < 0) {
+            return;
+        }
+        long latencyMicros = Math.max(0, LibraryEventTraceHeaders.nowMicros() - ingestMicros);
+        String path = retryTiers.isTier(consumerRecord.topic()) ? "retry" : "main";
+        LibraryEventType type = consumerRecord.value() == null ? null : consumerRecord.value().getLibraryEventType();
+        timer(name, description, path, type).record(latencyMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private Timer timer(String name, String description, String path, LibraryEventType type) {
+        String typeTag = type == null ? "unknown" : type.name();
+        return timers.computeIfAbsent(List.of(name, path, typeTag), k -> Timer.builder(name)
+                .description(description)
+                .tag("path", path)
+                .tag("type", typeTag)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+}
@@ -1,6 +1,9 @@
 package com.learnkafka.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotBlank;
@@ -11,6 +14,8 @@ import javax.validation.constraints.NotNull;
 @Data
 @Builder
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "book")
 public class Book {
 
     @Id
@@ -22,5 +27,6 @@ public class Book {
 
     @OneToOne
     @JoinColumn(name = "libraryEventId")
+    @JsonIgnore
     private LibraryEvent libraryEvent;
 }
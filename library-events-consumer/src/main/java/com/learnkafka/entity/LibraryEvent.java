@@ -1,6 +1,8 @@
 package com.learnkafka.entity;
 
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import javax.validation.Valid;
@@ -11,12 +13,17 @@ import javax.validation.constraints.NotNull;
 @Data
 @Builder
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "library-event")
 public class LibraryEvent {
 
    // @NotNull(message = "Please pass the LibraryEventId")
     //@Valid
+    // pooled : one sequence call per 50 ids, so a batch of NEW events is inserted without a round trip per id.
+    // An existing database needs db/postgres/library_event_seq.sql first
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "library_event_seq")
+    @SequenceGenerator(name = "library_event_seq", sequenceName = "library_event_seq", allocationSize = 50)
     private Integer libraryEventId;
 
      @Enumerated(EnumType.STRING)
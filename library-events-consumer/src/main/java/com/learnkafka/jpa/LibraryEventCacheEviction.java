@@ -0,0 +1,54 @@
+package com.learnkafka.jpa;
+
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import java.util.Collection;
+
+/**
+ * Keeps the second level cache ({@code l2cache} profile) in line with writes it does not see.
+ * <p>
+ * The cache is local to this instance, and the writes of this instance keep it right : the JPA paths of the main,
+ * retry and batch listeners and of the dead letter replay go through Hibernate, and the rows the native upsert writes
+ * behind its back are evicted after it. Writes of other instances are not : the main listener of another instance, the retry
+ * listener, whose group is assigned apart from the main one, and a dead letter replay in PROCESS mode all write the
+ * same rows. Clearing both regions on every assignment drops what was cached before a partition came back, but
+ * only the expiry of the regions (5 minutes, application.conf) bounds how long a write by another instance goes
+ * unseen. Without the profile the cache is disabled and all of this is a no-op.
+ */
+@Component
+@Slf4j
+public class LibraryEventCacheEviction implements ConsumerAwareRebalanceListener {
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    public LibraryEventCacheEviction(EntityManagerFactory entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    public void evict(LibraryEvent libraryEvent) {
+        Cache cache = entityManagerFactory.getCache();
+        cache.evict(LibraryEvent.class, libraryEvent.getLibraryEventId());
+        if (libraryEvent.getBook() != null) {
+            cache.evict(Book.class, libraryEvent.getBook().getBookId());
+        }
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        Cache cache = entityManagerFactory.getCache();
+        cache.evict(LibraryEvent.class);
+        cache.evict(Book.class);
+        log.debug("Second level cache cleared on the assignment of {}", partitions);
+    }
+}
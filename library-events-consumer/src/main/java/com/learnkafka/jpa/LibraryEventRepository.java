@@ -1,7 +1,16 @@
 package com.learnkafka.jpa;
 
 import com.learnkafka.entity.LibraryEvent;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.repository.CrudRepository;
 
-public interface LibraryEventRepository extends CrudRepository<LibraryEvent, Integer> {
+import java.util.Collection;
+import java.util.List;
+
+public interface LibraryEventRepository extends CrudRepository<LibraryEvent, Integer>, LibraryEventUpsert {
+
+    // the book in the same select, instead of one more select per event for the eager one to one
+    @Query("select e from LibraryEvent e left join fetch e.book where e.libraryEventId in :libraryEventIds")
+    List<LibraryEvent> findAllWithBook(@Param("libraryEventIds") Collection<Integer> libraryEventIds);
 }
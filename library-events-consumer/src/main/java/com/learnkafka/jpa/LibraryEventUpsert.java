@@ -0,0 +1,14 @@
+package com.learnkafka.jpa;
+
+import com.learnkafka.entity.LibraryEvent;
+
+public interface LibraryEventUpsert {
+
+    /**
+     * Writes an UPDATE event, its type and its book, if the library event exists. The existence check and the write
+     * are a single native statement where the database allows it.
+     *
+     * @return false if there is no library event with that id, nothing is written then
+     */
+    boolean updateIfExists(LibraryEvent libraryEvent);
+}
@@ -0,0 +1,120 @@
+package com.learnkafka.jpa;
+
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.jdbc.DatabaseDriver;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+import java.sql.DatabaseMetaData;
+import java.sql.Types;
+
+/**
+ * Native upsert of UPDATE events, instead of the select and the merges of the JPA path.
+ * <p>
+ * On Postgres the type of the library event is updated and the book upserted in one statement, the book only if the
+ * update found the library event. H2 has no data modifying CTE : the update of the library event tells whether it
+ * exists and the book is merged after it, in one transaction. Other databases take the JPA path.
+ * <p>
+ * The statements bypass the persistence context, the second level cache entries of what they wrote are evicted after
+ * them.
+ */
+@Slf4j
+public class LibraryEventUpsertImpl implements LibraryEventUpsert {
+
+    private static final String UPDATE_LIBRARY_EVENT =
+            "UPDATE library_event SET library_event_type = :libraryEventType WHERE library_event_id = :libraryEventId";
+
+    private static final String H2_MERGE_BOOK =
+            "MERGE INTO book (book_id, book_name, book_author, library_event_id) KEY (book_id) "
+                    + "VALUES (:bookId, :bookName, :bookAuthor, :libraryEventId)";
+
+    private static final String POSTGRES_UPSERT =
+            "WITH e AS (" + UPDATE_LIBRARY_EVENT + " RETURNING library_event_id) "
+                    + "INSERT INTO book (book_id, book_name, book_author, library_event_id) "
+                    + "SELECT :bookId, :bookName, :bookAuthor, e.library_event_id FROM e "
+                    + "ON CONFLICT (book_id) DO UPDATE SET book_name = EXCLUDED.book_name, "
+                    + "book_author = EXCLUDED.book_author, library_event_id = EXCLUDED.library_event_id";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final DatabaseDriver database;
+
+    private final LibraryEventCacheEviction cacheEviction;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    public LibraryEventUpsertImpl(NamedParameterJdbcTemplate jdbcTemplate, DataSource dataSource,
+                                  PlatformTransactionManager transactionManager, LibraryEventCacheEviction cacheEviction) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.database = databaseOf(dataSource);
+        this.cacheEviction = cacheEviction;
+        log.info("UPDATE events are persisted with the {} statements", database == DatabaseDriver.UNKNOWN ? "JPA" : database);
+    }
+
+    @Override
+    public boolean updateIfExists(LibraryEvent libraryEvent) {
+
+        MapSqlParameterSource parameters = parameters(libraryEvent);
+        switch (database) {
+            case POSTGRESQL:
+                return evicted(libraryEvent, jdbcTemplate.update(POSTGRES_UPSERT, parameters) > 0);
+            case H2:
+                return evicted(libraryEvent, Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                    if (jdbcTemplate.update(UPDATE_LIBRARY_EVENT, parameters) == 0) {
+                        return false;
+                    }
+                    jdbcTemplate.update(H2_MERGE_BOOK, parameters);
+                    return true;
+                })));
+            default:
+                return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                    if (entityManager.find(LibraryEvent.class, libraryEvent.getLibraryEventId()) == null) {
+                        return false;
+                    }
+                    libraryEvent.getBook().setLibraryEvent(libraryEvent);
+                    entityManager.merge(libraryEvent);
+                    return true;
+                }));
+        }
+    }
+
+    private boolean evicted(LibraryEvent libraryEvent, boolean written) {
+        if (written) {
+            cacheEviction.evict(libraryEvent);
+        }
+        return written;
+    }
+
+    private static MapSqlParameterSource parameters(LibraryEvent libraryEvent) {
+        Book book = libraryEvent.getBook();
+        return new MapSqlParameterSource()
+                .addValue("libraryEventId", libraryEvent.getLibraryEventId(), Types.INTEGER)
+                .addValue("libraryEventType", libraryEvent.getLibraryEventType().name(), Types.VARCHAR)
+                .addValue("bookId", book.getBookId(), Types.INTEGER)
+                .addValue("bookName", book.getBookName(), Types.VARCHAR)
+                .addValue("bookAuthor", book.getBookAuthor(), Types.VARCHAR);
+    }
+
+    private static DatabaseDriver databaseOf(DataSource dataSource) {
+        try {
+            String productName = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+            return DatabaseDriver.fromProductName(productName);
+        } catch (MetaDataAccessException e) {
+            log.warn("Could not read the database product name, UPDATE events take the JPA path : {}", e.getMessage());
+            return DatabaseDriver.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.learnkafka.replay;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+
+/**
+ * {@code GET /actuator/dltreplay} shows the current or last replay, {@code POST} starts one with a JSON body of the
+ * optional parameters below, {@code DELETE} stops it. {@code from} and {@code to} are ISO-8601 instants.
+ */
+@Component
+@Endpoint(id = "dltreplay")
+public class DeadLetterReplayEndpoint {
+
+    private final DeadLetterReplayer replayer;
+
+    public DeadLetterReplayEndpoint(DeadLetterReplayer replayer) {
+        this.replayer = replayer;
+    }
+
+    @ReadOperation
+    public DeadLetterReplayStatus status() {
+        return replayer.status();
+    }
+
+    @WriteOperation
+    public DeadLetterReplayStatus start(@Nullable DeadLetterReplayer.Mode mode, @Nullable String exceptionClass,
+                                        @Nullable Instant from, @Nullable Instant to, @Nullable Integer key,
+                                        @Nullable Double ratePerSecond, @Nullable Integer parallelism,
+                                        @Nullable Boolean fromCheckpoint) {
+        return replayer.start(mode, exceptionClass, from, to, key, ratePerSecond, parallelism,
+                fromCheckpoint == null || fromCheckpoint);
+    }
+
+    @DeleteOperation
+    public DeadLetterReplayStatus stop() {
+        return replayer.stop();
+    }
+}
@@ -0,0 +1,37 @@
+package com.learnkafka.replay;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the current or last replay. The checkpoint is the next offset per DLT partition, committed for the
+ * replay group of the filter, where a replay with the same filter and without {@code fromCheckpoint=false} or
+ * {@code from} picks up.
+ */
+@Getter
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeadLetterReplayStatus {
+
+    public enum State { RUNNING, STOPPING, STOPPED, COMPLETED, FAILED }
+
+    private final State state;
+    private final DeadLetterReplayer.Mode mode;
+    private final String filter;
+    private final double ratePerSecond;
+    private final int parallelism;
+    private final Instant startedAt;
+    private final Instant finishedAt;
+    private final long scanned;
+    private final long matched;
+    private final long replayed;
+    private final long failed;
+    private final String checkpointGroup;
+    private final Map<String, Long> checkpoint;
+    private final List<String> lastErrors;
+}
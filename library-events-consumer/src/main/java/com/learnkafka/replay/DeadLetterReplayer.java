@@ -0,0 +1,467 @@
+package com.learnkafka.replay;
+
+import com.learnkafka.codec.LibraryEventDeserializer;
+import com.learnkafka.config.LibraryEventRetryTiers;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.service.LibraryEventService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.IntegerDeserializer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Re-drives the records of the DLT, one replay at a time on its own thread. A replay reads every partition of the DLT
+ * up to the end offsets it found when it started, so records dead lettered again meanwhile are not picked up twice.
+ * Records are filtered by the exception class the recoverer stored (its fqcn or simple name, of the exception or its
+ * cause), by DLT timestamp and by key, then either processed again with {@link LibraryEventService} or republished
+ * to library-events for the listener to take.
+ * <p>
+ * The records of a poll run on {@code parallelism} lanes keyed like {@code KeyOrderedDispatcher}, so the records of
+ * one library event keep their order, all lanes sharing one rate limit. Once a poll is done the positions are
+ * committed for the replay group : that is the checkpoint a stopped or crashed replay resumes from. Each filter has a
+ * group of its own, the configured group id plus a digest of the exception class, {@code to} and key, so a replay of
+ * one exception class never skips records another replay went past. An explicit {@code from} starts there whatever
+ * the checkpoint. A record that fails again stays in the DLT and is only counted, the replay moves past it.
+ */
+@Component
+@Slf4j
+public class DeadLetterReplayer implements DisposableBean {
+
+    public enum Mode { PROCESS, REPUBLISH }
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+
+    private static final int LAST_ERRORS = 20;
+
+    private final LibraryEventService libraryEventService;
+
+    private final ConsumerFactory<Integer, byte[]> consumerFactory;
+
+    private final KafkaTemplate<Integer, byte[]> republishTemplate;
+
+    private final LibraryEventDeserializer deserializer = new LibraryEventDeserializer();
+
+    private final String deadLetterTopic;
+
+    private final String mainTopic;
+
+    private final String groupId;
+
+    private final double defaultRatePerSecond;
+
+    private final int defaultParallelism;
+
+    private volatile Replay replay;
+
+    public DeadLetterReplayer(LibraryEventService libraryEventService, ConsumerFactory<?, ?> consumerFactory,
+                              KafkaTemplate<?, ?> kafkaTemplate,
+                              @Value("${topics.dlt}") String deadLetterTopic,
+                              @Value("${library-events.replay.topic:library-events}") String mainTopic,
+                              @Value("${library-events.replay.group-id:library-events-dlt-replay}") String groupId,
+                              @Value("${library-events.replay.max-poll-records:500}") int maxPollRecords,
+                              @Value("${library-events.replay.rate-per-second:100}") double defaultRatePerSecond,
+                              @Value("${library-events.replay.parallelism:4}") int defaultParallelism) {
+        this.libraryEventService = libraryEventService;
+        Map<String, Object> consumerProperties = new HashMap<>(consumerFactory.getConfigurationProperties());
+        consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+        consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+        // raw values : republished as they are, decoded only to be processed
+        this.consumerFactory = new DefaultKafkaConsumerFactory<>(consumerProperties, new IntegerDeserializer(), new ByteArrayDeserializer());
+        @SuppressWarnings("unchecked")
+        ProducerFactory<Integer, byte[]> producerFactory = (ProducerFactory<Integer, byte[]>) kafkaTemplate.getProducerFactory();
+        this.republishTemplate = new KafkaTemplate<>(producerFactory,
+                Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class));
+        this.deadLetterTopic = deadLetterTopic;
+        this.mainTopic = mainTopic;
+        this.groupId = groupId;
+        this.defaultRatePerSecond = defaultRatePerSecond;
+        this.defaultParallelism = defaultParallelism;
+    }
+
+    /**
+     * Starts a replay unless one is running, whose status is returned then.
+     *
+     * @param fromCheckpoint false to start from the beginning of the DLT instead of the checkpoint of the filter,
+     *                       ignored when {@code from} is given
+     */
+    public synchronized DeadLetterReplayStatus start(Mode mode, String exceptionClass, Instant from, Instant to,
+                                                     Integer key, Double ratePerSecond, Integer parallelism,
+                                                     boolean fromCheckpoint) {
+        if (replay != null && replay.isRunning()) {
+            return replay.status();
+        }
+        replay = new Replay(mode == null ? Mode.PROCESS : mode, exceptionClass, from, to, key,
+                ratePerSecond == null ? defaultRatePerSecond : ratePerSecond,
+                parallelism == null ? defaultParallelism : Math.max(1, parallelism), fromCheckpoint);
+        Thread thread = new Thread(replay, "library-events-dlt-replay");
+        thread.setDaemon(true);
+        thread.start();
+        return replay.status();
+    }
+
+    public DeadLetterReplayStatus status() {
+        Replay current = replay;
+        return current == null ? null : current.status();
+    }
+
+    /**
+     * Asks the running replay to stop : the records in progress finish, the rest of the poll is left for the next
+     * replay and the checkpoint is committed up to it.
+     */
+    public DeadLetterReplayStatus stop() {
+        Replay current = replay;
+        if (current == null) {
+            return null;
+        }
+        current.stopRequested = true;
+        return current.status();
+    }
+
+    // the template's copy of the producer factory is not closed by the context
+    @Override
+    public void destroy() throws Exception {
+        stop();
+        if (republishTemplate.getProducerFactory() instanceof DisposableBean) {
+            ((DisposableBean) republishTemplate.getProducerFactory()).destroy();
+        }
+    }
+
+    /**
+     * The replay group of a filter, {@code from} left out : it only moves the start. No filter keeps the plain group.
+     */
+    String checkpointGroup(String exceptionClass, Instant to, Integer key) {
+        if (exceptionClass == null && to == null && key == null) {
+            return groupId;
+        }
+        String filter = "exception=" + exceptionClass + ",to=" + to + ",key=" + key;
+        return groupId + "-" + UUID.nameUUIDFromBytes(filter.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private final class Replay implements Runnable {
+
+        final Mode mode;
+        final Predicate<ConsumerRecord<Integer, byte[]>> filter;
+        final String filterDescription;
+        final Instant from;
+        final double ratePerSecond;
+        final long intervalNanos;
+        final int parallelism;
+        final boolean fromCheckpoint;
+        final String checkpointGroup;
+
+        final Instant startedAt = Instant.now();
+        final AtomicLong scanned = new AtomicLong();
+        final AtomicLong matched = new AtomicLong();
+        final AtomicLong replayed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong nextPermitNanos = new AtomicLong(System.nanoTime());
+        final Deque<String> lastErrors = new ArrayDeque<>();
+        final Map<String, Long> checkpoint = new LinkedHashMap<>();
+
+        volatile DeadLetterReplayStatus.State state = DeadLetterReplayStatus.State.RUNNING;
+        volatile boolean stopRequested;
+        volatile Instant finishedAt;
+
+        Replay(Mode mode, String exceptionClass, Instant from, Instant to, Integer key, double ratePerSecond,
+               int parallelism, boolean fromCheckpoint) {
+            this.mode = mode;
+            this.from = from;
+            this.ratePerSecond = ratePerSecond;
+            this.intervalNanos = ratePerSecond > 0 ? (long) (1e9 / ratePerSecond) : 0;
+            this.parallelism = parallelism;
+            this.fromCheckpoint = fromCheckpoint && from == null;
+            this.checkpointGroup = checkpointGroup(exceptionClass, to, key);
+
+            List<String> description = new ArrayList<>();
+            Predicate<ConsumerRecord<Integer, byte[]>> predicate = consumerRecord -> true;
+            if (exceptionClass != null) {
+                predicate = predicate.and(consumerRecord -> exceptionMatches(consumerRecord.headers(), exceptionClass));
+                description.add("exception=" + exceptionClass);
+            }
+            if (from != null) {
+                predicate = predicate.and(consumerRecord -> consumerRecord.timestamp() >= from.toEpochMilli());
+                description.add("from=" + from);
+            }
+            if (to != null) {
+                predicate = predicate.and(consumerRecord -> consumerRecord.timestamp() < to.toEpochMilli());
+                description.add("to=" + to);
+            }
+            if (key != null) {
+                predicate = predicate.and(consumerRecord -> key.equals(consumerRecord.key()));
+                description.add("key=" + key);
+            }
+            this.filter = predicate;
+            this.filterDescription = description.isEmpty() ? null : String.join(", ", description);
+        }
+
+        boolean isRunning() {
+            return state == DeadLetterReplayStatus.State.RUNNING || state == DeadLetterReplayStatus.State.STOPPING;
+        }
+
+        @Override
+        public void run() {
+            log.info("Replaying {} ({})", deadLetterTopic, filterDescription == null ? "all records" : filterDescription);
+            ExecutorService[] lanes = new ExecutorService[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                String name = "library-events-dlt-replay-lane-" + i;
+                lanes[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+            }
+            try (Consumer<Integer, byte[]> consumer = consumerFactory.createConsumer(checkpointGroup, null, null)) {
+                List<TopicPartition> partitions = consumer.partitionsFor(deadLetterTopic).stream()
+                        .map(info -> new TopicPartition(info.topic(), info.partition()))
+                        .collect(Collectors.toList());
+                consumer.assign(partitions);
+                Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+                seekToStart(consumer, partitions);
+
+                while (!stopRequested && !reachedEnd(consumer, endOffsets)) {
+                    ConsumerRecords<Integer, byte[]> consumerRecords = consumer.poll(POLL_TIMEOUT);
+                    Map<TopicPartition, Long> notReplayed = replay(consumerRecords, endOffsets, lanes);
+                    commit(consumer, endOffsets, notReplayed);
+                }
+                state = stopRequested ? DeadLetterReplayStatus.State.STOPPED : DeadLetterReplayStatus.State.COMPLETED;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                state = DeadLetterReplayStatus.State.STOPPED;
+            } catch (RuntimeException e) {
+                log.error("Replay of {} failed", deadLetterTopic, e);
+                error("replay : " + e.getMessage());
+                state = DeadLetterReplayStatus.State.FAILED;
+            } finally {
+                for (ExecutorService lane : lanes) {
+                    lane.shutdownNow();
+                }
+                finishedAt = Instant.now();
+                log.info("Replay of {} {} : {} scanned, {} matched, {} replayed, {} failed", deadLetterTopic, state,
+                        scanned.get(), matched.get(), replayed.get(), failed.get());
+            }
+        }
+
+        // from when given, else the checkpoint, else the beginning
+        private void seekToStart(Consumer<Integer, byte[]> consumer, List<TopicPartition> partitions) {
+            Map<TopicPartition, OffsetAndMetadata> committed = fromCheckpoint
+                    ? consumer.committed(new HashSet<>(partitions)) : Map.of();
+            Map<TopicPartition, Long> timestamps = new HashMap<>();
+            for (TopicPartition partition : partitions) {
+                OffsetAndMetadata offset = committed.get(partition);
+                if (offset != null) {
+                    consumer.seek(partition, offset.offset());
+                } else if (from != null) {
+                    timestamps.put(partition, from.toEpochMilli());
+                } else {
+                    consumer.seekToBeginning(List.of(partition));
+                }
+            }
+            if (!timestamps.isEmpty()) {
+                Map<TopicPartition, OffsetAndTimestamp> offsets = consumer.offsetsForTimes(timestamps);
+                timestamps.keySet().forEach(partition -> {
+                    OffsetAndTimestamp offset = offsets.get(partition);
+                    if (offset != null) {
+                        consumer.seek(partition, offset.offset());
+                    } else {
+                        consumer.seekToEnd(List.of(partition));
+                    }
+                });
+            }
+        }
+
+        // partitions at their end offset are paused, the records dead lettered since the start are left alone
+        private boolean reachedEnd(Consumer<Integer, byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+            boolean reachedEnd = true;
+            for (Map.Entry<TopicPartition, Long> end : endOffsets.entrySet()) {
+                if (consumer.position(end.getKey()) >= end.getValue()) {
+                    consumer.pause(List.of(end.getKey()));
+                } else {
+                    reachedEnd = false;
+                }
+            }
+            return reachedEnd;
+        }
+
+        // the first offset per partition left out by a stop, the checkpoint must not pass it
+        private Map<TopicPartition, Long> replay(ConsumerRecords<Integer, byte[]> consumerRecords,
+                                                 Map<TopicPartition, Long> endOffsets, ExecutorService[] lanes) throws InterruptedException {
+
+            List<ConsumerRecord<Integer, byte[]>> selected = new ArrayList<>();
+            for (ConsumerRecord<Integer, byte[]> consumerRecord : consumerRecords) {
+                if (consumerRecord.offset() >= endOffsets.get(new TopicPartition(consumerRecord.topic(), consumerRecord.partition()))) {
+                    continue;
+                }
+                scanned.incrementAndGet();
+                if (filter.test(consumerRecord)) {
+                    selected.add(consumerRecord);
+                }
+            }
+            matched.addAndGet(selected.size());
+
+            Map<TopicPartition, Long> notReplayed = new ConcurrentHashMap<>();
+            CountDownLatch finished = new CountDownLatch(selected.size());
+            for (ConsumerRecord<Integer, byte[]> consumerRecord : selected) {
+                lanes[laneOf(consumerRecord)].execute(() -> {
+                    try {
+                        if (stopRequested) {
+                            notReplayed.merge(new TopicPartition(consumerRecord.topic(), consumerRecord.partition()),
+                                    consumerRecord.offset(), Math::min);
+                            return;
+                        }
+                        acquire();
+                        replay(consumerRecord);
+                        replayed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        error(consumerRecord.partition() + "@" + consumerRecord.offset() + " : " + e.getMessage());
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+            finished.await();
+            return notReplayed;
+        }
+
+        private void replay(ConsumerRecord<Integer, byte[]> consumerRecord) throws Exception {
+            if (mode == Mode.REPUBLISH) {
+                republishTemplate.send(new ProducerRecord<>(mainTopic, consumerRecord.partition(), consumerRecord.key(),
+                        consumerRecord.value(), republishedHeaders(consumerRecord.headers())))
+                        .get(30, TimeUnit.SECONDS);
+            } else {
+                LibraryEvent libraryEvent = deserializer.deserialize(consumerRecord.topic(), consumerRecord.headers(), consumerRecord.value());
+                if (libraryEvent == null) {
+                    throw new IllegalArgumentException("Library Event is missing");
+                }
+                libraryEventService.processLibraryEvent(new ConsumerRecord<>(consumerRecord.topic(), consumerRecord.partition(),
+                        consumerRecord.offset(), consumerRecord.timestamp(), consumerRecord.timestampType(),
+                        consumerRecord.serializedKeySize(), consumerRecord.serializedValueSize(), consumerRecord.key(),
+                        libraryEvent, consumerRecord.headers(), consumerRecord.leaderEpoch()));
+            }
+        }
+
+        private int laneOf(ConsumerRecord<Integer, byte[]> consumerRecord) {
+            long hash = consumerRecord.key() != null ? consumerRecord.key() : consumerRecord.offset();
+            return (int) Math.floorMod(hash, (long) parallelism);
+        }
+
+        // paces the lanes together to ratePerSecond, a permit is a slot in time
+        private void acquire() throws InterruptedException {
+            if (intervalNanos == 0) {
+                return;
+            }
+            long next = nextPermitNanos.accumulateAndGet(intervalNanos, (previous, interval) -> Math.max(previous, System.nanoTime()) + interval);
+            long wait = next - intervalNanos - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        private void commit(Consumer<Integer, byte[]> consumer, Map<TopicPartition, Long> endOffsets,
+                            Map<TopicPartition, Long> notReplayed) {
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+            endOffsets.forEach((partition, end) -> {
+                long position = consumer.position(partition);
+                if (position > end) {
+                    consumer.seek(partition, end);
+                    position = end;
+                }
+                offsets.put(partition, new OffsetAndMetadata(Math.min(position, notReplayed.getOrDefault(partition, position))));
+            });
+            consumer.commitSync(offsets);
+            synchronized (checkpoint) {
+                offsets.forEach((partition, offset) -> checkpoint.put(partition.toString(), offset.offset()));
+            }
+        }
+
+        private void error(String error) {
+            synchronized (lastErrors) {
+                if (lastErrors.size() == LAST_ERRORS) {
+                    lastErrors.removeFirst();
+                }
+                lastErrors.addLast(error);
+            }
+        }
+
+        DeadLetterReplayStatus status() {
+            DeadLetterReplayStatus.State current = state;
+            if (current == DeadLetterReplayStatus.State.RUNNING && stopRequested) {
+                current = DeadLetterReplayStatus.State.STOPPING;
+            }
+            Map<String, Long> checkpointCopy;
+            synchronized (checkpoint) {
+                checkpointCopy = new LinkedHashMap<>(checkpoint);
+            }
+            List<String> errors;
+            synchronized (lastErrors) {
+                errors = new ArrayList<>(lastErrors);
+            }
+            return new DeadLetterReplayStatus(current, mode, filterDescription, ratePerSecond, parallelism, startedAt,
+                    finishedAt, scanned.get(), matched.get(), replayed.get(), failed.get(), checkpointGroup, checkpointCopy, errors);
+        }
+    }
+
+    private static boolean exceptionMatches(Headers headers, String exceptionClass) {
+        return exceptionMatches(headers.lastHeader(KafkaHeaders.DLT_EXCEPTION_FQCN), exceptionClass)
+                || exceptionMatches(headers.lastHeader(KafkaHeaders.DLT_EXCEPTION_CAUSE_FQCN), exceptionClass);
+    }
+
+    private static boolean exceptionMatches(Header header, String exceptionClass) {
+        if (header == null || header.value() == null) {
+            return false;
+        }
+        String fqcn = new String(header.value(), StandardCharsets.UTF_8);
+        return fqcn.equals(exceptionClass) || fqcn.endsWith("." + exceptionClass);
+    }
+
+    // the original headers, without what the recoverer added : a record failing again gets fresh ones
+    private static Headers republishedHeaders(Headers headers) {
+        RecordHeaders republished = new RecordHeaders();
+        for (Header header : headers) {
+            if (!header.key().startsWith("kafka_dlt-") && !header.key().equals(LibraryEventRetryTiers.NOT_BEFORE)) {
+                republished.add(header);
+            }
+        }
+        return republished;
+    }
+}
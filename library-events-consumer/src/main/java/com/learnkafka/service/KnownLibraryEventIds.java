@@ -0,0 +1,164 @@
+package com.learnkafka.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The libraryEventIds in the database, as a compressed bitmap, so UPDATE events are validated without a query.
+ * Sequence ids are dense, they end up in run containers of a few bytes per 65536 ids.
+ * <p>
+ * The bitmap is built after startup with a streaming scan of the ids, and every saved NEW event is added to it. A
+ * known id is certain, the application never deletes library events, and a miss is certain once the scan is done.
+ * That only holds if this consumer is the only one inserting library events, so the index exists only with
+ * {@code library-events.consumer.known-ids.authoritative=true}. Otherwise a miss would still need the database and
+ * the scan would be pure cost.
+ * <p>
+ * Cardinality, size and build time are published as {@code library.events.consumer.known.ids*} meters.
+ */
+@Component
+@ConditionalOnProperty(name = "library-events.consumer.known-ids.authoritative", havingValue = "true")
+@Slf4j
+public class KnownLibraryEventIds {
+
+    private static final String SCAN = "SELECT library_event_id FROM library_event";
+
+    private static final int CHUNK = 4096;
+
+    private final RoaringBitmap ids = new RoaringBitmap();
+
+    // concurrent contains, the scan and the listener threads add under the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Timer buildTimer;
+
+    private volatile boolean built;
+
+    public KnownLibraryEventIds(DataSource dataSource, PlatformTransactionManager transactionManager, MeterRegistry registry,
+                                @Value("${library-events.consumer.known-ids.fetch-size:10000}") int fetchSize) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        // Postgres only streams a result set inside a transaction
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+
+        Gauge.builder("library.events.consumer.known.ids", this, index -> index.cardinality())
+                .description("libraryEventIds in the in memory index")
+                .register(registry);
+        Gauge.builder("library.events.consumer.known.ids.bytes", this, index -> index.sizeInBytes())
+                .description("Size of the in memory index of libraryEventIds")
+                .baseUnit("bytes")
+                .register(registry);
+        this.buildTimer = Timer.builder("library.events.consumer.known.ids.build")
+                .description("Time to scan the libraryEventIds into the in memory index")
+                .register(registry);
+    }
+
+    /**
+     * @return true if the library event exists, false if it does not, null until the scan is done
+     */
+    public Boolean contains(int libraryEventId) {
+        lock.readLock().lock();
+        try {
+            if (ids.contains(libraryEventId)) {
+                return Boolean.TRUE;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return built ? Boolean.FALSE : null;
+    }
+
+    public void add(int libraryEventId) {
+        lock.writeLock().lock();
+        try {
+            ids.add(libraryEventId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // listeners are running already, until the scan is done they take the database path
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBuild() {
+        Thread thread = new Thread(this::build, "known-library-event-ids");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void build() {
+        long start = System.nanoTime();
+        try {
+            int[] chunk = new int[CHUNK];
+            int[] size = {0};
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(SCAN, resultSet -> {
+                chunk[size[0]++] = resultSet.getInt(1);
+                if (size[0] == CHUNK) {
+                    addAll(chunk, CHUNK);
+                    size[0] = 0;
+                }
+            }));
+            addAll(chunk, size[0]);
+        } catch (RuntimeException e) {
+            log.warn("Could not index the libraryEventIds, UPDATE events are validated by the database : {}", e.getMessage());
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            ids.runOptimize();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        built = true;
+        long nanos = System.nanoTime() - start;
+        buildTimer.record(nanos, TimeUnit.NANOSECONDS);
+        log.info("Indexed {} libraryEventIds in {} ms, {} bytes", cardinality(), TimeUnit.NANOSECONDS.toMillis(nanos), sizeInBytes());
+    }
+
+    private void addAll(int[] chunk, int size) {
+        lock.writeLock().lock();
+        try {
+            ids.addN(chunk, 0, size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long cardinality() {
+        lock.readLock().lock();
+        try {
+            return ids.getLongCardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            return ids.getLongSizeInBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
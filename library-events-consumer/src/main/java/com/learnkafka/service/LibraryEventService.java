@@ -1,34 +1,57 @@
 package com.learnkafka.service;
 
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.diagnostics.LibraryEventLatencyMetrics;
 import com.learnkafka.entity.LibraryEvent;
 import com.learnkafka.entity.LibraryEventType;
 import com.learnkafka.jpa.LibraryEventRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.kafka.listener.BatchListenerFailedException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 public class LibraryEventService  {
 
-    @Autowired
-    ObjectMapper objectMapper;
-
     private final LibraryEventRepository libraryEventRepository;
 
-    public LibraryEventService(LibraryEventRepository libraryEventRepository) {
+    private final FlightRecorder flightRecorder;
+
+    private final LibraryEventLatencyMetrics latencyMetrics;
+
+    private final TransactionTemplate transactionTemplate;
+
+    // null unless the index is authoritative, the database decides then
+    private final KnownLibraryEventIds knownLibraryEventIds;
+
+    public LibraryEventService(LibraryEventRepository libraryEventRepository, FlightRecorder flightRecorder,
+                               LibraryEventLatencyMetrics latencyMetrics, PlatformTransactionManager transactionManager,
+                               ObjectProvider<KnownLibraryEventIds> knownLibraryEventIds) {
         this.libraryEventRepository = libraryEventRepository;
+        this.flightRecorder = flightRecorder;
+        this.latencyMetrics = latencyMetrics;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.knownLibraryEventIds = knownLibraryEventIds.getIfAvailable();
     }
 
-    public void processLibraryEvent(ConsumerRecord<Integer,String> consumerRecord) throws JsonProcessingException {
+    public void processLibraryEvent(ConsumerRecord<Integer,LibraryEvent> consumerRecord) {
 
-        LibraryEvent libraryEvent = objectMapper.readValue(consumerRecord.value(), LibraryEvent.class);
-        log.info("libraryEvent : {} ", libraryEvent);
+        // decoded by LibraryEventDeserializer from JSON or binary, see the content-type header
+        LibraryEvent libraryEvent = consumerRecord.value();
+        log.debug("libraryEvent : {} ", libraryEvent);
 
         temporyNetworkIssue(libraryEvent);
 
@@ -36,34 +59,144 @@ public class LibraryEventService  {
             save(libraryEvent);
         }
         else {
-            validate(libraryEvent);
-            save(libraryEvent);
+            update(libraryEvent);
         }
+        latencyMetrics.persisted(consumerRecord);
 
 
     }
 
+    /**
+     * Persists the records of a poll in one transaction : the UPDATE targets are loaded with a single select, and
+     * the inserts and updates of the whole batch go out as JDBC batches on commit.
+     * <p>
+     * The records before the first invalid one are committed and the invalid one is reported with a
+     * {@link BatchListenerFailedException}, the error handler sends it to retry / DLT and the records after it are
+     * polled again. If the database rejects the batch, the records are saved one by one to find the failing one.
+     */
+    public void processLibraryEvents(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords) {
+
+        BatchListenerFailedException failure;
+        List<Integer> savedIds = new ArrayList<>(consumerRecords.size());
+        try {
+            failure = transactionTemplate.execute(status -> saveValidPrefix(consumerRecords, savedIds));
+        } catch (DataAccessException | TransactionException e) {
+            log.warn("Batch of {} library events rejected by the database, saving them one by one : {}", consumerRecords.size(), e.getMessage());
+            processOneByOne(consumerRecords);
+            return;
+        }
+
+        int persisted = failure == null ? consumerRecords.size() : failure.getIndex();
+        for (int i = 0; i < persisted; i++) {
+            ConsumerRecord<Integer, LibraryEvent> consumerRecord = consumerRecords.get(i);
+            remember(savedIds.get(i));
+            flightRecorder.record("service.persisted", savedIds.get(i), consumerRecord.partition(), consumerRecord.offset(), null);
+            latencyMetrics.persisted(consumerRecord);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // savedIds : the ids of the saved entities in record order, a NEW event gets its id from the sequence, whatever it carried
+    private BatchListenerFailedException saveValidPrefix(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords, List<Integer> savedIds) {
+
+        Set<Integer> updateIds = consumerRecords.stream()
+                .map(ConsumerRecord::value)
+                .filter(libraryEvent -> libraryEvent != null && libraryEvent.getLibraryEventType() != LibraryEventType.NEW
+                        && libraryEvent.getLibraryEventId() != null)
+                .map(LibraryEvent::getLibraryEventId)
+                // ids the index knows are missing fail the check without being looked up
+                .filter(libraryEventId -> !Boolean.FALSE.equals(known(libraryEventId)))
+                .collect(Collectors.toSet());
+        // loaded into the persistence context, the merges below find them there
+        Set<Integer> existingIds = updateIds.isEmpty() ? Set.of() : libraryEventRepository.findAllWithBook(updateIds).stream()
+                .map(LibraryEvent::getLibraryEventId)
+                .collect(Collectors.toSet());
+
+        List<LibraryEvent> libraryEvents = new ArrayList<>(consumerRecords.size());
+        BatchListenerFailedException failure = null;
+        for (int i = 0; i < consumerRecords.size(); i++) {
+            LibraryEvent libraryEvent = consumerRecords.get(i).value();
+            try {
+                check(libraryEvent, existingIds);
+                libraryEvent.getBook().setLibraryEvent(libraryEvent);
+            } catch (RuntimeException e) {
+                failure = new BatchListenerFailedException(e.getMessage(), e, i);
+                break;
+            }
+            libraryEvents.add(libraryEvent);
+        }
+        libraryEventRepository.saveAll(libraryEvents).forEach(saved -> savedIds.add(saved.getLibraryEventId()));
+        return failure;
+    }
+
+    // the checks of processLibraryEvent, against the ids loaded for the batch
+    private static void check(LibraryEvent libraryEvent, Set<Integer> existingIds) {
+        if (libraryEvent == null) {
+            throw new IllegalArgumentException("Library Event could not be deserialized");
+        }
+        temporyNetworkIssue(libraryEvent);
+        if (libraryEvent.getLibraryEventType() == LibraryEventType.NEW) {
+            return;
+        }
+        if (libraryEvent.getLibraryEventId() == null) {
+            throw new IllegalArgumentException("Library Event Id is missing");
+        }
+        if (!existingIds.contains(libraryEvent.getLibraryEventId())) {
+            throw new IllegalArgumentException("Not a valid Library Event");
+        }
+    }
+
+    private void processOneByOne(List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords) {
+        for (int i = 0; i < consumerRecords.size(); i++) {
+            try {
+                processLibraryEvent(consumerRecords.get(i));
+            } catch (RuntimeException e) {
+                throw new BatchListenerFailedException(e.getMessage(), e, i);
+            }
+        }
+    }
+
     private static void temporyNetworkIssue(LibraryEvent libraryEvent) {
-        if(libraryEvent !=null && libraryEvent.getLibraryEventId() == 999){
+        if(libraryEvent !=null && Integer.valueOf(999).equals(libraryEvent.getLibraryEventId())){
             throw new RecoverableDataAccessException("Temporary Network Issue");
         }
     }
 
     private void save(LibraryEvent libraryEvent) {
         libraryEvent.getBook().setLibraryEvent(libraryEvent);
-        libraryEventRepository.save(libraryEvent);
-        log.info("Successfully Persisted the library Event {} ", libraryEvent);
+        // the id of the saved entity : a NEW event gets one from the sequence, whatever the client sent
+        LibraryEvent saved = libraryEventRepository.save(libraryEvent);
+        remember(saved.getLibraryEventId());
+        flightRecorder.record("service.persisted", saved.getLibraryEventId(), null, null, saved);
+        log.debug("Successfully Persisted the library Event {} ", libraryEvent);
     }
 
-    private void validate(LibraryEvent libraryEvent) {
+    private void update(LibraryEvent libraryEvent) {
         if(libraryEvent.getLibraryEventId() == null){
             throw new IllegalArgumentException("Library Event Id is missing");
         }
 
-        libraryEventRepository.findById(libraryEvent.getLibraryEventId())
-                        .orElseThrow(()-> new IllegalArgumentException("Not a valid Library Event"));
+        // decided in memory when the index is sure, otherwise the upsert tells : no row written means no such library event
+        Boolean known = known(libraryEvent.getLibraryEventId());
+        if (Boolean.FALSE.equals(known) || !libraryEventRepository.updateIfExists(libraryEvent)) {
+            throw new IllegalArgumentException("Not a valid Library Event");
+        }
+        if (known == null) {
+            remember(libraryEvent.getLibraryEventId());
+        }
+        flightRecorder.record("service.persisted", libraryEvent.getLibraryEventId(), null, null, libraryEvent);
+        log.debug("Successfully Persisted the library Event {} ", libraryEvent);
+    }
+
+    private Boolean known(int libraryEventId) {
+        return knownLibraryEventIds == null ? null : knownLibraryEventIds.contains(libraryEventId);
+    }
 
-        log.info("Validation is successful for the library event {} ", libraryEvent);
-        save(libraryEvent);
+    private void remember(int libraryEventId) {
+        if (knownLibraryEventIds != null) {
+            knownLibraryEventIds.add(libraryEventId);
+        }
     }
 }
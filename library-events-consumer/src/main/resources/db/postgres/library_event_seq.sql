@@ -0,0 +1,13 @@
+-- LibraryEvent ids used to come from hibernate_sequence (@GeneratedValue with the AUTO strategy), they now come
+-- from library_event_seq with allocationSize 50. Run this once against an existing database, before the first start
+-- of the new version : generate-ddl would otherwise create library_event_seq starting at 1, and the first NEW events
+-- would collide with existing rows.
+--
+-- INCREMENT BY must match allocationSize. The pooled optimizer treats a value it reads as the top of a block of 50,
+-- the ids handed out are value - 49 .. value, so the first value is max(id) + 50 and the first id max(id) + 1.
+DO $$
+BEGIN
+    EXECUTE format('CREATE SEQUENCE IF NOT EXISTS library_event_seq START WITH %s INCREMENT BY 50',
+                   (SELECT COALESCE(MAX(library_event_id), 0) + 50 FROM library_event));
+END
+$$;
@@ -0,0 +1,145 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.config.LibraryEventRetryTiers;
+import com.learnkafka.jpa.LibraryEventRepository;
+import com.learnkafka.service.LibraryEventService;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.IntegerDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-10s","library-events.retry-1m","library-events.DLT"},partitions = 1)
+@TestPropertySource(properties = {
+        "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
+        "spring.datasource.url=jdbc:h2:mem:batchtest",
+        "retryListener.startup=false",
+        "library-events.consumer.batch.enabled=true"
+})
+public class LibraryEventsBatchConsumerIntegrationTest {
+
+    @Autowired
+    EmbeddedKafkaBroker embeddedKafkaBroker;
+
+    @Autowired
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    @Autowired
+    KafkaListenerEndpointRegistry endpointRegistry;
+
+    @SpyBean(LibraryEventService.class)
+    LibraryEventService libraryEventsServiceSpy;
+
+    @Autowired
+    LibraryEventRepository libraryEventsRepository;
+
+    @Autowired
+    LibraryEventRetryTiers retryTiers;
+
+    @Value("${topics.dlt}")
+    private String deadLetterTopic;
+
+    @BeforeEach
+    void setUp() {
+
+        for (MessageListenerContainer container : endpointRegistry.getListenerContainers()) {
+            if (Objects.equals(container.getGroupId(), "lbrary-events-listener-group")) {
+                ContainerTestUtils.waitForAssignment(container, embeddedKafkaBroker.getPartitionsPerTopic());
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        libraryEventsRepository.deleteAll();
+    }
+
+    @Test
+    void publishBatch_invalidUpdateInTheMiddle() throws Exception {
+
+        //given
+        String update = "{\"libraryEventId\":123,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":456,\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+        for (int i = 0; i < 6; i++) {
+            String json = i == 3 ? update
+                    : "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":" + (500 + i) + ",\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+            kafkaTemplate.sendDefault(json);
+        }
+        kafkaTemplate.flush();
+
+        //when
+        Map<String, Object> configs = new HashMap<>(KafkaTestUtils.consumerProps("group1", "true", embeddedKafkaBroker));
+        Consumer<Integer, String> consumer = new DefaultKafkaConsumerFactory<>(configs, new IntegerDeserializer(), new StringDeserializer()).createConsumer();
+        embeddedKafkaBroker.consumeFromAnEmbeddedTopic(consumer, deadLetterTopic);
+        ConsumerRecord<Integer, String> deadLetter = KafkaTestUtils.getSingleRecord(consumer, deadLetterTopic, Duration.ofSeconds(30).toMillis());
+        consumer.close();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (libraryEventsRepository.count() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        //then
+        assertTrue(deadLetter.value().contains("\"libraryEventId\":123"), deadLetter.value());
+        assertEquals(5, libraryEventsRepository.count());
+        verify(libraryEventsServiceSpy, atLeastOnce()).processLibraryEvents(anyList());
+    }
+
+    @Test
+    void publishBatch_recoverableFailureGoesToTheFirstRetryTier() throws Exception {
+
+        //given
+        String update = "{\"libraryEventId\":999,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":456,\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+        for (int i = 0; i < 6; i++) {
+            String json = i == 2 ? update
+                    : "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":" + (600 + i) + ",\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+            kafkaTemplate.sendDefault(json);
+        }
+        kafkaTemplate.flush();
+
+        //when
+        Map<String, Object> configs = new HashMap<>(KafkaTestUtils.consumerProps("group2", "true", embeddedKafkaBroker));
+        Consumer<Integer, String> consumer = new DefaultKafkaConsumerFactory<>(configs, new IntegerDeserializer(), new StringDeserializer()).createConsumer();
+        embeddedKafkaBroker.consumeFromAnEmbeddedTopic(consumer, retryTiers.getTopics()[0]);
+        ConsumerRecord<Integer, String> retried = KafkaTestUtils.getSingleRecord(consumer, retryTiers.getTopics()[0], Duration.ofSeconds(30).toMillis());
+        consumer.close();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (libraryEventsRepository.count() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        //then : the batch failure is unwrapped down to the RecoverableDataAccessException
+        assertEquals(update, retried.value());
+        assertTrue(LibraryEventRetryTiers.notBefore(retried.headers()) > retried.timestamp());
+        assertEquals(5, libraryEventsRepository.count());
+    }
+}
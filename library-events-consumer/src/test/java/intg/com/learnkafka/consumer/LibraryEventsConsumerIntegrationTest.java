@@ -2,6 +2,7 @@ package com.learnkafka.consumer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.config.LibraryEventRetryTiers;
 import com.learnkafka.entity.Book;
 import com.learnkafka.entity.LibraryEvent;
 import com.learnkafka.entity.LibraryEventType;
@@ -22,12 +23,14 @@ import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.kafka.test.EmbeddedKafkaBroker;
 import org.springframework.kafka.test.context.EmbeddedKafka;
 import org.springframework.kafka.test.utils.ContainerTestUtils;
 import org.springframework.kafka.test.utils.KafkaTestUtils;
 import org.springframework.test.context.TestPropertySource;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,14 +41,16 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 @SpringBootTest
-@EmbeddedKafka(topics = {"library-events","library-events.RETRY","library-events.DLT"},partitions = 1)
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-10s","library-events.retry-1m","library-events.DLT"},partitions = 1)
 @TestPropertySource(properties = {
         "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
         "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
         "retryListener.startup=false"
 })
@@ -76,8 +81,8 @@ public class LibraryEventsConsumerIntegrationTest {
 
     private Consumer<Integer,String> consumer;
 
-    @Value("${topics.retry}")
-    private String retryTopic;
+    @Autowired
+    LibraryEventRetryTiers retryTiers;
 
     @Value("${topics.dlt}")
     private String deadLetterTopic;
@@ -86,7 +91,7 @@ public class LibraryEventsConsumerIntegrationTest {
     void setUp() {
 
         MessageListenerContainer container = endpointRegistry.getListenerContainers().stream()
-                .filter(messageListenerContainer -> Objects.equals(messageListenerContainer.getGroupId(), "library-events-listener-group"))
+                .filter(messageListenerContainer -> Objects.equals(messageListenerContainer.getGroupId(), "lbrary-events-listener-group"))
                 .collect(Collectors.toList()).get(0);
 
         ContainerTestUtils.waitForAssignment(container,embeddedKafkaBroker.getPartitionsPerTopic());
@@ -165,8 +170,21 @@ public class LibraryEventsConsumerIntegrationTest {
         latch.await(5, TimeUnit.SECONDS);
 
         //then
-        verify(libraryEventsConsumerSpy, times(10)).onMessage(isA(ConsumerRecord.class));
-        verify(libraryEventsServiceSpy, times(10)).processLibraryEvent(isA(ConsumerRecord.class));
+        verify(libraryEventsConsumerSpy, times(1)).onMessage(isA(ConsumerRecord.class));
+        verify(libraryEventsServiceSpy, times(1)).processLibraryEvent(isA(ConsumerRecord.class));
+
+        // no row updated : not a valid library event, not retried, straight to the DLT
+        Map<String,Object> configs = new HashMap<>(KafkaTestUtils.consumerProps("dlt-group","true",embeddedKafkaBroker));
+        consumer = new DefaultKafkaConsumerFactory<>(configs,new IntegerDeserializer(),new StringDeserializer()).createConsumer();
+        embeddedKafkaBroker.consumeFromAnEmbeddedTopic(consumer,deadLetterTopic);
+
+        ConsumerRecord<Integer, String> deadLetter = KafkaTestUtils.getSingleRecord(consumer, deadLetterTopic);
+        assertEquals(json, deadLetter.value());
+        assertEquals(IllegalArgumentException.class.getName(),
+                new String(deadLetter.headers().lastHeader(KafkaHeaders.DLT_EXCEPTION_CAUSE_FQCN).value(), StandardCharsets.UTF_8));
+        assertTrue(new String(deadLetter.headers().lastHeader(KafkaHeaders.DLT_EXCEPTION_MESSAGE).value(), StandardCharsets.UTF_8)
+                .contains("Not a valid Library Event"));
+        assertEquals(0, libraryEventsRepository.count());
     }
 
     @Test
@@ -197,10 +215,10 @@ public class LibraryEventsConsumerIntegrationTest {
         latch.await(5, TimeUnit.SECONDS);
 
         //then
-        verify(libraryEventsConsumerSpy, times(3)).onMessage(isA(ConsumerRecord.class));
-        verify(libraryEventsServiceSpy, times(3)).processLibraryEvent(isA(ConsumerRecord.class));
-
+        verify(libraryEventsConsumerSpy, times(1)).onMessage(isA(ConsumerRecord.class));
+        verify(libraryEventsServiceSpy, times(1)).processLibraryEvent(isA(ConsumerRecord.class));
 
+        String retryTopic = retryTiers.getTopics()[0];
 
         Map<String,Object> configs = new HashMap<>(KafkaTestUtils.consumerProps("group1","true",embeddedKafkaBroker));
         consumer = new DefaultKafkaConsumerFactory<>(configs,new IntegerDeserializer(),new StringDeserializer()).createConsumer();
@@ -210,6 +228,7 @@ public class LibraryEventsConsumerIntegrationTest {
 
         System.out.println("consumerRecord is " + consumerRecord.value());
         assertEquals(json,consumerRecord.value());
+        assertTrue(LibraryEventRetryTiers.notBefore(consumerRecord.headers()) > consumerRecord.timestamp());
     }
 
 
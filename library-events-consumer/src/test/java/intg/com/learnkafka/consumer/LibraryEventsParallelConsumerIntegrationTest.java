@@ -0,0 +1,126 @@
+package com.learnkafka.consumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.entity.LibraryEventType;
+import com.learnkafka.jpa.LibraryEventRepository;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.serialization.IntegerDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-10s","library-events.retry-1m","library-events.DLT"},partitions = 1)
+@TestPropertySource(properties = {
+        "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
+        "spring.datasource.url=jdbc:h2:mem:paralleltest",
+        "retryListener.startup=false",
+        "library-events.consumer.parallel.enabled=true",
+        "library-events.consumer.parallel.workers=4"
+})
+public class LibraryEventsParallelConsumerIntegrationTest {
+
+    @Autowired
+    EmbeddedKafkaBroker embeddedKafkaBroker;
+
+    @Autowired
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    @Autowired
+    KafkaListenerEndpointRegistry endpointRegistry;
+
+    @Autowired
+    LibraryEventRepository libraryEventsRepository;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Value("${topics.dlt}")
+    private String deadLetterTopic;
+
+    @BeforeEach
+    void setUp() {
+
+        for (MessageListenerContainer container : endpointRegistry.getListenerContainers()) {
+            if (Objects.equals(container.getGroupId(), "lbrary-events-listener-group")) {
+                ContainerTestUtils.waitForAssignment(container, embeddedKafkaBroker.getPartitionsPerTopic());
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        libraryEventsRepository.deleteAll();
+    }
+
+    @Test
+    void publishUpdates_keyOrderKeptAcrossLanes() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":456,\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+        LibraryEvent libraryEvent = objectMapper.readValue(json, LibraryEvent.class);
+        libraryEvent.getBook().setLibraryEvent(libraryEvent);
+        libraryEventsRepository.save(libraryEvent);
+        libraryEvent.setLibraryEventType(LibraryEventType.UPDATE);
+
+        int sent = 0;
+        for (int i = 1; i <= 20; i++) {
+            libraryEvent.setBook(Book.builder().bookId(456).bookName("Kafka Using Spring Boot " + i).bookAuthor("Dilip").build());
+            kafkaTemplate.sendDefault(libraryEvent.getLibraryEventId(), objectMapper.writeValueAsString(libraryEvent));
+            String newEvent = "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":" + (600 + i) + ",\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+            kafkaTemplate.sendDefault(newEvent);
+            sent += 2;
+        }
+        kafkaTemplate.sendDefault(123, "{\"libraryEventId\":123,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":789,\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}");
+        sent++;
+        kafkaTemplate.flush();
+
+        //when
+        Map<String, Object> configs = new HashMap<>(KafkaTestUtils.consumerProps("group1", "true", embeddedKafkaBroker));
+        Consumer<Integer, String> consumer = new DefaultKafkaConsumerFactory<>(configs, new IntegerDeserializer(), new StringDeserializer()).createConsumer();
+        embeddedKafkaBroker.consumeFromAnEmbeddedTopic(consumer, deadLetterTopic);
+        ConsumerRecord<Integer, String> deadLetter = KafkaTestUtils.getSingleRecord(consumer, deadLetterTopic, Duration.ofSeconds(30).toMillis());
+        consumer.close();
+
+        OffsetAndMetadata committed = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((committed == null || committed.offset() < sent) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            committed = KafkaTestUtils.getCurrentOffset(embeddedKafkaBroker.getBrokersAsString(), "lbrary-events-listener-group", "library-events", 0);
+        }
+
+        //then
+        assertTrue(deadLetter.value().contains("\"libraryEventId\":123"), deadLetter.value());
+        assertEquals(sent, committed.offset());
+        assertEquals(21, libraryEventsRepository.count());
+        LibraryEvent persistedLibraryEvent = libraryEventsRepository.findById(libraryEvent.getLibraryEventId()).get();
+        assertEquals("Kafka Using Spring Boot 20", persistedLibraryEvent.getBook().getBookName());
+    }
+}
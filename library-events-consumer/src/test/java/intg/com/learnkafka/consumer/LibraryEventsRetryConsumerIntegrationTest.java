@@ -0,0 +1,110 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.jpa.LibraryEventRepository;
+import com.learnkafka.service.LibraryEventService;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.IntegerDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-2s","library-events.DLT"},partitions = 1)
+@TestPropertySource(properties = {
+        "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
+        "spring.datasource.url=jdbc:h2:mem:retrytest",
+        "topics.retry-tiers=1s,2s"
+})
+public class LibraryEventsRetryConsumerIntegrationTest {
+
+    @Autowired
+    EmbeddedKafkaBroker embeddedKafkaBroker;
+
+    @Autowired
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    @Autowired
+    KafkaListenerEndpointRegistry endpointRegistry;
+
+    @SpyBean(LibraryEventService.class)
+    LibraryEventService libraryEventsServiceSpy;
+
+    @Autowired
+    LibraryEventRepository libraryEventsRepository;
+
+    @Value("${topics.dlt}")
+    private String deadLetterTopic;
+
+    @BeforeEach
+    void setUp() {
+
+        ContainerTestUtils.waitForAssignment(endpointRegistry.getListenerContainer(LibraryEventsConsumer.LISTENER_ID),
+                embeddedKafkaBroker.getPartitionsPerTopic());
+        ContainerTestUtils.waitForAssignment(endpointRegistry.getListenerContainer(LibraryEventsRetryConsumer.LISTENER_ID),
+                2 * embeddedKafkaBroker.getPartitionsPerTopic());
+    }
+
+    @AfterEach
+    void tearDown() {
+        libraryEventsRepository.deleteAll();
+    }
+
+    @Test
+    void publishUpdateLibraryEvent_999_waitsInEachTierThenDeadLetter() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":999,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":456,\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+        String newEvent = "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":457,\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+        long sentAt = System.currentTimeMillis();
+        kafkaTemplate.sendDefault(json).get();
+        kafkaTemplate.sendDefault(newEvent).get();
+
+        //when
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (libraryEventsRepository.count() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        long savedAfter = System.currentTimeMillis() - sentAt;
+
+        Map<String, Object> configs = new HashMap<>(KafkaTestUtils.consumerProps("group1", "true", embeddedKafkaBroker));
+        Consumer<Integer, String> consumer = new DefaultKafkaConsumerFactory<>(configs, new IntegerDeserializer(), new StringDeserializer()).createConsumer();
+        embeddedKafkaBroker.consumeFromAnEmbeddedTopic(consumer, deadLetterTopic);
+        ConsumerRecord<Integer, String> deadLetter = KafkaTestUtils.getSingleRecord(consumer, deadLetterTopic, Duration.ofSeconds(30).toMillis());
+        consumer.close();
+        long deadLetteredAfter = System.currentTimeMillis() - sentAt;
+
+        //then
+        assertEquals(json, deadLetter.value());
+        assertEquals(1, libraryEventsRepository.count());
+        // the event behind the failing one was not held up by its retries
+        assertTrue(savedAfter < 1_000, "saved after " + savedAfter + " ms");
+        assertTrue(deadLetteredAfter >= 3_000, "dead lettered after " + deadLetteredAfter + " ms");
+        verify(libraryEventsServiceSpy, times(4)).processLibraryEvent(isA(ConsumerRecord.class));
+    }
+}
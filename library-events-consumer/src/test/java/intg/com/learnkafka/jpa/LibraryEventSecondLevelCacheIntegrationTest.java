@@ -0,0 +1,115 @@
+package com.learnkafka.jpa;
+
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.entity.LibraryEventType;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+@ActiveProfiles({"local", "l2cache"})
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-10s","library-events.retry-1m","library-events.DLT"},partitions = 1)
+@TestPropertySource(properties = {
+        "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
+        "spring.datasource.url=jdbc:h2:mem:l2cachetest",
+        "retryListener.startup=false"
+})
+public class LibraryEventSecondLevelCacheIntegrationTest {
+
+    @Autowired
+    LibraryEventRepository libraryEventsRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    LibraryEventCacheEviction cacheEviction;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @AfterEach
+    void tearDown() {
+        libraryEventsRepository.deleteAll();
+    }
+
+    @Test
+    void secondLevelCacheRequestsArePublished() {
+
+        //given
+        Integer libraryEventId = saveNew(901, "Kafka Using Spring Boot");
+
+        //when : each findById runs in its own session, the entity comes from the region
+        libraryEventsRepository.findById(libraryEventId);
+        libraryEventsRepository.findById(libraryEventId);
+
+        //then
+        FunctionCounter hits = meterRegistry.find("hibernate.second.level.cache.requests")
+                .tags("region", "library-event", "result", "hit")
+                .functionCounter();
+        assertNotNull(hits, "hibernate.second.level.cache.requests is not published");
+        assertTrue(hits.count() >= 1, "hits " + hits.count());
+    }
+
+    @Test
+    void updateIfExists_evictsWhatTheUpsertWrote() {
+
+        //given : the event and its book are cached
+        Integer libraryEventId = saveNew(902, "Kafka Using Spring Boot");
+        libraryEventsRepository.findById(libraryEventId);
+        assertTrue(entityManagerFactory.getCache().contains(LibraryEvent.class, libraryEventId));
+        LibraryEvent update = LibraryEvent.builder().libraryEventId(libraryEventId).libraryEventType(LibraryEventType.UPDATE)
+                .book(Book.builder().bookId(902).bookName("Kafka Using Spring Boot 2.x").bookAuthor("Dilip").build())
+                .build();
+
+        //when
+        libraryEventsRepository.updateIfExists(update);
+
+        //then
+        assertFalse(entityManagerFactory.getCache().contains(LibraryEvent.class, libraryEventId));
+        assertFalse(entityManagerFactory.getCache().contains(Book.class, 902));
+        LibraryEvent found = libraryEventsRepository.findById(libraryEventId).get();
+        assertEquals(LibraryEventType.UPDATE, found.getLibraryEventType());
+        assertEquals("Kafka Using Spring Boot 2.x", found.getBook().getBookName());
+    }
+
+    @Test
+    void onPartitionsAssigned_clearsBothRegions() {
+
+        //given
+        Integer libraryEventId = saveNew(903, "Kafka Using Spring Boot");
+        libraryEventsRepository.findById(libraryEventId);
+        assertTrue(entityManagerFactory.getCache().contains(LibraryEvent.class, libraryEventId));
+
+        //when
+        cacheEviction.onPartitionsAssigned(null, List.of(new TopicPartition("library-events", 0)));
+
+        //then
+        assertFalse(entityManagerFactory.getCache().contains(LibraryEvent.class, libraryEventId));
+        assertFalse(entityManagerFactory.getCache().contains(Book.class, 903));
+    }
+
+    private Integer saveNew(int bookId, String bookName) {
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventType(LibraryEventType.NEW).build();
+        libraryEvent.setBook(Book.builder().bookId(bookId).bookName(bookName).bookAuthor("Dilip").libraryEvent(libraryEvent).build());
+        return libraryEventsRepository.save(libraryEvent).getLibraryEventId();
+    }
+}
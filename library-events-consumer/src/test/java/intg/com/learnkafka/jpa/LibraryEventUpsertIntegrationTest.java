@@ -0,0 +1,81 @@
+package com.learnkafka.jpa;
+
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.entity.LibraryEventType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-10s","library-events.retry-1m","library-events.DLT"},partitions = 1)
+@TestPropertySource(properties = {
+        "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
+        "spring.datasource.url=jdbc:h2:mem:upserttest",
+        "retryListener.startup=false"
+})
+public class LibraryEventUpsertIntegrationTest {
+
+    @Autowired
+    LibraryEventRepository libraryEventsRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        libraryEventsRepository.deleteAll();
+    }
+
+    @Test
+    void updateIfExists_existingLibraryEvent_updatesTheEventAndTheBook() {
+
+        //given
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventType(LibraryEventType.NEW).build();
+        libraryEvent.setBook(Book.builder().bookId(902).bookName("Kafka Using Spring Boot").bookAuthor("Dilip").libraryEvent(libraryEvent).build());
+        Integer libraryEventId = libraryEventsRepository.save(libraryEvent).getLibraryEventId();
+
+        LibraryEvent update = LibraryEvent.builder().libraryEventId(libraryEventId).libraryEventType(LibraryEventType.UPDATE)
+                .book(Book.builder().bookId(902).bookName("Kafka Using Spring Boot 2.x").bookAuthor("Dilip").build())
+                .build();
+
+        //when
+        boolean updated = libraryEventsRepository.updateIfExists(update);
+
+        //then : read with plain sql, the statements bypassed the persistence context
+        assertTrue(updated);
+        assertEquals("UPDATE", jdbcTemplate.queryForObject(
+                "SELECT library_event_type FROM library_event WHERE library_event_id = ?", String.class, libraryEventId));
+        assertEquals("Kafka Using Spring Boot 2.x", jdbcTemplate.queryForObject(
+                "SELECT book_name FROM book WHERE book_id = 902", String.class));
+        assertEquals(libraryEventId, jdbcTemplate.queryForObject(
+                "SELECT library_event_id FROM book WHERE book_id = 902", Integer.class));
+        assertEquals("Kafka Using Spring Boot 2.x", libraryEventsRepository.findById(libraryEventId).get().getBook().getBookName());
+    }
+
+    @Test
+    void updateIfExists_unknownLibraryEvent_writesNothing() {
+
+        //given
+        LibraryEvent update = LibraryEvent.builder().libraryEventId(123).libraryEventType(LibraryEventType.UPDATE)
+                .book(Book.builder().bookId(903).bookName("Kafka Using Spring Boot").bookAuthor("Dilip").build())
+                .build();
+
+        //when
+        boolean updated = libraryEventsRepository.updateIfExists(update);
+
+        //then : no library event, no book either
+        assertFalse(updated);
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM book WHERE book_id = 903", Integer.class));
+    }
+}
@@ -0,0 +1,101 @@
+package com.learnkafka.replay;
+
+import com.learnkafka.jpa.LibraryEventRepository;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.test.context.TestPropertySource;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+@SpringBootTest
+@EmbeddedKafka(topics = {"library-events","library-events.retry-1s","library-events.retry-10s","library-events.retry-1m","library-events.DLT"},partitions = 1)
+@TestPropertySource(properties = {
+        "spring.kafka.producer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.consumer.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "spring.kafka.admin.properties.bootstrap.servers=${spring.embedded.kafka.brokers}",
+        "spring.datasource.url=jdbc:h2:mem:replaytest",
+        "retryListener.startup=false"
+})
+public class DeadLetterReplayerIntegrationTest {
+
+    @Autowired
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    @Autowired
+    DeadLetterReplayer replayer;
+
+    @Autowired
+    LibraryEventRepository libraryEventsRepository;
+
+    @Value("${topics.dlt}")
+    private String deadLetterTopic;
+
+    @AfterEach
+    void tearDown() {
+        libraryEventsRepository.deleteAll();
+    }
+
+    @Test
+    void replayRecoverableFailures_fromCheckpoint() throws Exception {
+
+        //given
+        for (int i = 0; i < 4; i++) {
+            String json = "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":" + (700 + i) + ",\"bookName\":\"Kafka Using Spring Boot\",\"bookAuthor\":\"Dilip\"}}";
+            Class<?> cause = i == 2 ? IllegalArgumentException.class : RecoverableDataAccessException.class;
+            ProducerRecord<Integer, String> deadLetter = new ProducerRecord<>(deadLetterTopic, 0, null, json);
+            deadLetter.headers().add(new RecordHeader(KafkaHeaders.DLT_EXCEPTION_CAUSE_FQCN, cause.getName().getBytes(StandardCharsets.UTF_8)));
+            kafkaTemplate.send(deadLetter).get();
+        }
+
+        //when
+        DeadLetterReplayStatus first = replay("RecoverableDataAccessException", null);
+        long savedByFirst = libraryEventsRepository.count();
+        DeadLetterReplayStatus second = replay("RecoverableDataAccessException", null);
+        DeadLetterReplayStatus otherFilter = replay("IllegalArgumentException", null);
+        DeadLetterReplayStatus explicitFrom = replay("RecoverableDataAccessException", Instant.EPOCH);
+
+        //then
+        assertEquals(DeadLetterReplayStatus.State.COMPLETED, first.getState());
+        assertEquals(4, first.getScanned());
+        assertEquals(3, first.getReplayed());
+        assertEquals(0, first.getFailed());
+        assertEquals(Map.of(deadLetterTopic + "-0", 4L), first.getCheckpoint());
+        assertEquals(3, savedByFirst);
+        // picked up at the checkpoint, nothing left
+        assertEquals(DeadLetterReplayStatus.State.COMPLETED, second.getState());
+        assertEquals(0, second.getScanned());
+        // another filter has a checkpoint of its own, it does not start where the first one stopped
+        assertEquals(4, otherFilter.getScanned());
+        assertEquals(1, otherFilter.getReplayed());
+        assertEquals(first.getCheckpointGroup(), second.getCheckpointGroup());
+        assertNotEquals(first.getCheckpointGroup(), otherFilter.getCheckpointGroup());
+        // from wins over the checkpoint : the records replayed by the first run are matched again
+        assertEquals(4, explicitFrom.getScanned());
+        assertEquals(3, explicitFrom.getMatched());
+    }
+
+    private DeadLetterReplayStatus replay(String exceptionClass, Instant from) throws InterruptedException {
+        DeadLetterReplayStatus status = replayer.start(DeadLetterReplayer.Mode.PROCESS, exceptionClass, from, null,
+                null, 50.0, 2, true);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (status.getState() == DeadLetterReplayStatus.State.RUNNING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            status = replayer.status();
+        }
+        return status;
+    }
+}
@@ -0,0 +1,102 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.service.LibraryEventService;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class KeyOrderedDispatcherUnitTest {
+
+    LibraryEventService libraryEventService = mock(LibraryEventService.class);
+
+    DeadLetterPublishingRecoverer recoverer = mock(DeadLetterPublishingRecoverer.class);
+
+    Consumer<?, ?> consumer = mock(Consumer.class);
+
+    // library event 1 on lane 1, library event 2 on lane 0
+    KeyOrderedDispatcher dispatcher = new KeyOrderedDispatcher(libraryEventService, recoverer, 2, 1000);
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.destroy();
+    }
+
+    @Test
+    void dispatch_unrecoverableFailure_skipsThePartitionAndDoesNotRedoTheDoneRecords() throws Exception {
+
+        //given : 0 fails once it saw 1 done, 2 is the same library event as 0
+        ConsumerRecord<Integer, LibraryEvent> first = consumerRecord(0, 1);
+        ConsumerRecord<Integer, LibraryEvent> other = consumerRecord(1, 2);
+        ConsumerRecord<Integer, LibraryEvent> sameEvent = consumerRecord(2, 1);
+        List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords = List.of(first, other, sameEvent);
+        CountDownLatch otherDone = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            otherDone.countDown();
+            return null;
+        }).when(libraryEventService).processLibraryEvent(other);
+        doAnswer(invocation -> {
+            otherDone.await(10, TimeUnit.SECONDS);
+            throw new IllegalStateException("database down");
+        }).when(libraryEventService).processLibraryEvent(first);
+        doThrow(new IllegalStateException("DLT down")).when(recoverer).accept(any(), any());
+
+        //when
+        BatchListenerFailedException failure = assertThrows(BatchListenerFailedException.class,
+                () -> dispatcher.dispatch(consumerRecords, consumer));
+
+        //then
+        assertEquals(0, failure.getIndex());
+        verify(libraryEventService, never()).processLibraryEvent(sameEvent);
+        verify(consumer, never()).commitSync(argThat((Map<TopicPartition, OffsetAndMetadata> offsets) -> !offsets.isEmpty()));
+
+        //when : the error handler seeks back to the failed record, which goes through this time
+        doAnswer(invocation -> null).when(libraryEventService).processLibraryEvent(first);
+        dispatcher.dispatch(consumerRecords, consumer);
+
+        //then
+        verify(libraryEventService, times(1)).processLibraryEvent(other);
+        verify(libraryEventService, times(1)).processLibraryEvent(sameEvent);
+        verify(consumer).commitSync(Map.of(new TopicPartition("library-events", 0), new OffsetAndMetadata(3)));
+    }
+
+    @Test
+    void dispatch_allDone_commitsAfterTheLast() throws Exception {
+
+        //given
+        List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords = List.of(consumerRecord(0, 1), consumerRecord(1, 2));
+
+        //when
+        dispatcher.dispatch(consumerRecords, consumer);
+
+        //then
+        verify(libraryEventService, times(2)).processLibraryEvent(any());
+        verify(consumer).commitSync(Map.of(new TopicPartition("library-events", 0), new OffsetAndMetadata(2)));
+    }
+
+    private static ConsumerRecord<Integer, LibraryEvent> consumerRecord(long offset, int libraryEventId) {
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventId(libraryEventId).build();
+        return new ConsumerRecord<>("library-events", 0, offset, libraryEventId, libraryEvent);
+    }
+}
@@ -0,0 +1,149 @@
+package com.learnkafka.consumer;
+
+import com.learnkafka.config.LibraryEventRetryTiers;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ListenerConcurrencyAutoscalerUnitTest {
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    ConcurrentMessageListenerContainer<?, ?> container = mock(ConcurrentMessageListenerContainer.class);
+
+    ListenerConcurrencyAutoscaler autoscaler;
+
+    ListenerConcurrencyAutoscaler.Listener listener;
+
+    List<Integer> restartedWith = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        ConsumerFactory<?, ?> consumerFactory = mock(ConsumerFactory.class);
+        when(consumerFactory.getConfigurationProperties()).thenReturn(Map.of(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092"));
+        // min 1, max 6, drain the lag in 60 s, at 75 % utilization, down after 3 low intervals
+        autoscaler = new ListenerConcurrencyAutoscaler(mock(KafkaListenerEndpointRegistry.class), registry, consumerFactory,
+                new LibraryEventRetryTiers(new String[]{"1s", "10s", "1m"}), 1, 6, 60, 0.75, 3) {
+            @Override
+            void restart(ConcurrentMessageListenerContainer<?, ?> container, int concurrency) {
+                restartedWith.add(concurrency);
+            }
+        };
+        listener = autoscaler.new Listener(LibraryEventsConsumer.LISTENER_ID, container);
+        when(container.getConcurrency()).thenReturn(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        autoscaler.destroy();
+    }
+
+    @Test
+    void desired_fromArrivalRateLagAndProcessingTime() {
+
+        //given : 10 ms per record
+        listener.secondsPerRecord = 0.01;
+
+        //when
+        int idle = desiredWithLag(0, 0);
+        int arrivalsOnly = desiredWithLag(0, 150);
+        int withLag = desiredWithLag(6_000, 150);
+
+        //then
+        assertEquals(1, idle);
+        // 150 records/s * 10 ms = 1.5 busy consumers / 0.75
+        assertEquals(2, arrivalsOnly);
+        // (150 + 6000 / 60) * 10 ms = 2.5 busy consumers / 0.75
+        assertEquals(4, withLag);
+    }
+
+    @Test
+    void desired_notMeasuredYet_pushesOnlyABacklog() {
+
+        //when
+        int backlog = desiredWithLag(500, 10);
+        int noBacklog = desiredWithLag(0, 10);
+
+        //then
+        assertEquals(3, backlog);
+        assertEquals(2, noBacklog);
+    }
+
+    @Test
+    void resize_upAtOnce_cappedByMaxAndPartitions() {
+
+        //when
+        autoscaler.resize(listener, 10, 3);
+
+        //then
+        assertEquals(List.of(3), restartedWith);
+        assertEquals(1.0, registry.get("library.events.consumer.autoscaler.scaled").tag("direction", "up").counter().count());
+    }
+
+    @Test
+    void resize_downOnlyAfterScaleDownIntervals() {
+
+        //when
+        autoscaler.resize(listener, 1, 6);
+        autoscaler.resize(listener, 1, 6);
+        List<Integer> beforeThirdInterval = List.copyOf(restartedWith);
+        autoscaler.resize(listener, 1, 6);
+
+        //then
+        assertEquals(List.of(), beforeThirdInterval);
+        assertEquals(List.of(1), restartedWith);
+        assertEquals(1.0, registry.get("library.events.consumer.autoscaler.scaled").tag("direction", "down").counter().count());
+    }
+
+    @Test
+    void resize_backToCurrent_resetsTheLowIntervals() {
+
+        //when
+        autoscaler.resize(listener, 1, 6);
+        autoscaler.resize(listener, 1, 6);
+        autoscaler.resize(listener, 2, 6);
+        autoscaler.resize(listener, 1, 6);
+        autoscaler.resize(listener, 1, 6);
+
+        //then
+        assertEquals(List.of(), restartedWith);
+    }
+
+    @Test
+    void dueEnd_recordsNotYetDueAreNoBacklog() {
+
+        //given : end offset 100
+        ListOffsetsResult.ListOffsetsResultInfo firstNotDue = new ListOffsetsResult.ListOffsetsResultInfo(40, 0, Optional.empty());
+        ListOffsetsResult.ListOffsetsResultInfo allDue = new ListOffsetsResult.ListOffsetsResultInfo(-1, -1, Optional.empty());
+
+        //when
+        long waiting = ListenerConcurrencyAutoscaler.dueEnd(100, firstNotDue);
+        long noneWaiting = ListenerConcurrencyAutoscaler.dueEnd(100, allDue);
+        long notATier = ListenerConcurrencyAutoscaler.dueEnd(100, null);
+
+        //then
+        assertEquals(40, waiting);
+        assertEquals(100, noneWaiting);
+        assertEquals(100, notATier);
+    }
+
+    private int desiredWithLag(long lag, double arrivalRate) {
+        listener.lag = lag;
+        return autoscaler.desired(listener, arrivalRate);
+    }
+}
@@ -0,0 +1,143 @@
+package com.learnkafka.diagnostics;
+
+import com.learnkafka.codec.LibraryEventTraceHeaders;
+import com.learnkafka.config.LibraryEventRetryTiers;
+import com.learnkafka.entity.Book;
+import com.learnkafka.entity.LibraryEvent;
+import com.learnkafka.entity.LibraryEventType;
+import com.learnkafka.jpa.LibraryEventRepository;
+import com.learnkafka.service.KnownLibraryEventIds;
+import com.learnkafka.service.LibraryEventService;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LibraryEventLatencyMetricsUnitTest {
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    LibraryEventLatencyMetrics latencyMetrics = new LibraryEventLatencyMetrics(registry,
+            new LibraryEventRetryTiers(new String[]{"1s", "10s", "1m"}));
+
+    LibraryEventRepository libraryEventRepository = mock(LibraryEventRepository.class);
+
+    LibraryEventService libraryEventService;
+
+    @BeforeEach
+    void setUp() {
+        when(libraryEventRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(libraryEventRepository.saveAll(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(libraryEventRepository.updateIfExists(any())).thenReturn(true);
+        libraryEventService = new LibraryEventService(libraryEventRepository, new FlightRecorder(16), latencyMetrics,
+                mock(PlatformTransactionManager.class),
+                // no index, the upsert decides
+                new StaticListableBeanFactory().getBeanProvider(KnownLibraryEventIds.class));
+    }
+
+    @Test
+    void consumed_taggedByPath() {
+
+        //given
+        long ingestMicros = LibraryEventTraceHeaders.nowMicros() - 2_000_000;
+
+        //when
+        latencyMetrics.consumed(consumerRecord("library-events", 1, LibraryEventType.NEW, ingestMicros));
+        latencyMetrics.consumed(consumerRecord("library-events.retry-10s", 2, LibraryEventType.UPDATE, ingestMicros));
+
+        //then
+        Timer main = registry.get(LibraryEventLatencyMetrics.CONSUME).tag("path", "main").tag("type", "NEW").timer();
+        Timer retry = registry.get(LibraryEventLatencyMetrics.CONSUME).tag("path", "retry").tag("type", "UPDATE").timer();
+        assertEquals(1, main.count());
+        assertEquals(1, retry.count());
+        assertTrue(main.totalTime(TimeUnit.SECONDS) >= 2);
+    }
+
+    @Test
+    void consumed_ingestInTheFuture_countedAsZero() {
+
+        //given : the producer's clock is a minute ahead
+        long ingestMicros = LibraryEventTraceHeaders.nowMicros() + 60_000_000;
+
+        //when
+        latencyMetrics.consumed(consumerRecord("library-events", 1, LibraryEventType.NEW, ingestMicros));
+
+        //then
+        Timer timer = registry.get(LibraryEventLatencyMetrics.CONSUME).tag("path", "main").timer();
+        assertEquals(1, timer.count());
+        assertEquals(0, timer.totalTime(TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    void consumed_withoutIngestHeader_notTimed() {
+
+        //when
+        latencyMetrics.consumed(consumerRecord("library-events", 1, LibraryEventType.NEW, -1));
+
+        //then
+        assertNull(registry.find(LibraryEventLatencyMetrics.CONSUME).timer());
+    }
+
+    @Test
+    void processLibraryEvent_timesThePersist() {
+
+        //given
+        long ingestMicros = LibraryEventTraceHeaders.nowMicros();
+
+        //when
+        libraryEventService.processLibraryEvent(consumerRecord("library-events", 6, LibraryEventType.NEW, ingestMicros));
+        libraryEventService.processLibraryEvent(consumerRecord("library-events.retry-1s", 7, LibraryEventType.UPDATE, ingestMicros));
+
+        //then
+        assertEquals(1, registry.get(LibraryEventLatencyMetrics.PERSIST).tag("path", "main").tag("type", "NEW").timer().count());
+        assertEquals(1, registry.get(LibraryEventLatencyMetrics.PERSIST).tag("path", "retry").tag("type", "UPDATE").timer().count());
+    }
+
+    @Test
+    void processLibraryEvents_timesThePersistOfEachRecord() {
+
+        //given
+        long ingestMicros = LibraryEventTraceHeaders.nowMicros();
+        List<ConsumerRecord<Integer, LibraryEvent>> consumerRecords = List.of(
+                consumerRecord("library-events", 1, LibraryEventType.NEW, ingestMicros),
+                consumerRecord("library-events", 2, LibraryEventType.NEW, ingestMicros),
+                consumerRecord("library-events", 3, LibraryEventType.NEW, -1));
+
+        //when
+        libraryEventService.processLibraryEvents(consumerRecords);
+
+        //then
+        assertEquals(2, registry.get(LibraryEventLatencyMetrics.PERSIST).tag("path", "main").timer().count());
+    }
+
+    private static ConsumerRecord<Integer, LibraryEvent> consumerRecord(String topic, Integer libraryEventId,
+                                                                       LibraryEventType type, long ingestMicros) {
+        LibraryEvent libraryEvent = LibraryEvent.builder()
+                .libraryEventId(libraryEventId)
+                .libraryEventType(type)
+                .book(Book.builder().bookId(456).bookName("Kafka Using Spring Boot").bookAuthor("Dilip").build())
+                .build();
+        RecordHeaders headers = new RecordHeaders();
+        if (ingestMicros >= 0) {
+            headers.add(LibraryEventTraceHeaders.ingestTimestamp(ingestMicros));
+        }
+        return new ConsumerRecord<>(topic, 0, 0L, ConsumerRecord.NO_TIMESTAMP, TimestampType.NO_TIMESTAMP_TYPE,
+                ConsumerRecord.NULL_SIZE, ConsumerRecord.NULL_SIZE, libraryEventId, libraryEvent, headers, Optional.empty());
+    }
+}
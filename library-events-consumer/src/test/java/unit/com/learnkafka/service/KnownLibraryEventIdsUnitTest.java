@@ -0,0 +1,66 @@
+package com.learnkafka.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class KnownLibraryEventIdsUnitTest {
+
+    DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:knownids;DB_CLOSE_DELAY=-1");
+
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.execute("CREATE TABLE library_event (library_event_id INT PRIMARY KEY)");
+        jdbcTemplate.update("INSERT INTO library_event VALUES (1), (2), (70000)");
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP TABLE library_event");
+    }
+
+    @Test
+    void contains_beforeBuild_onlyAddedIds() {
+
+        //given
+        KnownLibraryEventIds knownIds = knownIds();
+
+        //when
+        knownIds.add(5);
+
+        //then : the scan has not run, a missing id is for the database to decide
+        assertEquals(Boolean.TRUE, knownIds.contains(5));
+        assertNull(knownIds.contains(1));
+        assertNull(knownIds.contains(6));
+    }
+
+    @Test
+    void contains_afterBuild() {
+
+        //given
+        KnownLibraryEventIds knownIds = knownIds();
+
+        //when
+        knownIds.build();
+        knownIds.add(70001);
+
+        //then
+        assertEquals(Boolean.TRUE, knownIds.contains(1));
+        assertEquals(Boolean.TRUE, knownIds.contains(70000));
+        assertEquals(Boolean.TRUE, knownIds.contains(70001));
+        assertEquals(Boolean.FALSE, knownIds.contains(3));
+    }
+
+    private KnownLibraryEventIds knownIds() {
+        return new KnownLibraryEventIds(dataSource, new DataSourceTransactionManager(dataSource), new SimpleMeterRegistry(), 2);
+    }
+}
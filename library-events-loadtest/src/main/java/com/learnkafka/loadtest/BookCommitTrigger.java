@@ -0,0 +1,38 @@
+package com.learnkafka.loadtest;
+
+import org.h2.tools.TriggerAdapter;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Row trigger on the BOOK table of the consumer. The H2 server runs inside the load test JVM, so H2 calls it there,
+ * in the consumer's transaction right before the commit, and the clock it reads is the one the requests were
+ * timed with.
+ */
+public class BookCommitTrigger extends TriggerAdapter {
+
+    interface Listener {
+
+        void bookWritten(int bookId, String bookName, int libraryEventId, boolean inserted);
+    }
+
+    // H2 creates the trigger instances itself, they reach the load test through this
+    static volatile Listener listener;
+
+    static String createStatement(String name, String event) {
+        return "CREATE TRIGGER IF NOT EXISTS " + name + " AFTER " + event + " ON BOOK FOR EACH ROW CALL '"
+                + BookCommitTrigger.class.getName() + "'";
+    }
+
+    @Override
+    public void fire(Connection connection, ResultSet oldRow, ResultSet newRow) throws SQLException {
+
+        Listener current = listener;
+        if (current == null || newRow == null) {
+            return;
+        }
+        current.bookWritten(newRow.getInt("BOOK_ID"), newRow.getString("BOOK_NAME"), newRow.getInt("LIBRARY_EVENT_ID"), oldRow == null);
+    }
+}
@@ -0,0 +1,75 @@
+package com.learnkafka.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/**
+ * One latency, in microseconds : an interval histogram per second in {@code <name>.hlog} (HistogramLogAnalyzer,
+ * HistogramLogProcessor) and the percentile distribution of the whole run in {@code <name>.hgrm}, in milliseconds.
+ */
+final class LatencyLog implements AutoCloseable {
+
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    private final String name;
+
+    private final Recorder recorder;
+
+    private final HistogramLogWriter writer;
+
+    private final Histogram total = new Histogram(3);
+
+    private final Path outputDir;
+
+    private Histogram interval;
+
+    LatencyLog(String name, Recorder recorder, Path outputDir) throws FileNotFoundException {
+        this.name = name;
+        this.recorder = recorder;
+        this.outputDir = outputDir;
+        this.writer = new HistogramLogWriter(outputDir.resolve(name + ".hlog").toFile());
+
+        long now = System.currentTimeMillis();
+        writer.outputLogFormatVersion();
+        writer.outputStartTime(now);
+        writer.setBaseTime(now);
+        writer.outputLegend();
+        recorder.reset();
+    }
+
+    // called from a single thread
+    void writeInterval() {
+        interval = recorder.getIntervalHistogram(interval);
+        writer.outputIntervalHistogram(interval);
+        total.add(interval);
+    }
+
+    Histogram total() {
+        return total;
+    }
+
+    String percentiles() {
+        return String.format("%s p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms (%d samples)", name,
+                total.getValueAtPercentile(50) / MICROS_PER_MILLI,
+                total.getValueAtPercentile(90) / MICROS_PER_MILLI,
+                total.getValueAtPercentile(99) / MICROS_PER_MILLI,
+                total.getValueAtPercentile(99.9) / MICROS_PER_MILLI,
+                total.getMaxValue() / MICROS_PER_MILLI,
+                total.getTotalCount());
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeInterval();
+        writer.close();
+        try (PrintStream out = new PrintStream(outputDir.resolve(name + ".hgrm").toFile())) {
+            total.outputPercentileDistribution(out, MICROS_PER_MILLI);
+        }
+    }
+}
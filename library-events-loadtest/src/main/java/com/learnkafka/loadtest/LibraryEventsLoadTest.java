@@ -0,0 +1,169 @@
+package com.learnkafka.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.h2.tools.Server;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End to end latency of the library events pipeline : HTTP request to the producer, Kafka, the consumer, and the
+ * book row written to the database.
+ * <p>
+ * The broker (embedded Kafka) and the database (an H2 TCP server) run in this JVM, the producer and the consumer
+ * as their boot jars in JVMs of their own, against them. A trigger on the BOOK table reports every row to
+ * {@link LoadGenerator}, so the end to end latency stops when the consumer's transaction is about to commit, on the
+ * same clock it started on.
+ * <p>
+ * {@code ./gradlew run -Pargs="--rate=500 --duration-seconds=60 --update-ratio=0.3"} builds both jars first. The
+ * results are written to {@code build/loadtest/<timestamp>} : {@code http.hlog} / {@code end-to-end.hlog} per
+ * second, {@code http.hgrm} / {@code end-to-end.hgrm} for the whole run, {@code summary.txt}, and the logs of both
+ * services.
+ */
+@Slf4j
+public class LibraryEventsLoadTest {
+
+    private static final String[] TOPICS = {"library-events", "library-events.retry-1s", "library-events.retry-10s",
+            "library-events.retry-1m", "library-events.DLT"};
+
+    private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(2);
+
+    public static void main(String[] args) throws Exception {
+
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        Files.createDirectories(options.outputDir);
+        log.info("Load test {} , results in {}", options, options.outputDir.toAbsolutePath());
+
+        EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, options.partitions, TOPICS);
+        broker.afterPropertiesSet();
+        Server database = Server.createTcpServer("-tcpPort", String.valueOf(ServiceProcess.freePort()), "-ifNotExists", "-tcpDaemon").start();
+        try {
+            run(options, broker.getBrokersAsString(), database.getPort());
+        } finally {
+            database.stop();
+            broker.destroy();
+        }
+    }
+
+    private static void run(LoadTestOptions options, String bootstrapServers, int databasePort) throws Exception {
+
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(4, daemonThreads("http")))
+                .build();
+        String jdbcUrl = "jdbc:h2:tcp://localhost:" + databasePort + "/mem:loadtest;DB_CLOSE_DELAY=-1";
+
+        int producerPort = ServiceProcess.freePort();
+        List<String> producerArgs = new ArrayList<>();
+        producerArgs.add("--spring.kafka.producer.bootstrap-servers=" + bootstrapServers);
+        producerArgs.add("--spring.kafka.admin.properties.bootstrap.servers=" + bootstrapServers);
+        producerArgs.add("--topics.partitions=" + options.partitions);
+        producerArgs.addAll(options.producerArgs);
+
+        List<String> consumerArgs = new ArrayList<>();
+        consumerArgs.add("--spring.kafka.consumer.bootstrap-servers=" + bootstrapServers);
+        consumerArgs.add("--spring.kafka.producer.bootstrap-servers=" + bootstrapServers);
+        consumerArgs.add("--spring.datasource.url=" + jdbcUrl);
+        consumerArgs.add("--spring.datasource.username=sa");
+        consumerArgs.add("--spring.datasource.password=");
+        consumerArgs.add("--library-events.consumer.concurrency=" + options.partitions);
+        consumerArgs.addAll(options.consumerArgs);
+
+        // this connection creates the database and keeps it for the whole run
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, "sa", "");
+             ServiceProcess producer = ServiceProcess.start("producer", options.producerJar, producerPort, producerArgs,
+                     options.outputDir.resolve("producer.log"));
+             ServiceProcess consumer = ServiceProcess.start("consumer", options.consumerJar, ServiceProcess.freePort(), consumerArgs,
+                     options.outputDir.resolve("consumer.log"))) {
+
+            producer.awaitHealthy(httpClient, STARTUP_TIMEOUT);
+            consumer.awaitHealthy(httpClient, STARTUP_TIMEOUT);
+            LoadGenerator generator = new LoadGenerator(httpClient, producerPort, options);
+            BookCommitTrigger.listener = generator;
+            createTriggers(connection);
+
+            log.info("Warming up with {} events", options.warmupEvents);
+            generator.run(0, options.warmupEvents, options.rate, 0);
+            if (!generator.awaitCommitted(generator.warmup, Duration.ofSeconds(options.drainSeconds))) {
+                log.warn("Not every warmup event reached the database, measuring anyway");
+            }
+
+            log.info("Sending {} events per second for {} seconds", options.rate, options.durationSeconds);
+            LatencyLog http = new LatencyLog("http", generator.httpLatency, options.outputDir);
+            LatencyLog endToEnd = new LatencyLog("end-to-end", generator.endToEndLatency, options.outputDir);
+            ScheduledExecutorService intervals = Executors.newSingleThreadScheduledExecutor(daemonThreads("latency-log"));
+            intervals.scheduleAtFixedRate(() -> {
+                http.writeInterval();
+                endToEnd.writeInterval();
+            }, 1, 1, TimeUnit.SECONDS);
+
+            long start = System.nanoTime();
+            generator.run(options.warmupEvents, options.measuredEvents(), options.rate, options.updateRatio);
+            double sendSeconds = (System.nanoTime() - start) / 1e9;
+            boolean drained = generator.awaitCommitted(generator.measured, Duration.ofSeconds(options.drainSeconds));
+            double totalSeconds = (System.nanoTime() - start) / 1e9;
+
+            intervals.shutdown();
+            intervals.awaitTermination(5, TimeUnit.SECONDS);
+            http.close();
+            endToEnd.close();
+            BookCommitTrigger.listener = null;
+
+            writeSummary(options, generator.measured, http, endToEnd, sendSeconds, totalSeconds, drained);
+        }
+    }
+
+    // a failed run still ends, these never keep the JVM alive
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void createTriggers(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(BookCommitTrigger.createStatement("LOADTEST_BOOK_INSERTED", "INSERT"));
+            statement.execute(BookCommitTrigger.createStatement("LOADTEST_BOOK_UPDATED", "UPDATE"));
+        }
+    }
+
+    private static void writeSummary(LoadTestOptions options, LoadGenerator.Counters counters, LatencyLog http, LatencyLog endToEnd,
+                                     double sendSeconds, double totalSeconds, boolean drained) throws IOException {
+
+        List<String> lines = new ArrayList<>();
+        lines.add("options       " + options);
+        lines.add(String.format("offered       %d events in %.1fs (%.1f/s)", options.measuredEvents(), sendSeconds, options.measuredEvents() / sendSeconds));
+        lines.add(String.format("http          %d sent, %d 2xx, %d non 2xx, %d failed, %d not sent (max-in-flight)",
+                counters.sent.sum(), counters.accepted.sum(), counters.rejected.sum(), counters.failed.sum(), counters.notSent.sum()));
+        lines.add(String.format("database      %d written (%.1f/s), %d accepted but missing%s, %d written more than once",
+                counters.committed.sum(), counters.committed.sum() / totalSeconds,
+                Math.max(0, counters.accepted.sum() - counters.committed.sum()), drained ? "" : " after the drain timeout",
+                counters.duplicates.sum()));
+        lines.add(http.percentiles());
+        lines.add(endToEnd.percentiles());
+
+        try (PrintStream out = new PrintStream(options.outputDir.resolve("summary.txt").toFile())) {
+            lines.forEach(out::println);
+        }
+        lines.forEach(log::info);
+    }
+}
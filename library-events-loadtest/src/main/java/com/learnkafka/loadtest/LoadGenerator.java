@@ -0,0 +1,209 @@
+package com.learnkafka.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.Recorder;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop load : request {@code i} is due at {@code start + i / rate} whatever happened to the ones before it,
+ * and both latencies are taken from that due time, not from when the request actually went out. A stalled producer
+ * or consumer therefore shows up in the percentiles instead of silently lowering the rate (coordinated omission).
+ * <p>
+ * Every event carries its sequence number in the book name, {@link BookCommitTrigger} hands it back when the row is
+ * written. UPDATE events pick a book the consumer has already inserted, until there is one they are sent as NEW.
+ */
+final class LoadGenerator implements BookCommitTrigger.Listener {
+
+    static final String BOOK_NAME_PREFIX = "loadtest-";
+
+    // libraryEventId the consumer fails on purpose to exercise its retry path
+    private static final int FAILING_LIBRARY_EVENT_ID = 999;
+
+    final Recorder httpLatency = new Recorder(3);
+
+    final Recorder endToEndLatency = new Recorder(3);
+
+    final Counters warmup = new Counters();
+
+    final Counters measured = new Counters();
+
+    private final HttpClient httpClient;
+
+    private final URI libraryEventUri;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int warmupEvents;
+
+    // due time of every sequence, cleared once its book row is written
+    private final AtomicLongArray dueNanos;
+
+    private final Semaphore inFlight;
+
+    private final AtomicIntegerArray knownBookIds;
+
+    private final AtomicInteger knownBooks = new AtomicInteger();
+
+    private final Map<Integer, Integer> libraryEventIds = new ConcurrentHashMap<>();
+
+    // only the pacing thread creates books
+    private int nextBookId = 1_000_000;
+
+    LoadGenerator(HttpClient httpClient, int producerPort, LoadTestOptions options) {
+        this.httpClient = httpClient;
+        this.libraryEventUri = URI.create("http://localhost:" + producerPort + "/v1/libraryevent");
+        this.warmupEvents = options.warmupEvents;
+        this.dueNanos = new AtomicLongArray(options.warmupEvents + options.measuredEvents());
+        this.knownBookIds = new AtomicIntegerArray(dueNanos.length());
+        this.inFlight = new Semaphore(options.maxInFlight);
+    }
+
+    /**
+     * Sends the sequences {@code [first, first + count)} at {@code rate} per second, returns once the last one is out.
+     */
+    void run(int first, int count, int rate, double updateRatio) {
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long due = start + i * intervalNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean update = updateRatio > 0 && ThreadLocalRandom.current().nextDouble() < updateRatio;
+            send(first + i, due, update);
+        }
+    }
+
+    private void send(int sequence, long due, boolean update) {
+
+        Counters counters = countersOf(sequence);
+        if (!inFlight.tryAcquire()) {
+            counters.notSent.increment();
+            return;
+        }
+
+        ObjectNode book = objectMapper.createObjectNode()
+                .put("bookName", BOOK_NAME_PREFIX + sequence)
+                .put("bookAuthor", "loadtest");
+        ObjectNode libraryEvent = objectMapper.createObjectNode();
+        int known = knownBooks.get();
+        boolean sendUpdate = update && known > 0;
+        if (sendUpdate) {
+            int bookId = knownBookIds.get(ThreadLocalRandom.current().nextInt(known));
+            book.put("bookId", bookId);
+            libraryEvent.put("libraryEventId", libraryEventIds.get(bookId));
+        } else {
+            book.put("bookId", nextBookId++);
+            libraryEvent.putNull("libraryEventId");
+        }
+        libraryEvent.set("book", book);
+
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofString(libraryEvent.toString());
+        HttpRequest request = HttpRequest.newBuilder(libraryEventUri)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .method(sendUpdate ? "PUT" : "POST", body)
+                .build();
+
+        dueNanos.set(sequence, due);
+        counters.sent.increment();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, ex) -> {
+                    inFlight.release();
+                    httpLatency.recordValue(micros(System.nanoTime() - due));
+                    if (ex != null) {
+                        counters.failed.increment();
+                        dueNanos.compareAndSet(sequence, due, 0);
+                    } else if (response.statusCode() / 100 != 2) {
+                        counters.rejected.increment();
+                        dueNanos.compareAndSet(sequence, due, 0);
+                    } else {
+                        counters.accepted.increment();
+                    }
+                });
+    }
+
+    @Override
+    public void bookWritten(int bookId, String bookName, int libraryEventId, boolean inserted) {
+
+        long now = System.nanoTime();
+        if (bookName == null || !bookName.startsWith(BOOK_NAME_PREFIX)) {
+            return;
+        }
+        int sequence = Integer.parseInt(bookName.substring(BOOK_NAME_PREFIX.length()));
+        if (inserted && libraryEventId != FAILING_LIBRARY_EVENT_ID && libraryEventIds.putIfAbsent(bookId, libraryEventId) == null) {
+            // the slot is filled before the count covers it, the pacing thread never reads an empty one
+            synchronized (knownBookIds) {
+                knownBookIds.set(knownBooks.get(), bookId);
+                knownBooks.incrementAndGet();
+            }
+        }
+
+        Counters counters = countersOf(sequence);
+        long due = dueNanos.getAndSet(sequence, 0);
+        if (due == 0) {
+            counters.duplicates.increment();
+            return;
+        }
+        counters.committed.increment();
+        if (counters == measured) {
+            endToEndLatency.recordValue(micros(now - due));
+        }
+    }
+
+    /**
+     * Waits until every accepted event of the phase is in the database, false on timeout.
+     */
+    boolean awaitCommitted(Counters counters, Duration timeout) throws InterruptedException {
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (counters.answered() == counters.sent.sum() && counters.committed.sum() >= counters.accepted.sum()) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private Counters countersOf(int sequence) {
+        return sequence < warmupEvents ? warmup : measured;
+    }
+
+    private static long micros(long nanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    static final class Counters {
+
+        final LongAdder sent = new LongAdder();
+        final LongAdder notSent = new LongAdder();
+        final LongAdder accepted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder committed = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+
+        long answered() {
+            return accepted.sum() + rejected.sum() + failed.sum();
+        }
+    }
+}
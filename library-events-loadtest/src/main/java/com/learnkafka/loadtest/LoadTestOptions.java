@@ -0,0 +1,85 @@
+package com.learnkafka.loadtest;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line of the load test, every option is {@code --name=value}. {@code --producer-arg} and
+ * {@code --consumer-arg} can be repeated, each one is handed to the service as it is, for instance
+ * {@code --producer-arg=--library-events.producer.wire-format=binary}.
+ */
+final class LoadTestOptions {
+
+    Path producerJar;
+    Path consumerJar;
+
+    // library events per second sent to the producer, NEW and UPDATE together
+    int rate = 200;
+    int durationSeconds = 60;
+    int warmupEvents = 500;
+    double updateRatio = 0.2;
+
+    // library-events partitions, and the consumer concurrency
+    int partitions = 3;
+
+    // requests sent and not answered yet, beyond it the generator counts the event as not sent
+    int maxInFlight = 10_000;
+
+    // how long to wait after the last request for the remaining events to reach the database
+    int drainSeconds = 30;
+
+    Path outputDir = Paths.get("build", "loadtest", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+
+    final List<String> producerArgs = new ArrayList<>();
+    final List<String> consumerArgs = new ArrayList<>();
+
+    static LoadTestOptions parse(String[] args) {
+
+        LoadTestOptions options = new LoadTestOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "producer-jar": options.producerJar = Paths.get(value); break;
+                case "consumer-jar": options.consumerJar = Paths.get(value); break;
+                case "rate": options.rate = Integer.parseInt(value); break;
+                case "duration-seconds": options.durationSeconds = Integer.parseInt(value); break;
+                case "warmup-events": options.warmupEvents = Integer.parseInt(value); break;
+                case "update-ratio": options.updateRatio = Double.parseDouble(value); break;
+                case "partitions": options.partitions = Integer.parseInt(value); break;
+                case "max-in-flight": options.maxInFlight = Integer.parseInt(value); break;
+                case "drain-seconds": options.drainSeconds = Integer.parseInt(value); break;
+                case "output-dir": options.outputDir = Paths.get(value); break;
+                case "producer-arg": options.producerArgs.add(value); break;
+                case "consumer-arg": options.consumerArgs.add(value); break;
+                default: throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (options.producerJar == null || options.consumerJar == null) {
+            throw new IllegalArgumentException("--producer-jar and --consumer-jar are required");
+        }
+        if (options.rate <= 0 || options.updateRatio < 0 || options.updateRatio > 1) {
+            throw new IllegalArgumentException("--rate must be positive and --update-ratio between 0 and 1");
+        }
+        return options;
+    }
+
+    int measuredEvents() {
+        return rate * durationSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "rate=" + rate + "/s duration=" + durationSeconds + "s warmup=" + warmupEvents + " updateRatio=" + updateRatio
+                + " partitions=" + partitions + " maxInFlight=" + maxInFlight
+                + " producerArgs=" + producerArgs + " consumerArgs=" + consumerArgs;
+    }
+}
@@ -0,0 +1,106 @@
+package com.learnkafka.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.TimestampType;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses a Kafka record batch of JSON library events the way the producer does, once per codec and batch
+ * fill level. The time per batch is the CPU side of the trade-off, the {@code bytesIn} / {@code bytesOut}
+ * counters the network side : compression ratio = bytesOut / bytesIn.
+ * <p>
+ * {@code ./gradlew jmh -Pjmh.includes=CompressionCodecBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionCodecBenchmark {
+
+    private static final String[] AUTHORS = {"olgun", "Dilip", "Neha Narkhede", "Gwen Shapira", "Todd Palino"};
+
+    private static final String[] TITLES = {"Kafka using Spring Boot", "Kafka: The Definitive Guide",
+            "Designing Event-Driven Systems", "Streaming Systems", "Designing Data-Intensive Applications"};
+
+    @Param({"none", "lz4", "zstd", "snappy", "gzip"})
+    public String codec;
+
+    // records per batch : an unbatched send, a lightly filled batch, a full 16 KB batch
+    @Param({"1", "16", "128"})
+    public int records;
+
+    private CompressionType compressionType;
+
+    private byte[][] values;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+
+        public long bytesIn;
+
+        public long bytesOut;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesIn = 0;
+            bytesOut = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        compressionType = CompressionType.forName(codec);
+        ObjectMapper objectMapper = new ObjectMapper();
+        values = new byte[records][];
+        for (int i = 0; i < records; i++) {
+            Book book = Book.builder()
+                    .bookId(1000 + i)
+                    .bookName(TITLES[i % TITLES.length] + " vol " + (i % 7))
+                    .bookAuthor(AUTHORS[(i * 3) % AUTHORS.length])
+                    .build();
+            LibraryEvent libraryEvent = LibraryEvent.builder()
+                    .libraryEventId(i % 2 == 0 ? null : i)
+                    .libraryEventType(i % 2 == 0 ? LibraryEventType.NEW : LibraryEventType.UPDATE)
+                    .book(book)
+                    .build();
+            values[i] = objectMapper.writeValueAsBytes(libraryEvent);
+        }
+    }
+
+    @Benchmark
+    public MemoryRecords compressBatch(Sizes sizes) {
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(32 * 1024), compressionType, TimestampType.CREATE_TIME, 0L);
+        long timestamp = System.currentTimeMillis();
+        for (byte[] value : values) {
+            builder.append(timestamp, null, value);
+        }
+        MemoryRecords batch = builder.build();
+        sizes.bytesIn += builder.uncompressedBytesWritten();
+        sizes.bytesOut += batch.sizeInBytes();
+        return batch;
+    }
+}
@@ -0,0 +1,136 @@
+package com.learnkafka.producer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.IntegerSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of the default send path, one by one and together : JSON serialization of the event, the producer
+ * record, Bean Validation of the book (what {@code @Valid} costs the controller), and
+ * {@link LibraryEventProducer#sendLibraryEvent_Approach2} end to end with budget, meters and flight recorder on
+ * a {@link MockProducer} that acknowledges every send right away.
+ * <p>
+ * {@code ./gradlew jmh -Pjmh.includes=LibraryEventProducerBenchmark} , the gc profiler reports the bytes
+ * allocated per operation ({@code gc.alloc.rate.norm}) next to the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LibraryEventProducerBenchmark {
+
+    private ObjectMapper objectMapper;
+
+    private Validator validator;
+
+    private LibraryEvent libraryEvent;
+
+    private String value;
+
+    private LibraryEventProducer libraryEventProducer;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+
+        objectMapper = new ObjectMapper();
+        validator = Validation.buildDefaultValidatorFactory().getValidator();
+        Book book = Book.builder()
+                .bookId(456)
+                .bookName("Kafka using Spring Boot")
+                .bookAuthor("olgun")
+                .build();
+        libraryEvent = LibraryEvent.builder()
+                .libraryEventId(123)
+                .libraryEventType(LibraryEventType.NEW)
+                .book(book)
+                .build();
+        value = objectMapper.writeValueAsString(libraryEvent);
+
+        MockProducer<Integer, String> producer = new AckingMockProducer();
+        ProducerFactory<Integer, String> producerFactory = () -> producer;
+        KafkaTemplate<Integer, String> kafkaTemplate = new KafkaTemplate<>(producerFactory);
+        kafkaTemplate.setDefaultTopic("library-events");
+
+        libraryEventProducer = new LibraryEventProducer();
+        libraryEventProducer.kafkaTemplate = kafkaTemplate;
+        libraryEventProducer.objectMapper = objectMapper;
+        libraryEventProducer.sendBudget = new LibraryEventSendBudget(1000, 0, 1);
+        libraryEventProducer.metrics = new LibraryEventProducerMetrics(new SimpleMeterRegistry());
+        libraryEventProducer.spillJournal = new LibraryEventSpillJournal(false, "library-events-spill.journal", 0);
+        libraryEventProducer.flightRecorder = new FlightRecorder(256);
+        libraryEventProducer.compressionSelector = new LibraryEventCompressionSelector(false, 16, 8, 0.1, 100);
+    }
+
+    @Benchmark
+    public String serialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(libraryEvent);
+    }
+
+    @Benchmark
+    public ProducerRecord<Integer, String> buildProducerRecord() {
+        return LibraryEventProducer.buildProducerRecord(libraryEvent.getLibraryEventId(), value, "library-events");
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<Book>> validateBook() {
+        return validator.validate(libraryEvent.getBook());
+    }
+
+    @Benchmark
+    public ListenableFuture<SendResult<Integer, String>> sendLibraryEvent_Approach2() throws JsonProcessingException {
+        return libraryEventProducer.sendLibraryEvent_Approach2(libraryEvent);
+    }
+
+    // acknowledges on send, keeps no history and survives KafkaTemplate closing it after every send
+    private static final class AckingMockProducer extends MockProducer<Integer, String> {
+
+        AckingMockProducer() {
+            super(true, new IntegerSerializer(), new StringSerializer());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<Integer, String> record, Callback callback) {
+            Future<RecordMetadata> future = super.send(record, callback);
+            clear();
+            return future;
+        }
+
+        @Override
+        public void close(Duration timeout) {
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.learnkafka.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.learnkafka.domain.LibraryEventType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A LibraryEvent JSON document checked with one pass of a streaming parser, without binding it to
+ * {@code LibraryEvent} / {@code Book}. The rules are the bean validation constraints of the domain classes,
+ * with the same messages. Unknown fields are skipped and forwarded as they are, like the POJO binding ignores them.
+ * <p>
+ * {@link #withType(LibraryEventType)} returns the original bytes when {@code libraryEventType} already has the
+ * given value, otherwise a copy where only that value is replaced or inserted.
+ */
+public final class LibraryEventRawJson {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final byte[] TYPE_FIELD = "\"libraryEventType\":".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] json;
+
+    private final Integer libraryEventId;
+
+    private final String error;
+
+    // byte range of the libraryEventType value, -1 when the field is absent
+    private final int typeStart;
+    private final int typeEnd;
+
+    private final LibraryEventType type;
+
+    // right after the opening brace of the document
+    private final int bodyStart;
+
+    private LibraryEventRawJson(byte[] json, Integer libraryEventId, String error, int typeStart, int typeEnd,
+                                LibraryEventType type, int bodyStart) {
+        this.json = json;
+        this.libraryEventId = libraryEventId;
+        this.error = error;
+        this.typeStart = typeStart;
+        this.typeEnd = typeEnd;
+        this.type = type;
+        this.bodyStart = bodyStart;
+    }
+
+    /**
+     * @throws JsonProcessingException when the bytes are not a JSON object
+     */
+    public static LibraryEventRawJson parse(byte[] json) throws JsonProcessingException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            return parse(json, parser);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static LibraryEventRawJson parse(byte[] json, JsonParser parser) throws IOException {
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "A library event must be a JSON object");
+        }
+        int bodyStart = (int) parser.getCurrentLocation().getByteOffset();
+
+        List<String> violations = new ArrayList<>();
+        Integer libraryEventId = null;
+        int typeStart = -1;
+        int typeEnd = -1;
+        LibraryEventType type = null;
+        boolean book = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "libraryEventId":
+                    // an integer beyond the int range is reported like any other non integer, getIntValue would throw
+                    if (token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() == JsonParser.NumberType.INT) {
+                        libraryEventId = parser.getIntValue();
+                    } else if (token != JsonToken.VALUE_NULL) {
+                        violations.add("libraryEventId - must be an integer");
+                    }
+                    break;
+                case "libraryEventType":
+                    // replaced by the endpoint anyway, but must still be a valid type like for the POJO binding
+                    type = token == JsonToken.VALUE_STRING ? typeOf(parser.getText()) : null;
+                    if (type != null || token == JsonToken.VALUE_NULL) {
+                        typeStart = (int) parser.getTokenLocation().getByteOffset();
+                        typeEnd = (int) parser.getCurrentLocation().getByteOffset();
+                    } else {
+                        violations.add("libraryEventType - must be one of NEW, UPDATE");
+                        parser.skipChildren();
+                    }
+                    break;
+                case "book":
+                    if (token == JsonToken.START_OBJECT) {
+                        book = true;
+                        checkBook(parser, violations);
+                    } else if (token != JsonToken.VALUE_NULL) {
+                        violations.add("book - must be an object");
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+            throw new JsonParseException(parser, "Unexpected content after the library event");
+        }
+        if (!book) {
+            violations.add("book - must not be null");
+        }
+
+        String error = violations.isEmpty() ? null : violations.stream().sorted().collect(Collectors.joining(" , "));
+        return new LibraryEventRawJson(json, libraryEventId, error, typeStart, typeEnd, type, bodyStart);
+    }
+
+    private static void checkBook(JsonParser parser, List<String> violations) throws IOException {
+
+        boolean bookId = false;
+        boolean bookName = false;
+        boolean bookAuthor = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "bookId":
+                    if (token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() == JsonParser.NumberType.INT) {
+                        bookId = true;
+                    } else if (token != JsonToken.VALUE_NULL) {
+                        violations.add("book.bookId - must be an integer");
+                        bookId = true;
+                    }
+                    break;
+                case "bookName":
+                    bookName = token == JsonToken.VALUE_STRING && !parser.getText().isBlank();
+                    break;
+                case "bookAuthor":
+                    bookAuthor = token == JsonToken.VALUE_STRING && !parser.getText().isBlank();
+                    break;
+            }
+            parser.skipChildren();
+        }
+        if (!bookId) {
+            violations.add("book.bookId - must not be null");
+        }
+        if (!bookName) {
+            violations.add("book.bookName - must not be blank");
+        }
+        if (!bookAuthor) {
+            violations.add("book.bookAuthor - must not be blank");
+        }
+    }
+
+    private static LibraryEventType typeOf(String name) {
+        for (LibraryEventType type : LibraryEventType.values()) {
+            if (type.name().equals(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    public boolean isValid() {
+        return error == null;
+    }
+
+    /**
+     * Validation failures in the format of the {@code @Valid} request bodies, null when valid.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public Integer getLibraryEventId() {
+        return libraryEventId;
+    }
+
+    public byte[] withType(LibraryEventType libraryEventType) {
+
+        if (libraryEventType == type) {
+            return json;
+        }
+        byte[] value = ("\"" + libraryEventType.name() + "\"").getBytes(StandardCharsets.US_ASCII);
+        if (typeStart < 0) {
+            // "libraryEventType":"NEW", right after the opening brace, book is always there to follow it
+            byte[] patched = new byte[json.length + TYPE_FIELD.length + value.length + 1];
+            System.arraycopy(json, 0, patched, 0, bodyStart);
+            System.arraycopy(TYPE_FIELD, 0, patched, bodyStart, TYPE_FIELD.length);
+            System.arraycopy(value, 0, patched, bodyStart + TYPE_FIELD.length, value.length);
+            patched[bodyStart + TYPE_FIELD.length + value.length] = ',';
+            System.arraycopy(json, bodyStart, patched, bodyStart + TYPE_FIELD.length + value.length + 1, json.length - bodyStart);
+            return patched;
+        }
+        byte[] patched = new byte[json.length - (typeEnd - typeStart) + value.length];
+        System.arraycopy(json, 0, patched, 0, typeStart);
+        System.arraycopy(value, 0, patched, typeStart, value.length);
+        System.arraycopy(json, typeEnd, patched, typeStart + value.length, json.length - typeEnd);
+        return patched;
+    }
+}
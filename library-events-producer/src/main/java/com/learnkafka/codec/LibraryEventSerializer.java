@@ -0,0 +1,18 @@
+package com.learnkafka.codec;
+
+import com.learnkafka.domain.LibraryEvent;
+
+/**
+ * The {@link AbstractLibraryEventSerializer} of the producer's domain LibraryEvent.
+ */
+public class LibraryEventSerializer extends AbstractLibraryEventSerializer<LibraryEvent> {
+
+    public LibraryEventSerializer() {
+        super(LibraryEvent.class);
+    }
+
+    @Override
+    protected byte[] encodeBinary(LibraryEvent data) {
+        return LibraryEventBinaryCodec.encode(data);
+    }
+}
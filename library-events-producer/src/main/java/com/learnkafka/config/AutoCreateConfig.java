@@ -1,21 +1,60 @@
 package com.learnkafka.config;
 
 import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.KafkaAdmin;
+
+import java.util.Arrays;
 
 
 @Configuration
 public class AutoCreateConfig {
 
+    @Value("${topics.partitions:3}")
+    private int partitions;
+
+    @Value("${topics.replicas:1}")
+    private int replicas;
+
+    @Value("${topics.retry-tiers:1s,10s,1m}")
+    private String[] retryTiers;
+
+    @Value("${topics.dlt:library-events.DLT}")
+    private String deadLetterTopic;
+
     @Bean
     public NewTopic libraryEvents(){
 
       return   TopicBuilder.name("library-events")
-                .partitions(1)
-                .replicas(1)
+                .partitions(partitions)
+                .replicas(replicas)
+                .build();
+    }
+
+    // the consumer republishes failed records to the partition they were read from,
+    // so retry tiers and DLT need at least as many partitions as library-events
+
+    @Bean
+    public KafkaAdmin.NewTopics libraryEventsRetryTiers(){
+
+        return new KafkaAdmin.NewTopics(Arrays.stream(retryTiers)
+                .map(tier -> TopicBuilder.name("library-events.retry-" + tier.trim())
+                        .partitions(partitions)
+                        .replicas(replicas)
+                        .build())
+                .toArray(NewTopic[]::new));
+    }
+
+    @Bean
+    public NewTopic libraryEventsDeadLetter(){
+
+        return   TopicBuilder.name(deadLetterTopic)
+                .partitions(partitions)
+                .replicas(replicas)
                 .build();
     }
 }
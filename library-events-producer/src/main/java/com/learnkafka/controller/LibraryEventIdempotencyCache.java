@@ -0,0 +1,203 @@
+package com.learnkafka.controller;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Responses of the requests sent with an {@code Idempotency-Key} header, so that a retried request gets the
+ * original response back instead of publishing the library event again.
+ * <p>
+ * Keys are spread over a fixed number of segments, each one a small insertion ordered map behind its own lock :
+ * with a single TTL the eldest entry of a segment is also the first to expire, so expired entries are dropped
+ * from the head on every insert and the segment never grows past its share of {@code max-entries}.
+ * <p>
+ * The entry is taken before the request runs, a duplicate arriving in the meantime waits for the same response.
+ * Only 2xx responses are kept, after a failure the key is released and the next retry is sent for real.
+ */
+@Component
+public class LibraryEventIdempotencyCache implements MeterBinder {
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private final Segment[] segments;
+
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public LibraryEventIdempotencyCache(@Value("${library-events.producer.idempotency.max-entries:100000}") int maxEntries,
+                                        @Value("${library-events.producer.idempotency.ttl-ms:600000}") long ttlMs,
+                                        @Value("${library-events.producer.idempotency.stripes:64}") int stripes) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.segments = new Segment[stripes];
+        for (int i = 0; i < stripes; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / stripes));
+        }
+    }
+
+    /**
+     * Runs the request once per key and scope, a null key always runs it.
+     */
+    public CompletableFuture<ResponseEntity<?>> execute(String idempotencyKey, String scope,
+                                                        Callable<CompletableFuture<ResponseEntity<?>>> request) throws Exception {
+
+        if (idempotencyKey == null) {
+            return request.call();
+        }
+
+        String key = scope + " " + idempotencyKey;
+        Segment segment = segments[Math.floorMod(key.hashCode(), segments.length)];
+        CompletableFuture<ResponseEntity<?>> response = new CompletableFuture<>();
+        CachedResponse entry = new CachedResponse(response, System.nanoTime() + ttlNanos);
+        CompletableFuture<ResponseEntity<?>> original;
+        synchronized (segment) {
+            original = segment.lookup(key, System.nanoTime());
+            if (original == null) {
+                segment.insert(key, entry, System.nanoTime());
+            }
+        }
+
+        if (original != null) {
+            hits.increment();
+            return original.thenApply(LibraryEventIdempotencyCache::replayed);
+        }
+        misses.increment();
+
+        CompletableFuture<ResponseEntity<?>> sent;
+        try {
+            sent = request.call();
+        } catch (Exception e) {
+            release(segment, key, entry);
+            response.completeExceptionally(e);
+            throw e;
+        }
+        sent.whenComplete((result, ex) -> {
+            if (ex != null || !result.getStatusCode().is2xxSuccessful()) {
+                release(segment, key, entry);
+            }
+            if (ex != null) {
+                response.completeExceptionally(ex);
+            } else {
+                response.complete(result);
+            }
+        });
+        return sent;
+    }
+
+    private void release(Segment segment, String key, CachedResponse entry) {
+        synchronized (segment) {
+            segment.remove(key, entry);
+        }
+    }
+
+    private static ResponseEntity<?> replayed(ResponseEntity<?> response) {
+        return ResponseEntity.status(response.getStatusCode())
+                .headers(response.getHeaders())
+                .header(REPLAYED_HEADER, "true")
+                .body(response.getBody());
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+
+        FunctionCounter.builder("library.events.producer.idempotency.requests", hits, LongAdder::sum)
+                .description("Requests with an Idempotency-Key by cache result")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("library.events.producer.idempotency.requests", misses, LongAdder::sum)
+                .description("Requests with an Idempotency-Key by cache result")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("library.events.producer.idempotency.evictions", evictions, LongAdder::sum)
+                .description("Idempotency keys dropped before their TTL because the cache was full")
+                .register(registry);
+        Gauge.builder("library.events.producer.idempotency.size", this, LibraryEventIdempotencyCache::size)
+                .description("Idempotency keys in the cache")
+                .register(registry);
+    }
+
+    private static final class CachedResponse {
+
+        final CompletableFuture<ResponseEntity<?>> response;
+        final long expiresAtNanos;
+
+        CachedResponse(CompletableFuture<ResponseEntity<?>> response, long expiresAtNanos) {
+            this.response = response;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return nowNanos - expiresAtNanos >= 0;
+        }
+    }
+
+    // guarded by its own monitor
+    private final class Segment extends LinkedHashMap<String, CachedResponse> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        CompletableFuture<ResponseEntity<?>> lookup(String key, long nowNanos) {
+            CachedResponse entry = get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(nowNanos)) {
+                remove(key);
+                return null;
+            }
+            return entry.response;
+        }
+
+        void insert(String key, CachedResponse entry, long nowNanos) {
+            Iterator<CachedResponse> eldest = values().iterator();
+            while (eldest.hasNext() && eldest.next().isExpired(nowNanos)) {
+                eldest.remove();
+            }
+            put(key, entry);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,47 +1,378 @@
 package com.learnkafka.controller;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.codec.LibraryEventRawJson;
+import com.learnkafka.codec.LibraryEventWireFormat;
+import com.learnkafka.domain.LibraryEventResult;
 import com.learnkafka.producer.LibraryEventProducer;
 import com.learnkafka.domain.LibraryEvent;
 import com.learnkafka.domain.LibraryEventType;
+import com.learnkafka.exception.LibraryEventRejectedException;
+import com.learnkafka.exception.LibraryEventSpilledException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @Slf4j
 public class LibraryEventsController {
 
+    // fire-and-forget (default) answers as soon as the record is handed to the producer,
+    // acked answers once the broker has acknowledged it
+    public static final String DELIVERY_HEADER = "X-Delivery-Mode";
+    public static final String DELIVERY_ACKED = "acked";
+    // acked, the send failed but the spill journal kept the event : 202, it is published by the replay
+    public static final String SPILLED_HEADER = "X-Delivery-Spilled";
+
     @Autowired
     LibraryEventProducer libraryEventProducer;
 
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    LibraryEventIdempotencyCache idempotencyCache;
+
+    @Autowired
+    Validator validator;
+
+    @Value("${library-events.producer.wire-format:json}")
+    LibraryEventWireFormat wireFormat;
+
+    @Value("${library-events.producer.byte-array-values:false}")
+    boolean byteArrayValues;
+
     @PostMapping("/v1/libraryevent")
-    public ResponseEntity<LibraryEvent> postLibraryEvent(@RequestBody @Valid LibraryEvent libraryEvent) throws JsonProcessingException {
+    public ResponseEntity<?> postLibraryEvent(@RequestBody @Valid LibraryEvent libraryEvent,
+                                              @RequestHeader(value = LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) throws Exception {
 
-        //invoke kafka producer
-        libraryEvent.setLibraryEventType(LibraryEventType.NEW);
-        libraryEventProducer.sendLibraryEvent_Approach2(libraryEvent);
-        return ResponseEntity.status(HttpStatus.CREATED).body(libraryEvent);
+        return idempotent(idempotencyKey, "POST /v1/libraryevent", () -> {
+            //invoke kafka producer
+            libraryEvent.setLibraryEventType(LibraryEventType.NEW);
+            send(libraryEvent);
+            return ResponseEntity.status(HttpStatus.CREATED).body(libraryEvent);
+        });
     }
 
     //put
 
     @PutMapping("/v1/libraryevent")
-    public ResponseEntity<?> putLibraryEvent(@RequestBody @Valid LibraryEvent libraryEvent) throws JsonProcessingException {
+    public ResponseEntity<?> putLibraryEvent(@RequestBody @Valid LibraryEvent libraryEvent,
+                                             @RequestHeader(value = LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) throws Exception {
 
         if(libraryEvent.getLibraryEventId() == null){
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Please pass the LibraryEventId");
         }
 
-        libraryEvent.setLibraryEventType(LibraryEventType.UPDATE);
-        libraryEventProducer.sendLibraryEvent_Approach2(libraryEvent);
-        return ResponseEntity.status(HttpStatus.OK).body(libraryEvent);
+        return idempotent(idempotencyKey, "PUT /v1/libraryevent", () -> {
+            libraryEvent.setLibraryEventType(LibraryEventType.UPDATE);
+            send(libraryEvent);
+            return ResponseEntity.status(HttpStatus.OK).body(libraryEvent);
+        });
+    }
+
+    //acked : the servlet thread is released while the send is in flight
+
+    @PostMapping(value = "/v1/libraryevent", headers = DELIVERY_HEADER + "=" + DELIVERY_ACKED)
+    public CompletableFuture<ResponseEntity<?>> postLibraryEventAcked(@RequestBody @Valid LibraryEvent libraryEvent,
+                                                                      @RequestHeader(value = LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) throws Exception {
+
+        return idempotencyCache.execute(idempotencyKey, "POST /v1/libraryevent", () -> {
+            libraryEvent.setLibraryEventType(LibraryEventType.NEW);
+            return whenAcked(send(libraryEvent), HttpStatus.CREATED, libraryEvent);
+        });
+    }
+
+    @PutMapping(value = "/v1/libraryevent", headers = DELIVERY_HEADER + "=" + DELIVERY_ACKED)
+    public CompletableFuture<ResponseEntity<?>> putLibraryEventAcked(@RequestBody @Valid LibraryEvent libraryEvent,
+                                                                     @RequestHeader(value = LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) throws Exception {
+
+        if(libraryEvent.getLibraryEventId() == null){
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Please pass the LibraryEventId"));
+        }
+
+        return idempotencyCache.execute(idempotencyKey, "PUT /v1/libraryevent", () -> {
+            libraryEvent.setLibraryEventType(LibraryEventType.UPDATE);
+            return whenAcked(send(libraryEvent), HttpStatus.OK, libraryEvent);
+        });
+    }
+
+    //raw : checked with a streaming parser and forwarded as sent, only libraryEventType is patched in the bytes
+
+    @PostMapping(value = "/v1/libraryevent/raw", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> postLibraryEventRaw(@RequestBody byte[] requestBody,
+                                                 @RequestHeader(value = LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) throws Exception {
+
+        LibraryEventRawJson rawJson = LibraryEventRawJson.parse(requestBody);
+        if (!rawJson.isValid()) {
+            log.info("errorMessage : {}", rawJson.getError());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(rawJson.getError());
+        }
+
+        return idempotent(idempotencyKey, "POST /v1/libraryevent/raw", () -> {
+            byte[] value = rawJson.withType(LibraryEventType.NEW);
+            libraryEventProducer.sendLibraryEvent_Raw(rawJson.getLibraryEventId(), LibraryEventType.NEW, value);
+            return ResponseEntity.status(HttpStatus.CREATED).contentType(MediaType.APPLICATION_JSON).body(value);
+        });
+    }
+
+    @PutMapping(value = "/v1/libraryevent/raw", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> putLibraryEventRaw(@RequestBody byte[] requestBody,
+                                                @RequestHeader(value = LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) throws Exception {
+
+        LibraryEventRawJson rawJson = LibraryEventRawJson.parse(requestBody);
+        if (!rawJson.isValid()) {
+            log.info("errorMessage : {}", rawJson.getError());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(rawJson.getError());
+        }
+        if(rawJson.getLibraryEventId() == null){
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Please pass the LibraryEventId");
+        }
+
+        return idempotent(idempotencyKey, "PUT /v1/libraryevent/raw", () -> {
+            byte[] value = rawJson.withType(LibraryEventType.UPDATE);
+            libraryEventProducer.sendLibraryEvent_Raw(rawJson.getLibraryEventId(), LibraryEventType.UPDATE, value);
+            return ResponseEntity.status(HttpStatus.OK).contentType(MediaType.APPLICATION_JSON).body(value);
+        });
+    }
+
+    //batch : json array or ndjson stream, every item is sent without waiting for the previous ack
+    //when the in-flight budget is spent, the oldest item of the batch is awaited first : the body is read at the pace of the acks
+    //atomic=true : all items are validated first and published in one kafka transaction, or none is sent
+
+    @PostMapping(value = "/v1/libraryevent/batch",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<List<LibraryEventResult>> postLibraryEventBatch(InputStream requestBody,
+                                                                          @RequestParam(defaultValue = "false") boolean atomic) throws IOException {
+
+        List<LibraryEventResult> results = new ArrayList<>();
+        List<LibraryEvent> libraryEvents = new ArrayList<>();
+        List<ListenableFuture<? extends SendResult<Integer, ?>>> futures = new ArrayList<>();
+        Deque<Integer> outstanding = new ArrayDeque<>();
+
+        try (MappingIterator<LibraryEvent> iterator = objectMapper.readerFor(LibraryEvent.class).readValues(requestBody)) {
+            int index = 0;
+            while (true) {
+                LibraryEventResult result = LibraryEventResult.builder().index(index++).build();
+                LibraryEvent libraryEvent = null;
+                boolean endOfStream = false;
+                try {
+                    if (!iterator.hasNextValue()) {
+                        break;
+                    }
+                    libraryEvent = iterator.nextValue();
+                } catch (JsonParseException e) {
+                    // the stream is broken, nothing after this point can be read
+                    result.setError(e.getOriginalMessage());
+                    endOfStream = true;
+                } catch (JsonProcessingException e) {
+                    result.setError(e.getOriginalMessage());
+                }
+
+                boolean valid = libraryEvent != null && prepareBatchItem(libraryEvent, result);
+                results.add(result);
+                libraryEvents.add(valid ? libraryEvent : null);
+                futures.add(valid && !atomic ? sendBatchItem(libraryEvent, result, outstanding, futures, results) : null);
+                if (endOfStream) {
+                    break;
+                }
+            }
+        }
+
+        if (atomic) {
+            return publishBatchAtomically(libraryEvents, results);
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            awaitBatchItem(futures.get(i), results.get(i));
+        }
+
+        log.info("Batch of {} library events handled", results.size());
+        return ResponseEntity.status(HttpStatus.OK).body(results);
+    }
+
+    private boolean prepareBatchItem(LibraryEvent libraryEvent, LibraryEventResult result) {
+
+        result.setLibraryEventId(libraryEvent.getLibraryEventId());
+
+        if (libraryEvent.getLibraryEventType() == null) {
+            libraryEvent.setLibraryEventType(LibraryEventType.NEW);
+        }
+        if (libraryEvent.getLibraryEventType() == LibraryEventType.UPDATE && libraryEvent.getLibraryEventId() == null) {
+            result.setError("Please pass the LibraryEventId");
+            return false;
+        }
+
+        String errorMessage = validate(libraryEvent);
+        if (errorMessage != null) {
+            result.setError(errorMessage);
+            return false;
+        }
+        return true;
+    }
+
+    // outstanding : indexes of the items of this batch sent and not awaited yet, oldest first
+    private ListenableFuture<? extends SendResult<Integer, ?>> sendBatchItem(LibraryEvent libraryEvent, LibraryEventResult result,
+                                                                             Deque<Integer> outstanding,
+                                                                             List<ListenableFuture<? extends SendResult<Integer, ?>>> futures,
+                                                                             List<LibraryEventResult> results) {
+
+        while (true) {
+            try {
+                ListenableFuture<? extends SendResult<Integer, ?>> future = send(libraryEvent);
+                outstanding.addLast(results.size() - 1);
+                return future;
+            } catch (LibraryEventRejectedException e) {
+                if (outstanding.isEmpty()) {
+                    // the budget is held by other requests, nothing of this batch to wait for
+                    result.setError(e.getMessage());
+                    return null;
+                }
+                int oldest = outstanding.removeFirst();
+                awaitBatchItem(futures.get(oldest), results.get(oldest));
+            } catch (Exception e) {
+                result.setError(e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    private ResponseEntity<List<LibraryEventResult>> publishBatchAtomically(List<LibraryEvent> libraryEvents, List<LibraryEventResult> results) {
+
+        if (results.stream().anyMatch(result -> result.getError() != null)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(results);
+        }
+        if (results.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.OK).body(results);
+        }
+
+        try {
+            List<SendResult<Integer, String>> sendResults = libraryEventProducer.sendLibraryEvents_Transactional(libraryEvents);
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).setPartition(sendResults.get(i).getRecordMetadata().partition());
+                results.get(i).setOffset(sendResults.get(i).getRecordMetadata().offset());
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            log.error("Transactional batch of {} library events aborted : {}", results.size(), cause.getMessage());
+            results.forEach(result -> result.setError("Transaction aborted : " + cause.getMessage()));
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(results);
+        }
+
+        log.info("Transactional batch of {} library events committed", results.size());
+        return ResponseEntity.status(HttpStatus.OK).body(results);
+    }
+
+    private void awaitBatchItem(ListenableFuture<? extends SendResult<Integer, ?>> future, LibraryEventResult result) {
+
+        if (future == null) {
+            return;
+        }
+        try {
+            SendResult<Integer, ?> sendResult = future.get();
+            if (sendResult != null) {
+                result.setPartition(sendResult.getRecordMetadata().partition());
+                result.setOffset(sendResult.getRecordMetadata().offset());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LibraryEventSpilledException) {
+                result.setSpilled(true);
+            } else {
+                result.setError(e.getCause().getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.setError(e.getMessage());
+        }
+    }
+
+    // a duplicate of a request still in flight waits here for the original response
+    private ResponseEntity<?> idempotent(String idempotencyKey, String scope, Callable<ResponseEntity<?>> request) throws Exception {
+
+        CompletableFuture<ResponseEntity<?>> response = idempotencyCache.execute(idempotencyKey, scope,
+                () -> CompletableFuture.completedFuture(request.call()));
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private CompletableFuture<ResponseEntity<?>> whenAcked(ListenableFuture<? extends SendResult<Integer, ?>> future,
+                                                           HttpStatus status, LibraryEvent libraryEvent) {
+
+        return future.completable()
+                .<ResponseEntity<?>>thenApply(sendResult -> ResponseEntity.status(status)
+                        .header("X-Kafka-Partition", String.valueOf(sendResult.getRecordMetadata().partition()))
+                        .header("X-Kafka-Offset", String.valueOf(sendResult.getRecordMetadata().offset()))
+                        .body(libraryEvent))
+                .exceptionally(ex -> {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    if (cause instanceof LibraryEventSpilledException) {
+                        log.warn("Library Event was not acknowledged, {}", cause.getMessage());
+                        return ResponseEntity.status(HttpStatus.ACCEPTED)
+                                .header(SPILLED_HEADER, "true")
+                                .body(libraryEvent);
+                    }
+                    log.error("Library Event was not acknowledged : {}", cause.getMessage());
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .body("Library Event could not be delivered : " + cause.getMessage());
+                });
+    }
+
+    private ListenableFuture<? extends SendResult<Integer, ?>> send(LibraryEvent libraryEvent) throws JsonProcessingException {
+
+        if (wireFormat == LibraryEventWireFormat.BINARY) {
+            return libraryEventProducer.sendLibraryEvent_Binary(libraryEvent);
+        }
+        if (byteArrayValues) {
+            return libraryEventProducer.sendLibraryEvent_Bytes(libraryEvent);
+        }
+        return libraryEventProducer.sendLibraryEvent_Approach2(libraryEvent);
+    }
+
+    private String validate(LibraryEvent libraryEvent) {
+
+        var violations = validator.validate(libraryEvent);
+        if (violations.isEmpty()) {
+            return null;
+        }
+        return violations.stream()
+                .map(violation -> violation.getPropertyPath() + " - " + violation.getMessage())
+                .sorted()
+                .collect(Collectors.joining(" , "));
     }
 }
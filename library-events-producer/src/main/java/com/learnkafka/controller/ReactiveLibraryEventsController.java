@@ -0,0 +1,114 @@
+package com.learnkafka.controller;
+
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventResult;
+import com.learnkafka.domain.LibraryEventType;
+import com.learnkafka.exception.LibraryEventRejectedException;
+import com.learnkafka.producer.ReactiveLibraryEventProducer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.codec.CodecException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import javax.validation.Valid;
+import javax.validation.Validator;
+import java.util.stream.Collectors;
+
+/**
+ * WebFlux version of {@link LibraryEventsController}, active when the application runs on the reactive stack
+ * ({@code spring.main.web-application-type=reactive}). Requests are served by the event loop threads, nothing
+ * blocks while a record is in flight, so every response is sent once the broker has acknowledged the event.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Slf4j
+public class ReactiveLibraryEventsController {
+
+    @Autowired
+    ReactiveLibraryEventProducer reactiveLibraryEventProducer;
+
+    @Autowired
+    Validator validator;
+
+    @PostMapping("/v1/libraryevent")
+    public Mono<ResponseEntity<?>> postLibraryEvent(@RequestBody @Valid LibraryEvent libraryEvent) {
+
+        libraryEvent.setLibraryEventType(LibraryEventType.NEW);
+        return send(libraryEvent, HttpStatus.CREATED);
+    }
+
+    @PutMapping("/v1/libraryevent")
+    public Mono<ResponseEntity<?>> putLibraryEvent(@RequestBody @Valid LibraryEvent libraryEvent) {
+
+        if(libraryEvent.getLibraryEventId() == null){
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Please pass the LibraryEventId"));
+        }
+
+        libraryEvent.setLibraryEventType(LibraryEventType.UPDATE);
+        return send(libraryEvent, HttpStatus.OK);
+    }
+
+    //stream : ndjson in, one ndjson result per event out, read from the connection only as fast as kafka acknowledges
+
+    @PostMapping(value = "/v1/libraryevent/stream",
+            consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<LibraryEventResult> postLibraryEventStream(@RequestBody Flux<LibraryEvent> libraryEvents) {
+
+        return libraryEvents
+                .index((index, libraryEvent) -> prepareStreamItem(index.intValue(), libraryEvent))
+                .publish(items -> Flux.merge(
+                        items.filter(item -> item.getT1().getError() != null).map(Tuple2::getT1),
+                        reactiveLibraryEventProducer.sendLibraryEvents(items.filter(item -> item.getT1().getError() == null))))
+                // the stream is broken, nothing after this point can be read
+                .onErrorResume(CodecException.class, e -> Mono.just(LibraryEventResult.builder().index(-1).error(e.getMessage()).build()));
+    }
+
+    private Tuple2<LibraryEventResult, LibraryEvent> prepareStreamItem(int index, LibraryEvent libraryEvent) {
+
+        LibraryEventResult result = LibraryEventResult.builder()
+                .index(index)
+                .libraryEventId(libraryEvent.getLibraryEventId())
+                .build();
+
+        if (libraryEvent.getLibraryEventType() == null) {
+            libraryEvent.setLibraryEventType(LibraryEventType.NEW);
+        }
+        if (libraryEvent.getLibraryEventType() == LibraryEventType.UPDATE && libraryEvent.getLibraryEventId() == null) {
+            result.setError("Please pass the LibraryEventId");
+        } else {
+            var violations = validator.validate(libraryEvent);
+            if (!violations.isEmpty()) {
+                result.setError(violations.stream()
+                        .map(violation -> violation.getPropertyPath() + " - " + violation.getMessage())
+                        .sorted()
+                        .collect(Collectors.joining(" , ")));
+            }
+        }
+        return Tuples.of(result, libraryEvent);
+    }
+
+    private Mono<ResponseEntity<?>> send(LibraryEvent libraryEvent, HttpStatus status) {
+
+        return reactiveLibraryEventProducer.sendLibraryEvent(libraryEvent)
+                .<ResponseEntity<?>>map(recordMetadata -> ResponseEntity.status(status)
+                        .header("X-Kafka-Partition", String.valueOf(recordMetadata.partition()))
+                        .header("X-Kafka-Offset", String.valueOf(recordMetadata.offset()))
+                        .body(libraryEvent))
+                .onErrorResume(e -> !(e instanceof LibraryEventRejectedException), e -> {
+                    log.error("Library Event was not acknowledged : {}", e.getMessage());
+                    return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .body("Library Event could not be delivered : " + e.getMessage()));
+                });
+    }
+}
@@ -0,0 +1,23 @@
+package com.learnkafka.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class LibraryEventResult {
+
+    private int index;
+    private Integer libraryEventId;
+    private Integer partition;
+    private Long offset;
+    private String error;
+    // not acknowledged but kept in the spill journal, published by the replay
+    private Boolean spilled;
+}
@@ -1,12 +1,15 @@
 package com.learnkafka.exception;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.support.WebExchangeBindException;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -17,7 +20,16 @@ public class LibraryEventExceptionHandling {
 
     @ExceptionHandler(MethodArgumentNotValidException.class)
     public ResponseEntity<?> handleRequestBody(MethodArgumentNotValidException ex){
-        List<FieldError> errorList = ex.getBindingResult().getFieldErrors();
+        return badRequest(ex.getBindingResult().getFieldErrors());
+    }
+
+    // same validation failure on the reactive stack
+    @ExceptionHandler(WebExchangeBindException.class)
+    public ResponseEntity<?> handleRequestBody(WebExchangeBindException ex){
+        return badRequest(ex.getFieldErrors());
+    }
+
+    private ResponseEntity<?> badRequest(List<FieldError> errorList){
 
         var errorMessage = errorList.stream()
                 .map(fieldError -> fieldError.getField() + " - " + fieldError.getDefaultMessage())
@@ -28,4 +40,17 @@ public class LibraryEventExceptionHandling {
 
 
     }
+
+    // malformed body of the raw endpoints, read with a streaming parser instead of a message converter
+    @ExceptionHandler(JsonParseException.class)
+    public ResponseEntity<?> handleMalformedBody(JsonParseException ex){
+        return new ResponseEntity<>(ex.getOriginalMessage(), HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(LibraryEventRejectedException.class)
+    public ResponseEntity<?> handleRejected(LibraryEventRejectedException ex){
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(ex.getMessage());
+    }
 }
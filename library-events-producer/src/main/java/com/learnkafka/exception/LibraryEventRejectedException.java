@@ -0,0 +1,20 @@
+package com.learnkafka.exception;
+
+/**
+ * Thrown when the in-flight send budget is exhausted, the request is shed instead of waiting on the producer.
+ */
+public class LibraryEventRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public LibraryEventRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
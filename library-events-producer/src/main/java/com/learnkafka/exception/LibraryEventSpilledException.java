@@ -0,0 +1,14 @@
+package com.learnkafka.exception;
+
+/**
+ * Completes the future of a send that failed but was kept in the spill journal : the event will be published by the
+ * replay, the caller must not send it again.
+ */
+public class LibraryEventSpilledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LibraryEventSpilledException(Integer key, Throwable cause) {
+        super("Library Event with key " + key + " is kept in the spill journal for replay", cause);
+    }
+}
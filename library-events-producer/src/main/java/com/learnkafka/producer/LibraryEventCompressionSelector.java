@@ -0,0 +1,373 @@
+package com.learnkafka.producer;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.TimestampType;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import javax.annotation.PreDestroy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Picks the compression codec of the JSON String path from the payloads actually being sent.
+ * <p>
+ * Every n-th value is kept in a small sample ring. On each evaluation the samples are packed into a record batch
+ * of the size the producer currently fills, the batch is compressed with none, lz4 and zstd, and the codec with
+ * the lowest cost wins, where cost is the compression time plus the compressed bytes priced at
+ * {@code network-nanos-per-byte}. Small or poorly filled batches end up uncompressed, larger ones on lz4 or zstd.
+ * <p>
+ * Each codec has its own producer, created from the auto-configured factory on first use and closed on shutdown.
+ * A switch only happens when the new codec is cheaper by the hysteresis margin. Sends go through {@link #send}
+ * under a read lock, and a switch takes the write lock and flushes the previous producer before routing to the next
+ * one, so records of the same key cannot overtake each other across a switch. A send waits at most
+ * {@code switch-wait-ms} for the lock : past it, when the broker is too slow for the flush, the switch is abandoned
+ * and the send goes to the producer in use, the request threads never wait on the flush.
+ * <p>
+ * Only the JSON String path is covered. The byte[], raw, binary, transactional and reactive sends have producers of
+ * their own whatever the codec, so the order of the events of one key holds only among the sends of the same path.
+ */
+@Component
+@Slf4j
+public class LibraryEventCompressionSelector implements MeterBinder {
+
+    static final List<CompressionType> CANDIDATES = List.of(CompressionType.NONE, CompressionType.LZ4, CompressionType.ZSTD);
+
+    private static final int SAMPLE_SLOTS = 256;
+
+    private static final int DEFAULT_BATCH_BYTES = 16384;
+
+    private static final int MEASURE_ROUNDS = 3;
+
+    private static final int IDLE = 0;
+    private static final int SWITCHING = 1;
+    private static final int ABANDONED = 2;
+
+    // lazy : the meter registry binds this before the producer factory, which needs the registry for its own metrics
+    @Autowired
+    @Lazy
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    private final boolean adaptive;
+
+    private final int sampleEvery;
+
+    private final double networkNanosPerByte;
+
+    private final double hysteresis;
+
+    private final long switchWaitMs;
+
+    private final AtomicReferenceArray<String> samples = new AtomicReferenceArray<>(SAMPLE_SLOTS);
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final Map<CompressionType, KafkaTemplate<Integer, String>> templates = new EnumMap<>(CompressionType.class);
+
+    private final ReadWriteLock switchLock = new ReentrantReadWriteLock();
+
+    // set before the write lock is requested, a send that gave up waiting abandons the switch
+    private final AtomicInteger switchState = new AtomicInteger(IDLE);
+
+    private volatile CompressionType selected;
+
+    private volatile KafkaTemplate<Integer, String> selectedTemplate;
+
+    private volatile Map<CompressionType, CodecSample> lastEvaluation = Collections.emptyMap();
+
+    public LibraryEventCompressionSelector(@Value("${library-events.producer.compression.adaptive:false}") boolean adaptive,
+                                           @Value("${library-events.producer.compression.sample-every:16}") int sampleEvery,
+                                           @Value("${library-events.producer.compression.network-nanos-per-byte:8}") double networkNanosPerByte,
+                                           @Value("${library-events.producer.compression.hysteresis:0.1}") double hysteresis,
+                                           @Value("${library-events.producer.compression.switch-wait-ms:100}") long switchWaitMs) {
+        this.adaptive = adaptive;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.networkNanosPerByte = networkNanosPerByte;
+        this.hysteresis = hysteresis;
+        this.switchWaitMs = switchWaitMs;
+    }
+
+    public void sample(String value) {
+        if (!adaptive) {
+            return;
+        }
+        long sequence = sent.getAndIncrement();
+        if (sequence % sampleEvery == 0) {
+            samples.lazySet((int) ((sequence / sampleEvery) % SAMPLE_SLOTS), value);
+        }
+    }
+
+    /**
+     * The template of the selected codec, or the given one until a codec has been selected.
+     */
+    public KafkaTemplate<Integer, String> template(KafkaTemplate<Integer, String> defaultTemplate) {
+        KafkaTemplate<Integer, String> template = selectedTemplate;
+        return template != null ? template : defaultTemplate;
+    }
+
+    /**
+     * Sends with the template of the selected codec, never while a switch is flushing the previous one.
+     */
+    public <T> ListenableFuture<T> send(KafkaTemplate<Integer, String> defaultTemplate,
+                                        Function<KafkaTemplate<Integer, String>, ListenableFuture<T>> send) {
+        if (!adaptive) {
+            return send.apply(defaultTemplate);
+        }
+        if (!tryReadLock()) {
+            int state = switchState.get();
+            if (state == ABANDONED || (state == SWITCHING && switchState.compareAndSet(SWITCHING, ABANDONED))) {
+                // the switch will not happen, the previous producer stays the one in use
+                return send.apply(template(defaultTemplate));
+            }
+            // the switch is past its flush, only the routing to the next producer is left
+            switchLock.readLock().lock();
+        }
+        try {
+            return send.apply(template(defaultTemplate));
+        } finally {
+            switchLock.readLock().unlock();
+        }
+    }
+
+    private boolean tryReadLock() {
+        try {
+            return switchLock.readLock().tryLock(switchWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public CompressionType selected() {
+        return selected;
+    }
+
+    @Scheduled(fixedDelayString = "${library-events.producer.compression.evaluate-interval-ms:30000}")
+    public void evaluate() {
+
+        if (!adaptive) {
+            return;
+        }
+        List<byte[]> values = sampledValues();
+        if (values.isEmpty()) {
+            return;
+        }
+
+        int batchBytes = batchFillBytes();
+        Map<CompressionType, CodecSample> evaluation = new EnumMap<>(CompressionType.class);
+        for (CompressionType codec : CANDIDATES) {
+            evaluation.put(codec, measure(codec, values, batchBytes));
+        }
+        lastEvaluation = evaluation;
+
+        CompressionType best = cheapest(evaluation, networkNanosPerByte);
+        CompressionType current = selected;
+        if (current == null
+                || (best != current && evaluation.get(best).cost(networkNanosPerByte) < evaluation.get(current).cost(networkNanosPerByte) * (1 - hysteresis))) {
+            switchTo(best, evaluation.get(best), batchBytes);
+        }
+    }
+
+    static CompressionType cheapest(Map<CompressionType, CodecSample> evaluation, double networkNanosPerByte) {
+        CompressionType best = CANDIDATES.get(0);
+        for (CompressionType codec : CANDIDATES) {
+            if (evaluation.get(codec).cost(networkNanosPerByte) < evaluation.get(best).cost(networkNanosPerByte)) {
+                best = codec;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Packs the values into one record batch of about {@code batchBytes} uncompressed, the best of a few rounds.
+     */
+    static CodecSample measure(CompressionType codec, List<byte[]> values, int batchBytes) {
+
+        long bestNanos = Long.MAX_VALUE;
+        int uncompressed = 0;
+        int compressed = 0;
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(batchBytes + 1024), codec, TimestampType.CREATE_TIME, 0L);
+            long timestamp = System.currentTimeMillis();
+            int written = 0;
+            for (int i = 0; written < batchBytes; i++) {
+                byte[] value = values.get(i % values.size());
+                builder.append(timestamp, null, value);
+                written += value.length;
+            }
+            MemoryRecords records = builder.build();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            uncompressed = builder.uncompressedBytesWritten();
+            compressed = records.sizeInBytes();
+        }
+        return new CodecSample(uncompressed, compressed, bestNanos);
+    }
+
+    private void switchTo(CompressionType codec, CodecSample sample, int batchBytes) {
+
+        KafkaTemplate<Integer, String> next = templates.computeIfAbsent(codec, this::createTemplate);
+        boolean switched;
+        switchState.set(SWITCHING);
+        switchLock.writeLock().lock();
+        try {
+            // everything sent so far is acked or failed before the first record goes out on the next producer
+            if (switchState.get() == SWITCHING) {
+                template(kafkaTemplate).flush();
+            }
+            switched = switchState.compareAndSet(SWITCHING, IDLE);
+            if (switched) {
+                selectedTemplate = next;
+                selected = codec;
+            }
+        } finally {
+            switchState.set(IDLE);
+            switchLock.writeLock().unlock();
+        }
+        if (switched) {
+            log.info("Compression switched to {} : batch of {} bytes compresses to {} bytes in {} us",
+                    codec.name, sample.uncompressedBytes, sample.compressedBytes, sample.nanos / 1000);
+        } else {
+            log.info("Compression switch to {} abandoned, sends could not wait {} ms for the previous producer to flush",
+                    codec.name, switchWaitMs);
+        }
+    }
+
+    /**
+     * The per codec templates own a copy of the producer factory, which the context does not know about.
+     */
+    @PreDestroy
+    void closeTemplates() throws Exception {
+        for (KafkaTemplate<Integer, String> template : templates.values()) {
+            template.flush();
+            if (template.getProducerFactory() instanceof DisposableBean) {
+                ((DisposableBean) template.getProducerFactory()).destroy();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private KafkaTemplate<Integer, String> createTemplate(CompressionType codec) {
+        ProducerFactory<Integer, String> producerFactory = (ProducerFactory<Integer, String>) (ProducerFactory<?, ?>) kafkaTemplate.getProducerFactory();
+        KafkaTemplate<Integer, String> template = new KafkaTemplate<>(producerFactory,
+                Map.of(ProducerConfig.COMPRESSION_TYPE_CONFIG, codec.name));
+        template.setDefaultTopic(kafkaTemplate.getDefaultTopic());
+        return template;
+    }
+
+    private List<byte[]> sampledValues() {
+        List<byte[]> values = new ArrayList<>(SAMPLE_SLOTS);
+        for (int slot = 0; slot < SAMPLE_SLOTS; slot++) {
+            String value = samples.get(slot);
+            if (value != null) {
+                values.add(value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    // uncompressed bytes per batch the producer in use actually sends : batch-size-avg / compression-rate-avg
+    private int batchFillBytes() {
+        double batchSize = producerMetric("batch-size-avg");
+        double compressionRate = producerMetric("compression-rate-avg");
+        if (Double.isNaN(batchSize) || batchSize <= 0) {
+            return DEFAULT_BATCH_BYTES;
+        }
+        if (!Double.isNaN(compressionRate) && compressionRate > 0) {
+            batchSize = batchSize / compressionRate;
+        }
+        return (int) Math.max(1, Math.min(batchSize, 1024 * 1024));
+    }
+
+    private double producerMetric(String name) {
+        for (Map.Entry<MetricName, ? extends Metric> metric : template(kafkaTemplate).metrics().entrySet()) {
+            if (metric.getKey().name().equals(name) && metric.getKey().group().equals("producer-metrics")) {
+                Object value = metric.getValue().metricValue();
+                return value instanceof Double ? (Double) value : Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+
+        for (CompressionType codec : CANDIDATES) {
+            Gauge.builder("library.events.producer.compression.selected", this, selector -> selector.selected == codec ? 1 : 0)
+                    .description("1 for the compression codec in use")
+                    .tag("codec", codec.name)
+                    .register(registry);
+            Gauge.builder("library.events.producer.compression.ratio", this, selector -> selector.sampleOf(codec).ratio())
+                    .description("Compressed / uncompressed size of a sampled batch")
+                    .tag("codec", codec.name)
+                    .register(registry);
+            Gauge.builder("library.events.producer.compression.cpu", this, selector -> selector.sampleOf(codec).nanosPerByte())
+                    .description("Compression time per uncompressed byte of a sampled batch")
+                    .baseUnit("nanoseconds")
+                    .tag("codec", codec.name)
+                    .register(registry);
+        }
+    }
+
+    CodecSample sampleOf(CompressionType codec) {
+        CodecSample sample = lastEvaluation.get(codec);
+        return sample != null ? sample : CodecSample.EMPTY;
+    }
+
+    static final class CodecSample {
+
+        static final CodecSample EMPTY = new CodecSample(0, 0, 0);
+
+        final int uncompressedBytes;
+        final int compressedBytes;
+        final long nanos;
+
+        CodecSample(int uncompressedBytes, int compressedBytes, long nanos) {
+            this.uncompressedBytes = uncompressedBytes;
+            this.compressedBytes = compressedBytes;
+            this.nanos = nanos;
+        }
+
+        double ratio() {
+            return uncompressedBytes == 0 ? Double.NaN : (double) compressedBytes / uncompressedBytes;
+        }
+
+        double nanosPerByte() {
+            return uncompressedBytes == 0 ? Double.NaN : (double) nanos / uncompressedBytes;
+        }
+
+        // per uncompressed byte, so batches of slightly different sizes compare fairly
+        double cost(double networkNanosPerByte) {
+            return (nanos + compressedBytes * networkNanosPerByte) / Math.max(1, uncompressedBytes);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.learnkafka.producer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.learnkafka.domain.LibraryEvent;
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.utils.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes library events with a stable murmur2 hash, the same one Kafka's default partitioner applies to keys.
+ * <p>
+ * {@code library.event.partition.key=libraryEventId} (default) hashes the record key and falls back to the
+ * bookId for keyless (NEW) events, {@code bookId} always hashes the bookId so every event of a book keeps
+ * its order. The bookId is taken from the value : {@link LibraryEvent} values directly, JSON values (String or
+ * byte[]) with a streaming scan. Records without either are spread round-robin.
+ */
+public class LibraryEventPartitioner implements Partitioner {
+
+    public static final String PARTITION_KEY_CONFIG = "library.event.partition.key";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    private boolean byBookId;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object value = configs.get(PARTITION_KEY_CONFIG);
+        if (value == null || "libraryEventId".equals(value.toString().trim())) {
+            byBookId = false;
+        } else if ("bookId".equals(value.toString().trim())) {
+            byBookId = true;
+        } else {
+            throw new ConfigException(PARTITION_KEY_CONFIG, value, "must be libraryEventId or bookId");
+        }
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+
+        int numPartitions = cluster.partitionCountForTopic(topic);
+
+        if (!byBookId && keyBytes != null) {
+            return partitionFor(keyBytes, numPartitions);
+        }
+
+        Integer bookId = bookId(value);
+        if (bookId != null) {
+            return partitionFor(bookId, numPartitions);
+        }
+        if (keyBytes != null) {
+            return partitionFor(keyBytes, numPartitions);
+        }
+        return Utils.toPositive(counter.getAndIncrement()) % numPartitions;
+    }
+
+    /**
+     * Same bytes as {@code IntegerSerializer}, so a bookId lands where an equal record key would.
+     */
+    static int partitionFor(int id, int numPartitions) {
+        return partitionFor(ByteBuffer.allocate(Integer.BYTES).putInt(id).array(), numPartitions);
+    }
+
+    static int partitionFor(byte[] keyBytes, int numPartitions) {
+        return Utils.toPositive(Utils.murmur2(keyBytes)) % numPartitions;
+    }
+
+    private Integer bookId(Object value) {
+
+        if (value instanceof LibraryEvent) {
+            LibraryEvent libraryEvent = (LibraryEvent) value;
+            return libraryEvent.getBook() != null ? libraryEvent.getBook().getBookId() : null;
+        }
+        try {
+            if (value instanceof byte[]) {
+                try (JsonParser parser = JSON_FACTORY.createParser((byte[]) value)) {
+                    return bookId(parser);
+                }
+            }
+            if (value instanceof String) {
+                try (JsonParser parser = JSON_FACTORY.createParser((String) value)) {
+                    return bookId(parser);
+                }
+            }
+        } catch (IOException e) {
+            // not a JSON library event, route it like a record without a bookId
+        }
+        return null;
+    }
+
+    // looks for book.bookId at the top level only, nested objects and arrays are skipped
+    private Integer bookId(JsonParser parser) throws IOException {
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("book".equals(field) && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String bookField = parser.getCurrentName();
+                    JsonToken bookToken = parser.nextToken();
+                    if ("bookId".equals(bookField)) {
+                        // out of the int range it is no valid bookId either, getIntValue would throw
+                        return bookToken == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() == JsonParser.NumberType.INT
+                                ? parser.getIntValue() : null;
+                    }
+                    parser.skipChildren();
+                }
+                return null;
+            }
+            parser.skipChildren();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -25,25 +25,47 @@ package com.learnkafka.producer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.codec.LibraryEventBinaryCodec;
+import com.learnkafka.codec.LibraryEventSerializer;
+import com.learnkafka.codec.LibraryEventTraceHeaders;
+import com.learnkafka.codec.LibraryEventWireFormat;
+import com.learnkafka.diagnostics.FlightRecorder;
 import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import com.learnkafka.exception.LibraryEventSpilledException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.internals.RecordHeader;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Component;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
 public class LibraryEventProducer {
 
+    static final Header EVENT_SOURCE_HEADER = new RecordHeader("event-source", "scanner".getBytes(StandardCharsets.UTF_8));
+
 
     String topic = "library-events";
     @Autowired
@@ -52,22 +74,96 @@ public class LibraryEventProducer {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    LibraryEventSendBudget sendBudget;
+
+    @Autowired
+    LibraryEventProducerMetrics metrics;
+
+    @Autowired
+    LibraryEventSpillJournal spillJournal;
+
+    @Autowired
+    FlightRecorder flightRecorder;
+
+    @Autowired
+    LibraryEventCompressionSelector compressionSelector;
+
+    KafkaTemplate<Integer, LibraryEvent> binaryKafkaTemplate;
+
+    KafkaTemplate<Integer, byte[]> bytesKafkaTemplate;
+
+    LibraryEventJsonBytesWriter jsonBytesWriter;
+
+    KafkaTemplate<Integer, String> transactionalKafkaTemplate;
+
+    @Value("${library-events.producer.transaction.id-prefix:library-events-tx-}")
+    String transactionIdPrefix;
+
+    @Value("${library-events.producer.transaction.batch-size:262144}")
+    int transactionBatchSize;
+
+    @Value("${library-events.producer.transaction.linger-ms:20}")
+    int transactionLingerMs;
+
+    @PostConstruct
+    void initKafkaTemplates() {
+        Map<String, Object> binaryOverrides = Map.of(
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, LibraryEventSerializer.class,
+                LibraryEventSerializer.WIRE_FORMAT_CONFIG, LibraryEventWireFormat.BINARY.name());
+        binaryKafkaTemplate = new KafkaTemplate<>(producerFactory(), binaryOverrides);
+        binaryKafkaTemplate.setDefaultTopic(topic);
+
+        bytesKafkaTemplate = new KafkaTemplate<>(producerFactory(),
+                Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class));
+        bytesKafkaTemplate.setDefaultTopic(topic);
+        jsonBytesWriter = new LibraryEventJsonBytesWriter(objectMapper);
+
+        // idempotent + transactional, with bigger batches : a whole group is committed at once anyway
+        Map<String, Object> transactionalOverrides = Map.of(
+                ProducerConfig.TRANSACTIONAL_ID_CONFIG, transactionIdPrefix,
+                ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true,
+                ProducerConfig.ACKS_CONFIG, "all",
+                ProducerConfig.BATCH_SIZE_CONFIG, transactionBatchSize,
+                ProducerConfig.LINGER_MS_CONFIG, transactionLingerMs);
+        transactionalKafkaTemplate = new KafkaTemplate<>(producerFactory(), transactionalOverrides);
+        transactionalKafkaTemplate.setDefaultTopic(topic);
+    }
+
+    // templates with overrides own a copy of the producer factory, the context only closes the auto-configured one.
+    // Closing the producers sends what they still buffer
+    @PreDestroy
+    void destroyKafkaTemplates() throws Exception {
+        for (KafkaTemplate<Integer, ?> template : List.of(binaryKafkaTemplate, bytesKafkaTemplate, transactionalKafkaTemplate)) {
+            if (template.getProducerFactory() instanceof DisposableBean) {
+                ((DisposableBean) template.getProducerFactory()).destroy();
+            }
+        }
+    }
+
     public void sendLibraryEvent(LibraryEvent libraryEvent) throws JsonProcessingException {
 
         Integer key = libraryEvent.getLibraryEventId();
+        LibraryEventType type = libraryEvent.getLibraryEventType();
+        long serializeStart = System.nanoTime();
         String value = objectMapper.writeValueAsString(libraryEvent);
-        ListenableFuture<SendResult<Integer, String>> listenableFuture = kafkaTemplate.sendDefault(key, value);
+        metrics.serialized(topic, type, serializeStart);
+
+        compressionSelector.sample(value);
+        long sendStart = System.nanoTime();
+        ListenableFuture<SendResult<Integer, String>> listenableFuture = admit(() -> compressionSelector.send(kafkaTemplate, template -> template.sendDefault(key, value)));
+        metrics.sendReturned(topic, type, sendStart);
 
         listenableFuture.addCallback(new ListenableFutureCallback<>() {
             @Override
             public void onFailure(Throwable ex) {
-                handleFailure(key, value, ex);
+                handleFailure(key, value, type, ex);
             }
 
             @Override
             public void onSuccess(SendResult<Integer, String> result) {
 
-                handleSuccess(key, value, result);
+                handleSuccess(key, value, type, sendStart, result);
             }
         });
     }
@@ -75,42 +171,162 @@ public class LibraryEventProducer {
     public ListenableFuture<SendResult<Integer, String>> sendLibraryEvent_Approach2(LibraryEvent libraryEvent) throws JsonProcessingException {
 
         Integer key = libraryEvent.getLibraryEventId();
+        LibraryEventType type = libraryEvent.getLibraryEventType();
+        long serializeStart = System.nanoTime();
         String value = objectMapper.writeValueAsString(libraryEvent);
+        metrics.serialized(topic, type, serializeStart);
 
         ProducerRecord<Integer,String> producerRecord = buildProducerRecord(key,value,topic);
-        ListenableFuture<SendResult<Integer, String>> listenableFuture = kafkaTemplate.send(producerRecord);
+        compressionSelector.sample(value);
+        long sendStart = System.nanoTime();
+        ListenableFuture<SendResult<Integer, String>> listenableFuture = admit(() -> compressionSelector.send(kafkaTemplate, template -> template.send(producerRecord)));
+        metrics.sendReturned(topic, type, sendStart);
 
-        listenableFuture.addCallback(new ListenableFutureCallback<>() {
-            @Override
-            public void onFailure(Throwable ex) {
-                handleFailure(key, value, ex);
-            }
+        return tracked(listenableFuture, key, value, type, sendStart);
+    }
 
-            @Override
-            public void onSuccess(SendResult<Integer, String> result) {
+    static ProducerRecord<Integer, String> buildProducerRecord(Integer key, String value, String topic) {
+
+        return new ProducerRecord<>(topic,null,key,value,recordHeaders(LibraryEventWireFormat.JSON));
+    }
+
+    // event source, the content type unless the serializer adds it, and the trace headers of this record
+    static List<Header> recordHeaders(LibraryEventWireFormat wireFormat) {
+        Header ingestTimestamp = LibraryEventTraceHeaders.ingestTimestamp(LibraryEventTraceHeaders.nowMicros());
+        Header correlationId = LibraryEventTraceHeaders.newCorrelationId();
+        if (wireFormat == null) {
+            return List.of(EVENT_SOURCE_HEADER, ingestTimestamp, correlationId);
+        }
+        return List.of(EVENT_SOURCE_HEADER, wireFormat.header(), ingestTimestamp, correlationId);
+    }
+
+    public ListenableFuture<SendResult<Integer, byte[]>> sendLibraryEvent_Bytes(LibraryEvent libraryEvent) throws JsonProcessingException {
+
+        Integer key = libraryEvent.getLibraryEventId();
+        LibraryEventType type = libraryEvent.getLibraryEventType();
+        long serializeStart = System.nanoTime();
+        byte[] value = jsonBytesWriter.write(libraryEvent);
+        metrics.serialized(topic, type, serializeStart);
 
-                handleSuccess(key, value, result);
+        ProducerRecord<Integer, byte[]> producerRecord = new ProducerRecord<>(topic, null, key, value, recordHeaders(LibraryEventWireFormat.JSON));
+        long sendStart = System.nanoTime();
+        ListenableFuture<SendResult<Integer, byte[]>> listenableFuture = admit(() -> bytesKafkaTemplate.send(producerRecord));
+        metrics.sendReturned(topic, type, sendStart);
+
+        return tracked(listenableFuture, key, libraryEvent, type, sendStart);
+    }
+
+    /**
+     * Sends JSON bytes as they came in, see {@link com.learnkafka.codec.LibraryEventRawJson}. Nothing is bound
+     * or serialized, the value must already be a checked library event.
+     */
+    public ListenableFuture<SendResult<Integer, byte[]>> sendLibraryEvent_Raw(Integer key, LibraryEventType type, byte[] value) {
+
+        ProducerRecord<Integer, byte[]> producerRecord = new ProducerRecord<>(topic, null, key, value, recordHeaders(LibraryEventWireFormat.JSON));
+        long sendStart = System.nanoTime();
+        ListenableFuture<SendResult<Integer, byte[]>> listenableFuture = admit(() -> bytesKafkaTemplate.send(producerRecord));
+        metrics.sendReturned(topic, type, sendStart);
+
+        return tracked(listenableFuture, key, value, type, sendStart);
+    }
+
+    public ListenableFuture<SendResult<Integer, LibraryEvent>> sendLibraryEvent_Binary(LibraryEvent libraryEvent) {
+
+        Integer key = libraryEvent.getLibraryEventId();
+        LibraryEventType type = libraryEvent.getLibraryEventType();
+
+        // LibraryEventSerializer encodes the value and adds the content-type header
+        ProducerRecord<Integer, LibraryEvent> producerRecord = new ProducerRecord<>(topic, null, key, libraryEvent, recordHeaders(null));
+        long sendStart = System.nanoTime();
+        ListenableFuture<SendResult<Integer, LibraryEvent>> listenableFuture = admit(() -> binaryKafkaTemplate.send(producerRecord));
+        metrics.sendReturned(topic, type, sendStart);
+
+        return tracked(listenableFuture, key, libraryEvent, type, sendStart);
+    }
+
+    // with the spill journal on, a send that fails before reaching the producer buffer (metadata or buffer
+    // timeout) is reported through the future like a broker failure, so that handleFailure journals it
+    private <V> ListenableFuture<SendResult<Integer, V>> admit(Supplier<ListenableFuture<SendResult<Integer, V>>> send) {
+        try {
+            return sendBudget.admit(send);
+        } catch (KafkaException e) {
+            if (!spillJournal.isEnabled()) {
+                throw e;
             }
-        });
-        return listenableFuture;
+            SettableListenableFuture<SendResult<Integer, V>> failed = new SettableListenableFuture<>();
+            failed.setException(e);
+            return failed;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> ProducerFactory<Integer, V> producerFactory() {
+        return (ProducerFactory<Integer, V>) (ProducerFactory<?, ?>) kafkaTemplate.getProducerFactory();
     }
 
-    private ProducerRecord<Integer, String> buildProducerRecord(Integer key, String value, String topic) {
 
-        List<Header> recordHeaders = List.of(new RecordHeader("event-source","scanner".getBytes()));
-        return new ProducerRecord<>(topic,null,key,value,recordHeaders);
+    /**
+     * Publishes the whole group in one Kafka transaction : read_committed consumers see all of the
+     * events or none of them. Every value is serialized before the transaction is opened, and the
+     * call returns once the transaction is committed. Any failure aborts the transaction and is
+     * rethrown.
+     */
+    public List<SendResult<Integer, String>> sendLibraryEvents_Transactional(List<LibraryEvent> libraryEvents) throws JsonProcessingException, ExecutionException, InterruptedException {
+
+        List<ProducerRecord<Integer, String>> producerRecords = new ArrayList<>(libraryEvents.size());
+        for (LibraryEvent libraryEvent : libraryEvents) {
+            long serializeStart = System.nanoTime();
+            String value = objectMapper.writeValueAsString(libraryEvent);
+            metrics.serialized(topic, libraryEvent.getLibraryEventType(), serializeStart);
+            producerRecords.add(buildProducerRecord(libraryEvent.getLibraryEventId(), value, topic));
+        }
+
+        List<ListenableFuture<SendResult<Integer, String>>> futures;
+        sendBudget.acquire(producerRecords.size());
+        long sendStart = System.nanoTime();
+        try {
+            futures = transactionalKafkaTemplate.executeInTransaction(operations -> {
+                List<ListenableFuture<SendResult<Integer, String>>> sent = new ArrayList<>(producerRecords.size());
+                producerRecords.forEach(producerRecord -> sent.add(operations.send(producerRecord)));
+                return sent;
+            });
+        } catch (RuntimeException e) {
+            libraryEvents.forEach(libraryEvent -> metrics.failed(topic, libraryEvent.getLibraryEventType()));
+            throw e;
+        } finally {
+            sendBudget.release(producerRecords.size());
+        }
+
+        // committed at this point, the futures are already complete
+        List<SendResult<Integer, String>> sendResults = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            SendResult<Integer, String> sendResult = futures.get(i).get();
+            metrics.acked(topic, libraryEvents.get(i).getLibraryEventType(), sendResult.getRecordMetadata().partition(), sendStart);
+            sendResults.add(sendResult);
+        }
+        log.info("Transaction committed for {} library events", sendResults.size());
+        return sendResults;
     }
 
 
     public SendResult<Integer, String> sendLibraryEventSynchronous(LibraryEvent libraryEvent) throws JsonProcessingException {
         Integer key = libraryEvent.getLibraryEventId();
+        LibraryEventType type = libraryEvent.getLibraryEventType();
+        long serializeStart = System.nanoTime();
         String value = objectMapper.writeValueAsString(libraryEvent);
+        metrics.serialized(topic, type, serializeStart);
+        compressionSelector.sample(value);
         SendResult<Integer, String> sendResult = null;
+        long sendStart = System.nanoTime();
         try {
-            sendResult =  kafkaTemplate.sendDefault(key,value).get();
+            sendResult =  admit(() -> compressionSelector.send(kafkaTemplate, template -> template.sendDefault(key,value))).get();
+            metrics.acked(topic, type, sendResult.getRecordMetadata().partition(), sendStart);
         }catch (ExecutionException | InterruptedException e){
+            metrics.failed(topic, type);
+            spill(key, value, e instanceof ExecutionException ? e.getCause() : e);
             log.error("ExecutionException/InterruptedException Sending the Message and the excepiton is {}",e.getMessage());
         }catch (Exception e){
+            metrics.failed(topic, type);
             log.error("Exception Sending the Message and the excepiton is {}",e.getMessage());
         }
         return  sendResult;
@@ -118,18 +334,64 @@ public class LibraryEventProducer {
 
 
 
-    private void handleFailure(Integer key, String value, Throwable ex) {
-        log.error("Error Sending the Message and the exception is {}",ex.getMessage());
-        try{
-            throw ex;
+    // the future handed to the caller : a failure the spill journal took completes it with a LibraryEventSpilledException
+    private <V> ListenableFuture<SendResult<Integer, V>> tracked(ListenableFuture<SendResult<Integer, V>> listenableFuture,
+                                                                 Integer key, Object value, LibraryEventType type, long sendStart) {
+
+        SettableListenableFuture<SendResult<Integer, V>> tracked = new SettableListenableFuture<>();
+        listenableFuture.addCallback(new ListenableFutureCallback<>() {
+            @Override
+            public void onFailure(Throwable ex) {
+                tracked.setException(handleFailure(key, value, type, ex) ? new LibraryEventSpilledException(key, ex) : ex);
+            }
+
+            @Override
+            public void onSuccess(SendResult<Integer, V> result) {
+
+                handleSuccess(key, value, type, sendStart, result);
+                tracked.set(result);
+            }
+        });
+        return tracked;
+    }
+
+    // true when the record was kept in the spill journal
+    private boolean handleFailure(Integer key, Object value, LibraryEventType type, Throwable ex) {
+        metrics.failed(topic, type);
+        boolean spilled = spill(key, value, ex);
+        // counted in the flight recorder summary, the full record only at debug
+        flightRecorder.recordFailure("producer.send", key, null, null, value, ex);
+        log.debug("Error Sending the Message for the key : {} and the exception is {}", key, ex.getMessage());
+        return spilled;
+    }
+
+    private boolean spill(Integer key, Object value, Throwable failure) {
 
-        }catch (Throwable throwable){
-            log.error("Error in OnFailure: {}",throwable.getMessage());
+        if (!spillJournal.isEnabled()) {
+            return false;
+        }
+        if (!LibraryEventSpillJournal.isRetriable(failure)) {
+            log.error("Library Event with key {} is not kept in the spill journal, Kafka will not take it : {}", key, failure.getMessage());
+            return false;
+        }
+        boolean spilled;
+        if (value instanceof LibraryEvent) {
+            spilled = spillJournal.append(key, LibraryEventBinaryCodec.encode((LibraryEvent) value), LibraryEventWireFormat.BINARY);
+        } else if (value instanceof byte[]) {
+            spilled = spillJournal.append(key, (byte[]) value, LibraryEventWireFormat.JSON);
+        } else {
+            spilled = spillJournal.append(key, value.toString().getBytes(StandardCharsets.UTF_8), LibraryEventWireFormat.JSON);
+        }
+        if (spilled) {
+            log.debug("Library Event with key {} is kept in the spill journal for replay", key);
         }
+        return spilled;
     }
 
-    private void handleSuccess(Integer key, String value, SendResult<Integer, String> result) {
-        log.info("Message Sent SuccessFully for the key : {} and the value is {}, partition is {}", key, value, result.getRecordMetadata().partition());
+    private void handleSuccess(Integer key, Object value, LibraryEventType type, long sendStartNanos, SendResult<Integer, ?> result) {
+        metrics.acked(topic, type, result.getRecordMetadata().partition(), sendStartNanos);
+        flightRecorder.record("producer.send", key, result.getRecordMetadata().partition(), result.getRecordMetadata().offset(), value);
+        log.debug("Message Sent SuccessFully for the key : {} and the value is {}, partition is {}", key, value, result.getRecordMetadata().partition());
     }
 
 
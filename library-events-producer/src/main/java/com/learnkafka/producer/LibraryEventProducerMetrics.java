@@ -0,0 +1,91 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.domain.LibraryEventType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot path meters of {@link LibraryEventProducer}. All timers publish a percentile histogram, tagged by topic and
+ * event type, the ack timer and the record counter also by partition. Meters are cached per tag set so a send
+ * does not go through the registry lookup.
+ */
+@Component
+public class LibraryEventProducerMetrics {
+
+    static final String SERIALIZE = "library.events.producer.serialize";
+    static final String SEND = "library.events.producer.send";
+    static final String ACK = "library.events.producer.ack";
+    static final String RECORDS = "library.events.producer.records";
+
+    private static final String NO_PARTITION = "none";
+
+    private final MeterRegistry registry;
+
+    private final Map<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Map<List<String>, Counter> counters = new ConcurrentHashMap<>();
+
+    public LibraryEventProducerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    // JSON serialization of the value, binary values are encoded inside send and show up in the send timer
+    public void serialized(String topic, LibraryEventType type, long startNanos) {
+        timer(SERIALIZE, "Time to serialize a library event", topic, type, null).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // time until KafkaTemplate.send returns : metadata wait, serializers, partitioner and buffer allocation
+    public void sendReturned(String topic, LibraryEventType type, long startNanos) {
+        timer(SEND, "Time until send returns", topic, type, null).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void acked(String topic, LibraryEventType type, int partition, long sendStartNanos) {
+        String partitionTag = String.valueOf(partition);
+        timer(ACK, "Time from send to broker acknowledgement", topic, type, partitionTag)
+                .record(System.nanoTime() - sendStartNanos, TimeUnit.NANOSECONDS);
+        counter(topic, type, partitionTag, "success").increment();
+    }
+
+    public void failed(String topic, LibraryEventType type) {
+        counter(topic, type, NO_PARTITION, "failure").increment();
+    }
+
+    private Timer timer(String name, String description, String topic, LibraryEventType type, String partition) {
+        String typeTag = typeTag(type);
+        List<String> key = partition == null ? List.of(name, topic, typeTag) : List.of(name, topic, typeTag, partition);
+        return timers.computeIfAbsent(key, k -> {
+            Timer.Builder builder = Timer.builder(name)
+                    .description(description)
+                    .tag("topic", topic)
+                    .tag("type", typeTag)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .publishPercentileHistogram();
+            if (partition != null) {
+                builder.tag("partition", partition);
+            }
+            return builder.register(registry);
+        });
+    }
+
+    private Counter counter(String topic, LibraryEventType type, String partition, String result) {
+        String typeTag = typeTag(type);
+        return counters.computeIfAbsent(List.of(topic, typeTag, partition, result), k -> Counter.builder(RECORDS)
+                .description("Library event records by send result")
+                .tag("topic", topic)
+                .tag("type", typeTag)
+                .tag("partition", partition)
+                .tag("result", result)
+                .register(registry));
+    }
+
+    private static String typeTag(LibraryEventType type) {
+        return type == null ? "unknown" : type.name();
+    }
+}
@@ -0,0 +1,125 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.exception.LibraryEventRejectedException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of records handed to the producer and not yet acknowledged. A permit is taken before
+ * the send and given back when its future completes, so when the broker slows down the budget runs out
+ * and new sends are rejected with {@link LibraryEventRejectedException} instead of blocking on a full
+ * producer buffer.
+ */
+@Component
+@Slf4j
+public class LibraryEventSendBudget implements MeterBinder {
+
+    private final int maxInFlight;
+
+    private final long acquireTimeoutMs;
+
+    private final long retryAfterSeconds;
+
+    private final Semaphore permits;
+
+    private final LongAdder rejected = new LongAdder();
+
+    public LibraryEventSendBudget(@Value("${library-events.producer.admission.max-in-flight:1000}") int maxInFlight,
+                                  @Value("${library-events.producer.admission.acquire-timeout-ms:0}") long acquireTimeoutMs,
+                                  @Value("${library-events.producer.admission.retry-after-seconds:1}") long retryAfterSeconds) {
+        this.maxInFlight = maxInFlight;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Runs the send under one permit, released when the returned future completes or when the send throws.
+     */
+    public <T> ListenableFuture<T> admit(Supplier<ListenableFuture<T>> send) {
+
+        acquire(1);
+        ListenableFuture<T> future;
+        try {
+            future = send.get();
+        } catch (RuntimeException e) {
+            release(1);
+            throw e;
+        }
+        if (future == null) {
+            release(1);
+            return null;
+        }
+        future.addCallback(result -> release(1), ex -> release(1));
+        return future;
+    }
+
+    // a group larger than the whole budget takes all of it, so it can still go through on an idle producer
+    public void acquire(int records) {
+        acquire(records, acquireTimeoutMs);
+    }
+
+    // never waits for a permit, for callers on an event loop thread
+    public void acquireNow(int records) {
+        acquire(records, 0);
+    }
+
+    private void acquire(int records, long timeoutMs) {
+
+        boolean acquired;
+        try {
+            acquired = timeoutMs > 0
+                    ? permits.tryAcquire(permitsFor(records), timeoutMs, TimeUnit.MILLISECONDS)
+                    : permits.tryAcquire(permitsFor(records));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejected.increment();
+            log.warn("Send budget exhausted, {} records in flight, rejecting {} more", inFlight(), records);
+            throw new LibraryEventRejectedException("Too many library events in flight, retry later", retryAfterSeconds);
+        }
+    }
+
+    public void release(int records) {
+        permits.release(permitsFor(records));
+    }
+
+    private int permitsFor(int records) {
+        return Math.min(records, maxInFlight);
+    }
+
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+
+        Gauge.builder("library.events.producer.in.flight", this, LibraryEventSendBudget::inFlight)
+                .description("Library event records sent and not acknowledged yet")
+                .register(registry);
+        Gauge.builder("library.events.producer.in.flight.max", this, budget -> budget.maxInFlight)
+                .description("In-flight send budget")
+                .register(registry);
+        FunctionCounter.builder("library.events.producer.rejected", rejected, LongAdder::sum)
+                .description("Requests shed because the send budget was exhausted")
+                .register(registry);
+    }
+}
@@ -0,0 +1,311 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.codec.LibraryEventWireFormat;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.errors.ApiException;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only journal, memory mapped, for library events the broker rejected or could not take.
+ * <p>
+ * The file starts with a header holding the read and write positions, followed by the entries in arrival order :
+ * {@code [int length][byte wire format][byte has key][int key][value]}. An entry is written before the write
+ * position is moved past it, so a crashed process leaves a consistent journal behind. Pages are flushed by the OS,
+ * which covers process crashes but not a host crash.
+ * <p>
+ * {@link LibraryEventSpillReplayer} reads entries with {@link #peek(int)} and drops them with {@link #commit(int)}
+ * once Kafka has acknowledged them. When the tail reaches the end of the file the pending entries are copied to a
+ * new file, which is forced to disk and then renamed over the journal, so a crash during compaction leaves either
+ * the old journal or the new one. When there is still no room the event is dropped and counted.
+ * <p>
+ * Only failures worth retrying are journaled, see {@link #isRetriable(Throwable)} : a record the broker will never
+ * take, too large or not serializable, would otherwise sit at the head of the journal forever.
+ */
+@Component
+@Slf4j
+public class LibraryEventSpillJournal implements MeterBinder {
+
+    private static final int MAGIC = 0x4C45534A;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int WRITE_POSITION_OFFSET = 8;
+    static final int HEADER_SIZE = 12;
+
+    // wire format, has key, key
+    private static final int ENTRY_FIELDS_SIZE = 1 + 1 + Integer.BYTES;
+
+    private static final LibraryEventWireFormat[] WIRE_FORMATS = LibraryEventWireFormat.values();
+
+    private final boolean enabled;
+
+    private final Path file;
+
+    private final Path compactFile;
+
+    private final int capacity;
+
+    private final LongAdder spilled = new LongAdder();
+
+    private final LongAdder replayed = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private int entries;
+
+    public LibraryEventSpillJournal(@Value("${library-events.producer.spill.enabled:false}") boolean enabled,
+                                    @Value("${library-events.producer.spill.file:${java.io.tmpdir}/library-events-spill.journal}") String file,
+                                    @Value("${library-events.producer.spill.capacity-bytes:67108864}") int capacity) {
+        this.enabled = enabled;
+        this.file = Paths.get(file);
+        this.compactFile = Paths.get(file + ".compact");
+        this.capacity = capacity;
+    }
+
+    @PostConstruct
+    void open() throws IOException {
+
+        if (!enabled) {
+            return;
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        // left over by a crash before the rename, the journal itself is still the old one
+        Files.deleteIfExists(compactFile);
+        map(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+        }
+        entries = 0;
+        for (int position = buffer.getInt(READ_POSITION_OFFSET); position < buffer.getInt(WRITE_POSITION_OFFSET); entries++) {
+            position += Integer.BYTES + buffer.getInt(position);
+        }
+        log.info("Spill journal {} opened with {} pending library events", file, depth());
+    }
+
+    private void map(FileChannel fileChannel) throws IOException {
+        channel = fileChannel;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * False for failures that end the same way however often the record is sent again, a record too large for the
+     * broker, a serialization or authorization error. Timeouts and broker side errors Kafka marks retriable are
+     * journaled, and so is a failure without a Kafka cause, the send was interrupted or the producer closed.
+     */
+    public static boolean isRetriable(Throwable failure) {
+        boolean kafkaCause = false;
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RetriableException) {
+                return true;
+            }
+            if (cause instanceof ApiException || cause instanceof SerializationException) {
+                kafkaCause = true;
+            }
+        }
+        return !kafkaCause;
+    }
+
+    @PreDestroy
+    synchronized void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            channel.close();
+            buffer = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false when the journal is disabled or full, the event is lost in that case
+     */
+    public synchronized boolean append(Integer key, byte[] value, LibraryEventWireFormat wireFormat) {
+
+        if (buffer == null) {
+            return false;
+        }
+        int length = ENTRY_FIELDS_SIZE + value.length;
+        int writePosition = buffer.getInt(WRITE_POSITION_OFFSET);
+        if (writePosition + Integer.BYTES + length > capacity) {
+            compact();
+            writePosition = buffer.getInt(WRITE_POSITION_OFFSET);
+            if (writePosition + Integer.BYTES + length > capacity) {
+                dropped.increment();
+                log.error("Spill journal {} is full, library event with key {} is dropped", file, key);
+                return false;
+            }
+        }
+
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(writePosition);
+        entry.putInt(length)
+                .put((byte) wireFormat.ordinal())
+                .put((byte) (key != null ? 1 : 0))
+                .putInt(key != null ? key : 0)
+                .put(value);
+
+        buffer.putInt(WRITE_POSITION_OFFSET, entry.position());
+        entries++;
+        spilled.increment();
+        return true;
+    }
+
+    /**
+     * Oldest pending entries, at most {@code max} of them. They stay in the journal until {@link #commit(int)}.
+     */
+    public synchronized List<SpilledLibraryEvent> peek(int max) {
+
+        if (buffer == null) {
+            return List.of();
+        }
+        int count = Math.min(max, entries);
+        List<SpilledLibraryEvent> events = new ArrayList<>(count);
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(buffer.getInt(READ_POSITION_OFFSET));
+        for (int i = 0; i < count; i++) {
+            int length = entry.getInt();
+            LibraryEventWireFormat wireFormat = WIRE_FORMATS[entry.get()];
+            boolean hasKey = entry.get() == 1;
+            int key = entry.getInt();
+            byte[] value = new byte[length - ENTRY_FIELDS_SIZE];
+            entry.get(value);
+            events.add(new SpilledLibraryEvent(hasKey ? key : null, value, wireFormat));
+        }
+        return events;
+    }
+
+    /**
+     * Drops the {@code count} oldest entries.
+     */
+    public void commit(int count) {
+        commit(count, 0);
+    }
+
+    /**
+     * Drops the {@code count} oldest entries, {@code rejected} of them were not replayed but given up on.
+     */
+    public synchronized void commit(int count, int rejected) {
+
+        if (buffer == null || count <= 0) {
+            return;
+        }
+        int readPosition = buffer.getInt(READ_POSITION_OFFSET);
+        for (int i = 0; i < count; i++) {
+            readPosition += Integer.BYTES + buffer.getInt(readPosition);
+        }
+        entries -= count;
+        if (entries == 0) {
+            // empty again, start over at the head of the file. read position first : a crash in between
+            // replays the committed entries once more instead of losing anything
+            buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+        } else {
+            buffer.putInt(READ_POSITION_OFFSET, readPosition);
+        }
+        replayed.add(count - rejected);
+        dropped.add(rejected);
+    }
+
+    public synchronized int depth() {
+        return entries;
+    }
+
+    public synchronized int pendingBytes() {
+        return buffer == null ? 0 : buffer.getInt(WRITE_POSITION_OFFSET) - buffer.getInt(READ_POSITION_OFFSET);
+    }
+
+    // copies the pending entries to the head of a new file and renames it over the journal. The rename is atomic, a
+    // crash before it leaves the old journal in place, a crash after it the compacted one
+    private void compact() {
+
+        int readPosition = buffer.getInt(READ_POSITION_OFFSET);
+        int writePosition = buffer.getInt(WRITE_POSITION_OFFSET);
+        if (readPosition == HEADER_SIZE) {
+            return;
+        }
+        FileChannel compactChannel = null;
+        try {
+            compactChannel = FileChannel.open(compactFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer compacted = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            ByteBuffer pending = buffer.duplicate();
+            pending.position(readPosition).limit(writePosition);
+            compacted.position(HEADER_SIZE);
+            compacted.put(pending);
+            compacted.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+            compacted.putInt(WRITE_POSITION_OFFSET, compacted.position());
+            compacted.putInt(MAGIC_OFFSET, MAGIC);
+            compacted.force();
+            Files.move(compactFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel.close();
+            channel = compactChannel;
+            buffer = compacted;
+            compactChannel = null;
+            log.info("Spill journal {} compacted, {} pending bytes", file, writePosition - readPosition);
+        } catch (IOException e) {
+            log.error("Spill journal {} could not be compacted : {}", file, e.getMessage());
+        } finally {
+            if (compactChannel != null) {
+                try {
+                    compactChannel.close();
+                    Files.deleteIfExists(compactFile);
+                } catch (IOException e) {
+                    log.warn("Spill journal {} : {} could not be removed : {}", file, compactFile, e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+
+        Gauge.builder("library.events.producer.spill.depth", this, LibraryEventSpillJournal::depth)
+                .description("Library events waiting in the spill journal")
+                .register(registry);
+        Gauge.builder("library.events.producer.spill.bytes", this, LibraryEventSpillJournal::pendingBytes)
+                .description("Bytes waiting in the spill journal")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("library.events.producer.spill.appended", spilled, LongAdder::sum)
+                .description("Library events written to the spill journal")
+                .register(registry);
+        FunctionCounter.builder("library.events.producer.spill.replayed", replayed, LongAdder::sum)
+                .description("Library events replayed from the spill journal")
+                .register(registry);
+        FunctionCounter.builder("library.events.producer.spill.dropped", dropped, LongAdder::sum)
+                .description("Library events lost because the spill journal was full or Kafka rejected them for good")
+                .register(registry);
+    }
+}
@@ -0,0 +1,119 @@
+package com.learnkafka.producer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Drains the {@link LibraryEventSpillJournal} back to Kafka, oldest first. Each round sends up to a batch of entries
+ * through an idempotent producer, which keeps their order on the partition, and drops the acknowledged prefix from
+ * the journal. The first retriable failure ends the round, the rest is tried again on the next one, so an entry may
+ * reach Kafka twice but never gets lost. An entry Kafka rejects for good is logged, counted and dropped like an
+ * acknowledged one, it would block the journal otherwise.
+ */
+@Component
+@ConditionalOnProperty(name = "library-events.producer.spill.enabled", havingValue = "true")
+@Slf4j
+public class LibraryEventSpillReplayer {
+
+    @Autowired
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    @Autowired
+    LibraryEventSpillJournal spillJournal;
+
+    @Value("${library-events.producer.spill.replay-batch-size:500}")
+    int batchSize;
+
+    @Value("${library-events.producer.spill.replay-timeout-ms:10000}")
+    long timeoutMs;
+
+    String topic = "library-events";
+
+    KafkaTemplate<Integer, byte[]> replayKafkaTemplate;
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    void initKafkaTemplate() {
+        ProducerFactory<Integer, byte[]> producerFactory = (ProducerFactory<Integer, byte[]>) (ProducerFactory<?, ?>) kafkaTemplate.getProducerFactory();
+        replayKafkaTemplate = new KafkaTemplate<>(producerFactory, Map.of(
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class,
+                ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true,
+                ProducerConfig.ACKS_CONFIG, "all"));
+    }
+
+    // the overrides give the template its own copy of the producer factory, the context does not close it
+    @PreDestroy
+    void destroyKafkaTemplate() throws Exception {
+        if (replayKafkaTemplate.getProducerFactory() instanceof DisposableBean) {
+            ((DisposableBean) replayKafkaTemplate.getProducerFactory()).destroy();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${library-events.producer.spill.replay-interval-ms:1000}")
+    public void replay() {
+
+        List<SpilledLibraryEvent> spilledEvents = spillJournal.peek(batchSize);
+        if (spilledEvents.isEmpty()) {
+            return;
+        }
+
+        List<ListenableFuture<SendResult<Integer, byte[]>>> futures = new ArrayList<>(spilledEvents.size());
+        try {
+            for (SpilledLibraryEvent spilledEvent : spilledEvents) {
+                futures.add(replayKafkaTemplate.send(new ProducerRecord<>(topic, null, spilledEvent.getKey(), spilledEvent.getValue(),
+                        List.of(LibraryEventProducer.EVENT_SOURCE_HEADER, spilledEvent.getWireFormat().header()))));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Replay of the spill journal interrupted : {}", e.getMessage());
+        }
+
+        int done = 0;
+        int rejected = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            for (ListenableFuture<SendResult<Integer, byte[]>> future : futures) {
+                try {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    if (LibraryEventSpillJournal.isRetriable(e.getCause())) {
+                        throw e;
+                    }
+                    log.error("Library event with key {} dropped from the spill journal, Kafka will not take it : {}",
+                            spilledEvents.get(done).getKey(), e.getCause().getMessage());
+                    rejected++;
+                }
+                done++;
+            }
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Replay of the spill journal stopped after {} library events : {}", done, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        spillJournal.commit(done, rejected);
+        if (done > 0) {
+            log.info("Replayed {} library events from the spill journal, {} still pending", done - rejected, spillJournal.depth());
+        }
+    }
+}
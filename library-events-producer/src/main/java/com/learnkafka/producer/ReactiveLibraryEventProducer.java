@@ -0,0 +1,161 @@
+package com.learnkafka.producer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.diagnostics.FlightRecorder;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventResult;
+import com.learnkafka.domain.LibraryEventType;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+import reactor.kafka.sender.SenderResult;
+import reactor.util.function.Tuple2;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Non-blocking counterpart of {@link LibraryEventProducer} for the reactive web stack. Records are built with
+ * {@link LibraryEventProducer#buildProducerRecord} and sent through a reactor-kafka {@link KafkaSender} on the
+ * auto-configured producer settings, so partitioning, serializers and headers are the same as on the MVC path.
+ * <p>
+ * A stream is sent with at most {@code max-in-flight} unacknowledged records : once they are all out, no more
+ * items are requested from the request body, reading from the connection stops and TCP pushes back on the client.
+ * Single events take a permit of the shared {@link LibraryEventSendBudget} without waiting for it.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Slf4j
+public class ReactiveLibraryEventProducer {
+
+    String topic = "library-events";
+
+    @Autowired
+    KafkaTemplate<Integer, String> kafkaTemplate;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    LibraryEventSendBudget sendBudget;
+
+    @Autowired
+    LibraryEventProducerMetrics metrics;
+
+    @Autowired
+    FlightRecorder flightRecorder;
+
+    @Value("${library-events.producer.reactive.max-in-flight:256}")
+    int maxInFlight;
+
+    KafkaSender<Integer, String> kafkaSender;
+
+    @PostConstruct
+    void initKafkaSender() {
+        SenderOptions<Integer, String> senderOptions = SenderOptions.<Integer, String>create(kafkaTemplate.getProducerFactory().getConfigurationProperties())
+                .maxInFlight(maxInFlight)
+                .stopOnError(false);
+        kafkaSender = KafkaSender.create(senderOptions);
+    }
+
+    @PreDestroy
+    void closeKafkaSender() {
+        kafkaSender.close();
+    }
+
+    /**
+     * Completes with the record metadata once the broker has acknowledged the event.
+     */
+    public Mono<RecordMetadata> sendLibraryEvent(LibraryEvent libraryEvent) {
+
+        return Mono.defer(() -> {
+            SenderRecord<Integer, String, InFlight> senderRecord = senderRecord(libraryEvent, null);
+            sendBudget.acquireNow(1);
+            return kafkaSender.send(Mono.just(senderRecord))
+                    .next()
+                    .doFinally(signal -> sendBudget.release(1));
+        }).flatMap(senderResult -> {
+            RecordMetadata recordMetadata = acknowledged(senderResult);
+            return senderResult.exception() != null ? Mono.error(senderResult.exception()) : Mono.just(recordMetadata);
+        });
+    }
+
+    /**
+     * Sends every event of the stream, the result of each one is emitted as soon as it is acknowledged, which
+     * is not necessarily in stream order.
+     */
+    public Flux<LibraryEventResult> sendLibraryEvents(Flux<Tuple2<LibraryEventResult, LibraryEvent>> libraryEvents) {
+
+        return kafkaSender.send(libraryEvents.map(item -> senderRecord(item.getT2(), item.getT1())))
+                .map(senderResult -> {
+                    RecordMetadata recordMetadata = acknowledged(senderResult);
+                    LibraryEventResult result = senderResult.correlationMetadata().result;
+                    if (senderResult.exception() != null) {
+                        result.setError(senderResult.exception().getMessage());
+                    } else {
+                        result.setPartition(recordMetadata.partition());
+                        result.setOffset(recordMetadata.offset());
+                    }
+                    return result;
+                });
+    }
+
+    private SenderRecord<Integer, String, InFlight> senderRecord(LibraryEvent libraryEvent, LibraryEventResult result) {
+
+        Integer key = libraryEvent.getLibraryEventId();
+        LibraryEventType type = libraryEvent.getLibraryEventType();
+        long serializeStart = System.nanoTime();
+        String value;
+        try {
+            value = objectMapper.writeValueAsString(libraryEvent);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e.getOriginalMessage(), e);
+        }
+        metrics.serialized(topic, type, serializeStart);
+        return SenderRecord.create(LibraryEventProducer.buildProducerRecord(key, value, topic),
+                new InFlight(key, value, type, System.nanoTime(), result));
+    }
+
+    private RecordMetadata acknowledged(SenderResult<InFlight> senderResult) {
+
+        InFlight inFlight = senderResult.correlationMetadata();
+        RecordMetadata recordMetadata = senderResult.recordMetadata();
+        if (senderResult.exception() != null) {
+            metrics.failed(topic, inFlight.type);
+            flightRecorder.recordFailure("producer.send", inFlight.key, null, null, inFlight.value, senderResult.exception());
+            log.debug("Error Sending the Message for the key : {} and the exception is {}", inFlight.key, senderResult.exception().getMessage());
+        } else {
+            metrics.acked(topic, inFlight.type, recordMetadata.partition(), inFlight.sendStartNanos);
+            flightRecorder.record("producer.send", inFlight.key, recordMetadata.partition(), recordMetadata.offset(), inFlight.value);
+        }
+        return recordMetadata;
+    }
+
+    // travels with the record through the sender as its correlation metadata
+    private static final class InFlight {
+
+        final Integer key;
+        final String value;
+        final LibraryEventType type;
+        final long sendStartNanos;
+        final LibraryEventResult result;
+
+        InFlight(Integer key, String value, LibraryEventType type, long sendStartNanos, LibraryEventResult result) {
+            this.key = key;
+            this.value = value;
+            this.type = type;
+            this.sendStartNanos = sendStartNanos;
+            this.result = result;
+        }
+    }
+}
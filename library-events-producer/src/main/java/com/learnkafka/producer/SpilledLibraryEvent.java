@@ -0,0 +1,17 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.codec.LibraryEventWireFormat;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * One entry of the {@link LibraryEventSpillJournal} : the record key and the value as it is sent to Kafka.
+ */
+@Getter
+@AllArgsConstructor
+public class SpilledLibraryEvent {
+
+    private final Integer key;
+    private final byte[] value;
+    private final LibraryEventWireFormat wireFormat;
+}
@@ -0,0 +1,124 @@
+package com.learnkafka.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LibraryEventCodecUnitTest {
+
+    LibraryEventSerializer serializer = new LibraryEventSerializer();
+
+    LibraryEventDeserializer deserializer = new LibraryEventDeserializer();
+
+    @Test
+    void binaryRoundTrip() {
+
+        //given
+        LibraryEvent libraryEvent = libraryEvent(123, LibraryEventType.UPDATE, 456, "Kafka using Spring Boot - çğış", "olgun");
+
+        //when
+        LibraryEvent decoded = LibraryEventBinaryCodec.decode(LibraryEventBinaryCodec.encode(libraryEvent));
+
+        //then
+        assertEquals(libraryEvent, decoded);
+    }
+
+    @Test
+    void binaryRoundTrip_nullFields() {
+
+        //given
+        LibraryEvent libraryEvent = libraryEvent(null, LibraryEventType.NEW, -5, null, "olgun");
+        LibraryEvent withoutBook = LibraryEvent.builder().libraryEventId(7).build();
+
+        //then
+        assertEquals(libraryEvent, LibraryEventBinaryCodec.decode(LibraryEventBinaryCodec.encode(libraryEvent)));
+        LibraryEvent decoded = LibraryEventBinaryCodec.decode(LibraryEventBinaryCodec.encode(withoutBook));
+        assertEquals(7, decoded.getLibraryEventId());
+        assertNull(decoded.getLibraryEventType());
+        assertNull(decoded.getBook());
+    }
+
+    @Test
+    void binaryIsSmallerThanJson() throws Exception {
+
+        //given
+        LibraryEvent libraryEvent = libraryEvent(123, LibraryEventType.NEW, 456, "Kafka using Spring Boot", "olgun");
+
+        //when
+        byte[] binary = LibraryEventBinaryCodec.encode(libraryEvent);
+        byte[] json = new ObjectMapper().writeValueAsBytes(libraryEvent);
+
+        //then
+        assertTrue(binary.length * 2 < json.length);
+    }
+
+    @Test
+    void serializer_stampsContentType_and_deserializerFollowsIt() {
+
+        //given
+        serializer.configure(Map.of(LibraryEventSerializer.WIRE_FORMAT_CONFIG, "binary"), false);
+        LibraryEvent libraryEvent = libraryEvent(123, LibraryEventType.NEW, 456, "Kafka using Spring Boot", "olgun");
+        RecordHeaders headers = new RecordHeaders();
+
+        //when
+        byte[] data = serializer.serialize("library-events", headers, libraryEvent);
+
+        //then
+        assertEquals(LibraryEventWireFormat.BINARY.contentType(),
+                new String(headers.lastHeader(LibraryEventWireFormat.HEADER).value(), StandardCharsets.UTF_8));
+        assertEquals(libraryEvent, deserializer.deserialize("library-events", headers, data));
+    }
+
+    @Test
+    void serializer_keepsExistingContentType() {
+
+        //given
+        serializer.configure(Map.of(LibraryEventSerializer.WIRE_FORMAT_CONFIG, "binary"), false);
+        LibraryEvent libraryEvent = libraryEvent(123, LibraryEventType.NEW, 456, "Kafka using Spring Boot", "olgun");
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(LibraryEventWireFormat.JSON.header());
+
+        //when
+        byte[] data = serializer.serialize("library-events", headers, libraryEvent);
+
+        //then
+        assertEquals(1, headers.toArray().length);
+        assertTrue(new String(data, StandardCharsets.UTF_8).startsWith("{\"libraryEventId\":123"));
+    }
+
+    @Test
+    void deserializer_legacyJsonWithoutHeader() {
+
+        //given
+        String json = "{\"libraryEventId\":null,\"libraryEventType\":\"NEW\",\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+
+        //when
+        LibraryEvent libraryEvent = deserializer.deserialize("library-events", new RecordHeaders(), json.getBytes(StandardCharsets.UTF_8));
+
+        //then
+        assertEquals(libraryEvent(null, LibraryEventType.NEW, 123, "Kafka using Spring Boot", "olgun"), libraryEvent);
+    }
+
+    private LibraryEvent libraryEvent(Integer libraryEventId, LibraryEventType type, Integer bookId, String bookName, String bookAuthor) {
+        Book book = Book.builder()
+                .bookId(bookId)
+                .bookName(bookName)
+                .bookAuthor(bookAuthor)
+                .build();
+        return LibraryEvent.builder()
+                .libraryEventId(libraryEventId)
+                .libraryEventType(type)
+                .book(book)
+                .build();
+    }
+}
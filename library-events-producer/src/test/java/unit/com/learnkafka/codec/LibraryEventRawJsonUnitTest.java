@@ -0,0 +1,93 @@
+package com.learnkafka.codec;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LibraryEventRawJsonUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void withType_insertsMissingType() throws Exception {
+
+        //given
+        byte[] json = bytes(" {\"libraryEventId\":7, \"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\",\"isbn\":\"x\"}}");
+
+        //when
+        LibraryEventRawJson rawJson = LibraryEventRawJson.parse(json);
+        LibraryEvent libraryEvent = objectMapper.readerFor(LibraryEvent.class)
+                .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .readValue(rawJson.withType(LibraryEventType.UPDATE));
+
+        //then
+        assertTrue(rawJson.isValid());
+        assertEquals(7, rawJson.getLibraryEventId());
+        assertEquals(LibraryEventType.UPDATE, libraryEvent.getLibraryEventType());
+        assertEquals(7, libraryEvent.getLibraryEventId());
+        assertEquals("olgun", libraryEvent.getBook().getBookAuthor());
+    }
+
+    @Test
+    void withType_replacesOrKeepsType() throws Exception {
+
+        //given
+        String book = "\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}";
+        byte[] newJson = bytes("{\"libraryEventType\":\"NEW\"," + book + "}");
+        byte[] nullJson = bytes("{\"libraryEventType\" : null ," + book + "}");
+
+        //when
+        byte[] unchanged = LibraryEventRawJson.parse(newJson).withType(LibraryEventType.NEW);
+        byte[] replaced = LibraryEventRawJson.parse(newJson).withType(LibraryEventType.UPDATE);
+        byte[] patchedNull = LibraryEventRawJson.parse(nullJson).withType(LibraryEventType.NEW);
+
+        //then
+        assertSame(newJson, unchanged);
+        assertEquals("{\"libraryEventType\":\"UPDATE\"," + book + "}", new String(replaced, StandardCharsets.UTF_8));
+        assertEquals("{\"libraryEventType\" : \"NEW\" ," + book + "}", new String(patchedNull, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parse_violations() throws Exception {
+
+        //when
+        LibraryEventRawJson missingFields = LibraryEventRawJson.parse(bytes("{\"book\":{\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\" \"}}"));
+        LibraryEventRawJson missingBook = LibraryEventRawJson.parse(bytes("{\"libraryEventId\":null,\"libraryEventType\":\"DELETE\"}"));
+
+        //then
+        assertEquals("book.bookAuthor - must not be blank , book.bookId - must not be null", missingFields.getError());
+        assertEquals("book - must not be null , libraryEventType - must be one of NEW, UPDATE", missingBook.getError());
+        assertNull(missingBook.getLibraryEventId());
+        assertThrows(JsonParseException.class, () -> LibraryEventRawJson.parse(bytes("[1,2]")));
+        assertThrows(JsonParseException.class, () -> LibraryEventRawJson.parse(bytes("{\"book\":{}} {}")));
+    }
+
+    @Test
+    void parse_outOfRangeIds() throws Exception {
+
+        //when
+        LibraryEventRawJson tooLarge = LibraryEventRawJson.parse(bytes("{\"libraryEventId\":2147483648,\"book\":{\"bookId\":99999999999999999999,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}"));
+        LibraryEventRawJson largest = LibraryEventRawJson.parse(bytes("{\"libraryEventId\":2147483647,\"book\":{\"bookId\":-2147483648,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}"));
+
+        //then
+        assertEquals("book.bookId - must be an integer , libraryEventId - must be an integer", tooLarge.getError());
+        assertNull(tooLarge.getLibraryEventId());
+        assertTrue(largest.isValid());
+        assertEquals(Integer.MAX_VALUE, largest.getLibraryEventId());
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+package com.learnkafka.controller;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LibraryEventIdempotencyCacheUnitTest {
+
+    AtomicInteger sent = new AtomicInteger();
+
+    @Test
+    void duplicateWaitsForTheOriginal() throws Exception {
+
+        //given
+        LibraryEventIdempotencyCache cache = new LibraryEventIdempotencyCache(100, 60_000, 4);
+        CompletableFuture<ResponseEntity<?>> inFlight = new CompletableFuture<>();
+
+        //when
+        CompletableFuture<ResponseEntity<?>> original = cache.execute("key-1", "POST /v1/libraryevent", () -> {
+            sent.incrementAndGet();
+            return inFlight;
+        });
+        CompletableFuture<ResponseEntity<?>> duplicate = cache.execute("key-1", "POST /v1/libraryevent", this::send);
+        CompletableFuture<ResponseEntity<?>> otherScope = cache.execute("key-1", "PUT /v1/libraryevent", this::send);
+        assertFalse(duplicate.isDone());
+        inFlight.complete(ResponseEntity.status(HttpStatus.CREATED).body("event"));
+
+        //then
+        assertEquals(2, sent.get());
+        assertEquals(HttpStatus.CREATED, original.join().getStatusCode());
+        assertEquals("event", duplicate.join().getBody());
+        assertEquals("true", duplicate.join().getHeaders().getFirst(LibraryEventIdempotencyCache.REPLAYED_HEADER));
+        assertTrue(otherScope.isDone());
+    }
+
+    @Test
+    void failuresAreNotKept() throws Exception {
+
+        //given
+        LibraryEventIdempotencyCache cache = new LibraryEventIdempotencyCache(100, 60_000, 4);
+
+        //when
+        cache.execute("key-1", "POST /v1/libraryevent",
+                () -> CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build()));
+        assertThrows(IllegalStateException.class, () -> cache.execute("key-2", "POST /v1/libraryevent", () -> {
+            throw new IllegalStateException("broker down");
+        }));
+        cache.execute("key-1", "POST /v1/libraryevent", this::send);
+        cache.execute("key-2", "POST /v1/libraryevent", this::send);
+
+        //then
+        assertEquals(2, sent.get());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void boundedAndExpiring() throws Exception {
+
+        //given
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        LibraryEventIdempotencyCache bounded = new LibraryEventIdempotencyCache(8, 60_000, 2);
+        LibraryEventIdempotencyCache expiring = new LibraryEventIdempotencyCache(8, 1, 2);
+        bounded.bindTo(meterRegistry);
+
+        //when
+        for (int i = 0; i < 100; i++) {
+            bounded.execute("key-" + i, "POST /v1/libraryevent", this::send);
+        }
+        expiring.execute("key-1", "POST /v1/libraryevent", this::send);
+        Thread.sleep(5);
+        expiring.execute("key-1", "POST /v1/libraryevent", this::send);
+
+        //then
+        assertEquals(8, bounded.size());
+        assertEquals(92, meterRegistry.get("library.events.producer.idempotency.evictions").functionCounter().count());
+        assertEquals(100, meterRegistry.get("library.events.producer.idempotency.requests").tag("result", "miss").functionCounter().count());
+        assertEquals(102, sent.get());
+    }
+
+    private CompletableFuture<ResponseEntity<?>> send() {
+        sent.incrementAndGet();
+        return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.CREATED).body("event"));
+    }
+}
@@ -1,28 +1,53 @@
 package com.learnkafka.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.exception.LibraryEventRejectedException;
+import com.learnkafka.exception.LibraryEventSpilledException;
 import com.learnkafka.producer.LibraryEventProducer;
 import com.learnkafka.domain.Book;
 import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest
 @AutoConfigureMockMvc
+@Import(LibraryEventIdempotencyCache.class)
 public class LibraryEventsControllerUnitTest {
     
     @Autowired
@@ -146,6 +171,301 @@ public class LibraryEventsControllerUnitTest {
         assert(resultActions.andReturn().getResponse().getContentAsString().equals(expectedErrorMessage));
 
     }
+
+    @Test
+    void postLibraryEventBatch() throws Exception {
+
+        //given
+        String json = "[" +
+                "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}," +
+                "{\"libraryEventId\":null,\"book\":{\"bookId\":null,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}," +
+                "{\"libraryEventId\":null,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":124,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}" +
+                "]";
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class))).thenReturn(sentFuture(3, 42L));
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent/batch")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].partition").value(3))
+                .andExpect(jsonPath("$[0].offset").value(42))
+                .andExpect(jsonPath("$[1].error").value("book.bookId - must not be null"))
+                .andExpect(jsonPath("$[2].error").value("Please pass the LibraryEventId"));
+
+        //then
+        verify(libraryEventsProducer, times(1)).sendLibraryEvent_Approach2(isA(LibraryEvent.class));
+    }
+
+    @Test
+    void postLibraryEventBatch_budgetSpent_waitsForOwnSends() throws Exception {
+
+        //given : the second item finds the budget spent, until the first one is acked
+        String item = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        SettableListenableFuture<SendResult<Integer, String>> first = sentFuture(0, 1L);
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class)))
+                .thenReturn(first)
+                .thenThrow(new LibraryEventRejectedException("Too many library events in flight, retry later", 1))
+                .thenReturn(sentFuture(0, 2L));
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent/batch")
+                        .content("[" + item + "," + item + "]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].offset").value(1))
+                .andExpect(jsonPath("$[1].offset").value(2))
+                .andExpect(jsonPath("$[1].error").doesNotExist());
+
+        //then
+        verify(libraryEventsProducer, times(3)).sendLibraryEvent_Approach2(isA(LibraryEvent.class));
+    }
+
+    @Test
+    void postLibraryEventBatch_ndjson() throws Exception {
+
+        //given
+        String ndjson = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}\n" +
+                "{\"libraryEventId\":7,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":124,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}\n" +
+                "{\"libraryEventId\":\"not-a-number\",\"book\":{\"bookId\":125,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}\n";
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class))).thenReturn(sentFuture(0, 1L));
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent/batch")
+                        .content(ndjson)
+                        .contentType(MediaType.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[1].libraryEventId").value(7))
+                .andExpect(jsonPath("$[1].offset").value(1))
+                .andExpect(jsonPath("$[2].error").exists());
+
+        //then
+        verify(libraryEventsProducer, times(2)).sendLibraryEvent_Approach2(isA(LibraryEvent.class));
+    }
+
+    @Test
+    void postLibraryEventBatch_atomic() throws Exception {
+
+        //given
+        String json = "[" +
+                "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}," +
+                "{\"libraryEventId\":7,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookId\":124,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}" +
+                "]";
+        when(libraryEventsProducer.sendLibraryEvents_Transactional(anyList()))
+                .thenReturn(List.of(sentFuture(1, 10L).get(), sentFuture(1, 11L).get()));
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent/batch")
+                        .param("atomic", "true")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].offset").value(10))
+                .andExpect(jsonPath("$[1].offset").value(11));
+
+        //then
+        verify(libraryEventsProducer, times(1)).sendLibraryEvents_Transactional(anyList());
+        verify(libraryEventsProducer, never()).sendLibraryEvent_Approach2(isA(LibraryEvent.class));
+    }
+
+    @Test
+    void postLibraryEventBatch_atomic_4xx() throws Exception {
+
+        //given
+        String json = "[" +
+                "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}," +
+                "{\"libraryEventId\":null,\"book\":{\"bookId\":null,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}" +
+                "]";
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent/batch")
+                        .param("atomic", "true")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().is4xxClientError())
+                .andExpect(jsonPath("$[1].error").value("book.bookId - must not be null"));
+
+        //then
+        verify(libraryEventsProducer, never()).sendLibraryEvents_Transactional(anyList());
+    }
+
+    @Test
+    void postLibraryEvent_acked() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        SettableListenableFuture<SendResult<Integer, String>> future = new SettableListenableFuture<>();
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class))).thenReturn(future);
+
+        //when
+        MvcResult mvcResult = mockMvc.perform(post("/v1/libraryevent")
+                        .header(LibraryEventsController.DELIVERY_HEADER, LibraryEventsController.DELIVERY_ACKED)
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        future.set(sentFuture(2, 7L).get());
+
+        //then
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("X-Kafka-Partition", "2"))
+                .andExpect(header().string("X-Kafka-Offset", "7"))
+                .andExpect(jsonPath("$.libraryEventType").value("NEW"));
+    }
+
+    @Test
+    void putLibraryEvent_acked_failure() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":123,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        SettableListenableFuture<SendResult<Integer, String>> future = new SettableListenableFuture<>();
+        future.setException(new RuntimeException("Exception calling Kafka"));
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class))).thenReturn(future);
+
+        //when
+        MvcResult mvcResult = mockMvc.perform(put("/v1/libraryevent")
+                        .header(LibraryEventsController.DELIVERY_HEADER, LibraryEventsController.DELIVERY_ACKED)
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        //then
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(content().string("Library Event could not be delivered : Exception calling Kafka"));
+    }
+
+    @Test
+    void postLibraryEvent_acked_spilled() throws Exception {
+
+        //given : the spill journal is on and kept the event the broker did not take
+        String json = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        SettableListenableFuture<SendResult<Integer, String>> future = new SettableListenableFuture<>();
+        future.setException(new LibraryEventSpilledException(null, new TimeoutException("Expiring 1 record(s)")));
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class))).thenReturn(future);
+
+        //when
+        MvcResult mvcResult = mockMvc.perform(post("/v1/libraryevent")
+                        .header(LibraryEventsController.DELIVERY_HEADER, LibraryEventsController.DELIVERY_ACKED)
+                        .header(LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, "spilled-1")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(LibraryEventsController.SPILLED_HEADER, "true"))
+                .andExpect(jsonPath("$.libraryEventType").value("NEW"));
+        MvcResult retry = mockMvc.perform(post("/v1/libraryevent")
+                        .header(LibraryEventsController.DELIVERY_HEADER, LibraryEventsController.DELIVERY_ACKED)
+                        .header(LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, "spilled-1")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andReturn();
+
+        //then : the retry of the client gets the same answer, nothing is sent twice
+        mockMvc.perform(asyncDispatch(retry))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(LibraryEventIdempotencyCache.REPLAYED_HEADER, "true"));
+        verify(libraryEventsProducer, times(1)).sendLibraryEvent_Approach2(isA(LibraryEvent.class));
+    }
+
+    @Test
+    void postLibraryEvent_rejected() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class)))
+                .thenThrow(new LibraryEventRejectedException("Too many library events in flight, retry later", 2));
+
+        //expect
+        mockMvc.perform(post("/v1/libraryevent")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "2"));
+    }
+
+    @Test
+    void postLibraryEvent_idempotencyKey() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        when(libraryEventsProducer.sendLibraryEvent_Approach2(isA(LibraryEvent.class))).thenReturn(null);
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent")
+                        .header(LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, "scan-42")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated())
+                .andExpect(header().doesNotExist(LibraryEventIdempotencyCache.REPLAYED_HEADER));
+        mockMvc.perform(post("/v1/libraryevent")
+                        .header(LibraryEventIdempotencyCache.IDEMPOTENCY_KEY_HEADER, "scan-42")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated())
+                .andExpect(header().string(LibraryEventIdempotencyCache.REPLAYED_HEADER, "true"))
+                .andExpect(jsonPath("$.libraryEventType").value("NEW"));
+
+        //then
+        verify(libraryEventsProducer, times(1)).sendLibraryEvent_Approach2(isA(LibraryEvent.class));
+    }
+
+    @Test
+    void postLibraryEventRaw() throws Exception {
+
+        //given
+        String json = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+
+        //when
+        mockMvc.perform(post("/v1/libraryevent/raw")
+                        .content(json)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.libraryEventType").value("NEW"))
+                .andExpect(jsonPath("$.book.bookId").value(123));
+
+        //then
+        verify(libraryEventsProducer, times(1)).sendLibraryEvent_Raw(isNull(), eq(LibraryEventType.NEW), isA(byte[].class));
+    }
+
+    @Test
+    void putLibraryEventRaw_4xx() throws Exception {
+
+        //given
+        String missingId = "{\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+        String invalidBook = "{\"libraryEventId\":123,\"book\":{\"bookName\":\"Kafka using Spring Boot\"}}";
+
+        //expect
+        mockMvc.perform(put("/v1/libraryevent/raw").content(missingId).contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string("Please pass the LibraryEventId"));
+        mockMvc.perform(put("/v1/libraryevent/raw").content(invalidBook).contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string("book.bookAuthor - must not be blank , book.bookId - must not be null"));
+        mockMvc.perform(put("/v1/libraryevent/raw").content("{\"libraryEventId\":").contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(put("/v1/libraryevent/raw").content(missingId.replace("{\"book\"", "{\"libraryEventId\":4294967296,\"book\""))
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string("libraryEventId - must be an integer"));
+
+        //then
+        verify(libraryEventsProducer, never()).sendLibraryEvent_Raw(any(), any(), any());
+    }
+
+    private SettableListenableFuture<SendResult<Integer, String>> sentFuture(int partition, long offset) {
+        SettableListenableFuture<SendResult<Integer, String>> future = new SettableListenableFuture<>();
+        RecordMetadata recordMetadata = new RecordMetadata(new TopicPartition("library-events", partition), offset, 0,
+                System.currentTimeMillis(), 1, 2);
+        future.set(new SendResult<>(new ProducerRecord<>("library-events", "value"), recordMetadata));
+        return future;
+    }
 }
 
 /*
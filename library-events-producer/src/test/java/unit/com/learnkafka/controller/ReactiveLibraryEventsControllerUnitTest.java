@@ -0,0 +1,158 @@
+package com.learnkafka.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventResult;
+import com.learnkafka.exception.LibraryEventRejectedException;
+import com.learnkafka.producer.ReactiveLibraryEventProducer;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@WebFluxTest
+public class ReactiveLibraryEventsControllerUnitTest {
+
+    @Autowired
+    WebTestClient webTestClient;
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @MockBean
+    ReactiveLibraryEventProducer reactiveLibraryEventProducer;
+
+    @Test
+    void postLibraryEvent() throws Exception {
+
+        //given
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventId(null).book(book(123)).build();
+        RecordMetadata recordMetadata = new RecordMetadata(new TopicPartition("library-events", 1), 41L, 0, 0L, 0, 0);
+        when(reactiveLibraryEventProducer.sendLibraryEvent(isA(LibraryEvent.class))).thenReturn(Mono.just(recordMetadata));
+
+        //when
+        webTestClient.post().uri("/v1/libraryevent")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(objectMapper.writeValueAsString(libraryEvent))
+                .exchange()
+        //then
+                .expectStatus().isCreated()
+                .expectHeader().valueEquals("X-Kafka-Partition", "1")
+                .expectHeader().valueEquals("X-Kafka-Offset", "41")
+                .expectBody().jsonPath("$.libraryEventType").isEqualTo("NEW");
+    }
+
+    @Test
+    void postLibraryEvent_4xx() throws Exception {
+
+        //given
+        Book book = Book.builder().bookId(null).bookAuthor(null).bookName("Kafka using Spring Boot").build();
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventId(null).book(book).build();
+
+        //expect
+        String expectedErrorMessage = "book.bookAuthor - must not be blank , book.bookId - must not be null";
+        webTestClient.post().uri("/v1/libraryevent")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(objectMapper.writeValueAsString(libraryEvent))
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo(expectedErrorMessage);
+
+        //then
+        verify(reactiveLibraryEventProducer, never()).sendLibraryEvent(any());
+    }
+
+    @Test
+    void putLibraryEvent_4xx() throws Exception {
+
+        //given
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventId(null).book(book(123)).build();
+
+        //expect
+        webTestClient.put().uri("/v1/libraryevent")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(objectMapper.writeValueAsString(libraryEvent))
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("Please pass the LibraryEventId");
+    }
+
+    @Test
+    void postLibraryEvent_rejected() throws Exception {
+
+        //given
+        LibraryEvent libraryEvent = LibraryEvent.builder().libraryEventId(null).book(book(123)).build();
+        when(reactiveLibraryEventProducer.sendLibraryEvent(isA(LibraryEvent.class)))
+                .thenReturn(Mono.error(new LibraryEventRejectedException("Too many library events in flight, retry later", 2)));
+
+        //expect
+        webTestClient.post().uri("/v1/libraryevent")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(objectMapper.writeValueAsString(libraryEvent))
+                .exchange()
+                .expectStatus().isEqualTo(503)
+                .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "2");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void postLibraryEventStream() throws Exception {
+
+        //given
+        String ndjson = objectMapper.writeValueAsString(LibraryEvent.builder().book(book(1)).build()) + "\n"
+                + objectMapper.writeValueAsString(LibraryEvent.builder().book(book(null)).build()) + "\n"
+                + objectMapper.writeValueAsString(LibraryEvent.builder().libraryEventId(3).book(book(3)).build()) + "\n";
+        when(reactiveLibraryEventProducer.sendLibraryEvents(any())).thenAnswer(invocation -> {
+            Flux<Tuple2<LibraryEventResult, LibraryEvent>> items = invocation.getArgument(0);
+            return items.map(item -> {
+                item.getT1().setPartition(0);
+                item.getT1().setOffset((long) item.getT1().getIndex());
+                return item.getT1();
+            });
+        });
+
+        //when
+        List<LibraryEventResult> results = webTestClient.post().uri("/v1/libraryevent/stream")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .bodyValue(ndjson)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(LibraryEventResult.class)
+                .getResponseBody()
+                .collectSortedList(Comparator.comparingInt(LibraryEventResult::getIndex))
+                .block();
+
+        //then
+        assertEquals(3, results.size());
+        assertNull(results.get(0).getError());
+        assertEquals(0L, results.get(0).getOffset());
+        assertEquals("book.bookId - must not be null", results.get(1).getError());
+        assertNull(results.get(1).getOffset());
+        assertEquals(3, results.get(2).getLibraryEventId());
+        assertEquals(2L, results.get(2).getOffset());
+    }
+
+    private static Book book(Integer bookId) {
+        return Book.builder().bookId(bookId).bookAuthor("olgun").bookName("Kafka using Spring Boot").build();
+    }
+}
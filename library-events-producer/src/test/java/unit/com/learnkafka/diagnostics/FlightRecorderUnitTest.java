@@ -0,0 +1,60 @@
+package com.learnkafka.diagnostics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FlightRecorderUnitTest {
+
+    @Test
+    void record_keepsTheMostRecentPerStage() {
+
+        //given
+        FlightRecorder flightRecorder = new FlightRecorder(4);
+
+        //when
+        for (int key = 0; key < 10; key++) {
+            flightRecorder.record("producer.send", key, 0, (long) key, "value-" + key);
+        }
+        flightRecorder.recordFailure("producer.send", 10, null, null, "value-10", new RuntimeException("Exception calling Kafka"));
+        flightRecorder.record("consumer.main", 1, 0, 0L, "value-1");
+
+        //then
+        List<FlightRecord> records = flightRecorder.dump("producer.send");
+        assertEquals(4, records.size());
+        assertEquals(7, records.get(0).getKey());
+        assertEquals(10, records.get(3).getKey());
+        assertTrue(records.get(3).isFailed());
+        assertEquals("Exception calling Kafka", records.get(3).getError());
+        assertEquals(2, flightRecorder.dump().size());
+        assertTrue(flightRecorder.dump("unknown").isEmpty());
+    }
+
+    @Test
+    void record_concurrentWriters() throws InterruptedException {
+
+        //given
+        FlightRecorder flightRecorder = new FlightRecorder(64);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        //when
+        for (int thread = 0; thread < 4; thread++) {
+            executor.submit(() -> {
+                for (int key = 0; key < 10_000; key++) {
+                    flightRecorder.record("consumer.main", key, 0, (long) key, null);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        //then
+        assertEquals(64, flightRecorder.dump("consumer.main").size());
+    }
+}
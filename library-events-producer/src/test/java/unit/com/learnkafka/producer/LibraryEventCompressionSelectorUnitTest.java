@@ -0,0 +1,180 @@
+package com.learnkafka.producer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import org.apache.kafka.common.record.CompressionType;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LibraryEventCompressionSelectorUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void measure_realisticPayloads() throws Exception {
+
+        //given
+        List<byte[]> values = libraryEvents(200);
+
+        //when
+        LibraryEventCompressionSelector.CodecSample none = LibraryEventCompressionSelector.measure(CompressionType.NONE, values, 16384);
+        LibraryEventCompressionSelector.CodecSample lz4 = LibraryEventCompressionSelector.measure(CompressionType.LZ4, values, 16384);
+        LibraryEventCompressionSelector.CodecSample zstd = LibraryEventCompressionSelector.measure(CompressionType.ZSTD, values, 16384);
+
+        //then
+        assertTrue(none.ratio() > 0.9);
+        assertTrue(lz4.ratio() < 0.5, "lz4 ratio " + lz4.ratio());
+        assertTrue(zstd.ratio() < lz4.ratio(), "zstd ratio " + zstd.ratio());
+    }
+
+    @Test
+    void cheapest_pricesCpuAgainstNetwork() {
+
+        //given : 10000 bytes, fast and large, a bit slower and smaller, slow and smallest
+        Map<CompressionType, LibraryEventCompressionSelector.CodecSample> evaluation = Map.of(
+                CompressionType.NONE, new LibraryEventCompressionSelector.CodecSample(10_000, 10_000, 1_000),
+                CompressionType.LZ4, new LibraryEventCompressionSelector.CodecSample(10_000, 4_000, 20_000),
+                CompressionType.ZSTD, new LibraryEventCompressionSelector.CodecSample(10_000, 2_500, 60_000));
+
+        //when
+        CompressionType cpuOnly = LibraryEventCompressionSelector.cheapest(evaluation, 0);
+        CompressionType gigabit = LibraryEventCompressionSelector.cheapest(evaluation, 8);
+        CompressionType slowLink = LibraryEventCompressionSelector.cheapest(evaluation, 100);
+
+        //then
+        // (1000 + 10000 * 8) / 10000 , (20000 + 4000 * 8) / 10000 , (60000 + 2500 * 8) / 10000
+        assertEquals(8.1, evaluation.get(CompressionType.NONE).cost(8), 1e-9);
+        assertEquals(5.2, evaluation.get(CompressionType.LZ4).cost(8), 1e-9);
+        assertEquals(8.0, evaluation.get(CompressionType.ZSTD).cost(8), 1e-9);
+        assertEquals(CompressionType.NONE, cpuOnly);
+        assertEquals(CompressionType.LZ4, gigabit);
+        assertEquals(CompressionType.ZSTD, slowLink);
+    }
+
+    @Test
+    void evaluate_networkBound_switchesToZstd() throws Exception {
+
+        //given : network priced far above cpu
+        LibraryEventCompressionSelector networkBound = selector(10_000);
+        KafkaTemplate<Integer, String> defaultTemplate = networkBound.kafkaTemplate;
+        for (byte[] value : libraryEvents(200)) {
+            networkBound.sample(new String(value, StandardCharsets.UTF_8));
+        }
+
+        //when
+        networkBound.evaluate();
+
+        //then
+        assertEquals(CompressionType.ZSTD, networkBound.selected());
+        assertNotSame(defaultTemplate, networkBound.template(defaultTemplate));
+        // the records sent before the switch are flushed before any goes out with zstd
+        verify(defaultTemplate).flush();
+    }
+
+    @Test
+    void send_duringAFlushThatDoesNotEnd_abandonsTheSwitch() throws Exception {
+
+        //given : the broker does not ack, the flush of the previous producer hangs
+        LibraryEventCompressionSelector networkBound = selector(10_000);
+        KafkaTemplate<Integer, String> defaultTemplate = networkBound.kafkaTemplate;
+        for (byte[] value : libraryEvents(200)) {
+            networkBound.sample(new String(value, StandardCharsets.UTF_8));
+        }
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch acked = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            flushing.countDown();
+            acked.await(10, TimeUnit.SECONDS);
+            return null;
+        }).when(defaultTemplate).flush();
+        Thread evaluation = new Thread(networkBound::evaluate);
+        evaluation.start();
+        flushing.await(10, TimeUnit.SECONDS);
+
+        //when
+        long start = System.nanoTime();
+        List<KafkaTemplate<Integer, String>> usedTemplates = new ArrayList<>();
+        networkBound.send(defaultTemplate, template -> {
+            usedTemplates.add(template);
+            return null;
+        });
+        long waitedMs = (System.nanoTime() - start) / 1_000_000;
+        acked.countDown();
+        evaluation.join(10_000);
+
+        //then : the send waited switch-wait-ms, not the flush, and stayed on the producer in use
+        assertTrue(waitedMs < 2_000, "waited " + waitedMs + " ms");
+        assertEquals(List.of(defaultTemplate), usedTemplates);
+        assertNull(networkBound.selected());
+        assertSame(defaultTemplate, networkBound.template(defaultTemplate));
+    }
+
+    @Test
+    void notAdaptive_keepsTheDefaultTemplate() {
+
+        //given
+        LibraryEventCompressionSelector selector = new LibraryEventCompressionSelector(false, 1, 8, 0.1, 100);
+        KafkaTemplate<Integer, String> kafkaTemplate = mock(KafkaTemplate.class);
+
+        //when
+        selector.sample("{\"libraryEventId\":1}");
+        selector.evaluate();
+
+        //then
+        assertNull(selector.selected());
+        assertSame(kafkaTemplate, selector.template(kafkaTemplate));
+    }
+
+    @SuppressWarnings("unchecked")
+    private LibraryEventCompressionSelector selector(double networkNanosPerByte) {
+        LibraryEventCompressionSelector selector = new LibraryEventCompressionSelector(true, 1, networkNanosPerByte, 0.1, 100);
+        ProducerFactory<Integer, String> producerFactory = mock(ProducerFactory.class);
+        when(producerFactory.copyWithConfigurationOverride(anyMap())).thenReturn(producerFactory);
+        selector.kafkaTemplate = mock(KafkaTemplate.class);
+        when(selector.kafkaTemplate.getProducerFactory()).thenReturn(producerFactory);
+        when(selector.kafkaTemplate.metrics()).thenReturn((Map) Map.of());
+        return selector;
+    }
+
+    private List<byte[]> libraryEvents(int count) throws Exception {
+        String[] authors = {"olgun", "Dilip", "Neha Narkhede", "Gwen Shapira", "Todd Palino"};
+        String[] titles = {"Kafka using Spring Boot", "Kafka: The Definitive Guide", "Designing Event-Driven Systems",
+                "Streaming Systems", "Designing Data-Intensive Applications"};
+        List<byte[]> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Book book = Book.builder()
+                    .bookId(1000 + i)
+                    .bookName(titles[i % titles.length] + " vol " + (i % 7))
+                    .bookAuthor(authors[(i * 3) % authors.length])
+                    .build();
+            LibraryEvent libraryEvent = LibraryEvent.builder()
+                    .libraryEventId(i % 2 == 0 ? null : i)
+                    .libraryEventType(i % 2 == 0 ? LibraryEventType.NEW : LibraryEventType.UPDATE)
+                    .book(book)
+                    .build();
+            values.add(objectMapper.writeValueAsBytes(libraryEvent));
+        }
+        return values;
+    }
+}
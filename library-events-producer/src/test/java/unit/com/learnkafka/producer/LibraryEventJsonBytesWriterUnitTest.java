@@ -0,0 +1,74 @@
+package com.learnkafka.producer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.domain.LibraryEventType;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LibraryEventJsonBytesWriterUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    LibraryEventJsonBytesWriter writer = new LibraryEventJsonBytesWriter(objectMapper);
+
+    LibraryEvent libraryEvent = LibraryEvent.builder()
+            .libraryEventId(123)
+            .libraryEventType(LibraryEventType.NEW)
+            .book(Book.builder()
+                    .bookId(456)
+                    .bookName("Kafka using Spring Boot")
+                    .bookAuthor("olgun")
+                    .build())
+            .build();
+
+    @Test
+    void write_sameBytesAsStringPath() throws JsonProcessingException {
+
+        //when
+        byte[] bytes = writer.write(libraryEvent);
+        byte[] again = writer.write(libraryEvent);
+
+        //then
+        byte[] expected = objectMapper.writeValueAsString(libraryEvent).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, bytes);
+        assertArrayEquals(expected, again);
+    }
+
+    @Test
+    void write_allocatesLessThanStringPath() throws JsonProcessingException {
+
+        var threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int iterations = 20_000;
+
+        //given : warm up both paths
+        for (int i = 0; i < iterations; i++) {
+            writer.write(libraryEvent);
+            objectMapper.writeValueAsString(libraryEvent).getBytes(StandardCharsets.UTF_8);
+        }
+
+        //when
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            objectMapper.writeValueAsString(libraryEvent).getBytes(StandardCharsets.UTF_8);
+        }
+        long stringPath = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+        start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            writer.write(libraryEvent);
+        }
+        long bytesPath = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+        //then
+        assertTrue(bytesPath < stringPath, "allocated bytes per event, string path : " + stringPath + " , byte[] path : " + bytesPath);
+    }
+}
@@ -0,0 +1,133 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.domain.Book;
+import com.learnkafka.domain.LibraryEvent;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.IntegerSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LibraryEventPartitionerUnitTest {
+
+    static final String TOPIC = "library-events";
+    static final int PARTITIONS = 12;
+
+    Cluster cluster = cluster(PARTITIONS);
+
+    IntegerSerializer integerSerializer = new IntegerSerializer();
+
+    @Test
+    void partitionByLibraryEventId() {
+
+        //given
+        LibraryEventPartitioner partitioner = partitioner("libraryEventId");
+        String value = "{\"libraryEventId\":7,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+
+        //when
+        int partition = partitioner.partition(TOPIC, 7, integerSerializer.serialize(TOPIC, 7), value, null, cluster);
+
+        //then
+        assertEquals(LibraryEventPartitioner.partitionFor(7, PARTITIONS), partition);
+    }
+
+    @Test
+    void partitionByLibraryEventId_keylessFallsBackToBookId() {
+
+        //given
+        LibraryEventPartitioner partitioner = partitioner("libraryEventId");
+        String value = "{\"libraryEventId\":null,\"book\":{\"bookId\":123,\"bookName\":\"Kafka using Spring Boot\",\"bookAuthor\":\"olgun\"}}";
+
+        //when
+        int partition = partitioner.partition(TOPIC, null, null, value, null, cluster);
+
+        //then
+        assertEquals(LibraryEventPartitioner.partitionFor(123, PARTITIONS), partition);
+    }
+
+    @Test
+    void partitionByBookId_outOfRangeBookIdIsNoBookId() {
+
+        //given
+        LibraryEventPartitioner partitioner = partitioner("bookId");
+        String value = "{\"libraryEventId\":7,\"book\":{\"bookId\":4294967296,\"bookName\":\"Kafka using Spring Boot\"}}";
+
+        //when
+        int partition = partitioner.partition(TOPIC, 7, integerSerializer.serialize(TOPIC, 7), value, null, cluster);
+
+        //then : routed like a record without a bookId, on its key
+        assertEquals(partitioner.partition(TOPIC, 7, integerSerializer.serialize(TOPIC, 7), "{}", null, cluster), partition);
+    }
+
+    @Test
+    void partitionByBookId_sameBookSamePartition() {
+
+        //given
+        LibraryEventPartitioner partitioner = partitioner("bookId");
+        Book book = Book.builder().bookId(123).bookName("Kafka using Spring Boot").bookAuthor("olgun").build();
+        String json = "{\"libraryEventId\":1,\"libraryEventType\":\"UPDATE\",\"book\":{\"bookName\":\"Kafka using Spring Boot\",\"bookId\":123}}";
+        int expected = LibraryEventPartitioner.partitionFor(123, PARTITIONS);
+
+        //when
+        int fromString = partitioner.partition(TOPIC, 1, integerSerializer.serialize(TOPIC, 1), json, null, cluster);
+        int fromBytes = partitioner.partition(TOPIC, 2, integerSerializer.serialize(TOPIC, 2),
+                json.getBytes(StandardCharsets.UTF_8), null, cluster);
+        int fromEvent = partitioner.partition(TOPIC, 3, integerSerializer.serialize(TOPIC, 3),
+                LibraryEvent.builder().libraryEventId(3).book(book).build(), null, cluster);
+
+        //then
+        assertEquals(expected, fromString);
+        assertEquals(expected, fromBytes);
+        assertEquals(expected, fromEvent);
+    }
+
+    @Test
+    void partitionByBookId_spreadsBooks() {
+
+        //given
+        LibraryEventPartitioner partitioner = partitioner("bookId");
+        int[] counts = new int[PARTITIONS];
+
+        //when
+        for (int bookId = 0; bookId < 1200; bookId++) {
+            Book book = Book.builder().bookId(bookId).build();
+            counts[partitioner.partition(TOPIC, null, null, LibraryEvent.builder().book(book).build(), null, cluster)]++;
+        }
+
+        //then
+        for (int count : counts) {
+            assert count > 50 : "partition count " + count;
+        }
+    }
+
+    @Test
+    void invalidPartitionKey() {
+
+        assertThrows(ConfigException.class, () -> partitioner("isbn"));
+    }
+
+    private LibraryEventPartitioner partitioner(String partitionKey) {
+        LibraryEventPartitioner partitioner = new LibraryEventPartitioner();
+        partitioner.configure(Map.of(LibraryEventPartitioner.PARTITION_KEY_CONFIG, partitionKey));
+        return partitioner;
+    }
+
+    private static Cluster cluster(int partitions) {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitionInfos = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            partitionInfos.add(new PartitionInfo(TOPIC, partition, node, new Node[]{node}, new Node[]{node}));
+        }
+        return new Cluster("library-events-cluster", List.of(node), partitionInfos, Collections.emptySet(), Collections.emptySet());
+    }
+}
@@ -2,26 +2,41 @@ package com.learnkafka.producer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.learnkafka.codec.LibraryEventTraceHeaders;
+import com.learnkafka.codec.LibraryEventWireFormat;
+import com.learnkafka.diagnostics.FlightRecorder;
 import com.learnkafka.domain.Book;
 import com.learnkafka.domain.LibraryEvent;
+import com.learnkafka.exception.LibraryEventSpilledException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.core.KafkaOperations;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.SettableListenableFuture;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -33,6 +48,23 @@ public class LibraryEventProducerUnitTest {
     @Spy
     ObjectMapper objectMapper = new ObjectMapper();
 
+    @Spy
+    LibraryEventSendBudget sendBudget = new LibraryEventSendBudget(10, 0, 1);
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Spy
+    LibraryEventProducerMetrics metrics = new LibraryEventProducerMetrics(meterRegistry);
+
+    @Mock
+    LibraryEventSpillJournal spillJournal;
+
+    @Spy
+    FlightRecorder flightRecorder = new FlightRecorder(16);
+
+    @Spy
+    LibraryEventCompressionSelector compressionSelector = new LibraryEventCompressionSelector(false, 16, 8, 0.1, 100);
+
     @InjectMocks //Bu test edilmekte olan sınıfın bir örneğini oluşturmak için kullanabileceğiniz bir anotasyondur.
     LibraryEventProducer libraryEventProducer;
 
@@ -58,6 +90,29 @@ public class LibraryEventProducerUnitTest {
         //when
         assertThrows(Exception.class, () -> libraryEventProducer.sendLibraryEvent_Approach2(libraryEvent).get());
         //then
+        assertEquals(1, meterRegistry.get(LibraryEventProducerMetrics.RECORDS).tag("result", "failure").counter().count());
+    }
+
+    @Test
+    void sendLibraryEvent_Approach2_failure_spilled() throws JsonProcessingException {
+
+        //given
+        LibraryEvent libraryEvent = LibraryEvent.builder()
+                .libraryEventId(123)
+                .book(Book.builder().bookId(123).bookAuthor("olgun").bookName("Kafka using Spring Boot").build())
+                .build();
+        SettableListenableFuture<SendResult<Integer, String>> future = new SettableListenableFuture<>();
+        future.setException(new TimeoutException("Expiring 1 record(s)"));
+        when(kafkaTemplate.send(isA(ProducerRecord.class))).thenReturn(future);
+        when(spillJournal.isEnabled()).thenReturn(true);
+        when(spillJournal.append(any(), any(), any())).thenReturn(true);
+
+        //when
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> libraryEventProducer.sendLibraryEvent_Approach2(libraryEvent).get());
+
+        //then : the caller learns the event will still be published
+        assertTrue(failure.getCause() instanceof LibraryEventSpilledException);
+        assertTrue(failure.getCause().getCause() instanceof TimeoutException);
     }
 
     @Test
@@ -96,6 +151,66 @@ public class LibraryEventProducerUnitTest {
 
        SendResult<Integer, String> sendResult1 =  listenableFuture.get();
        assert  sendResult1.getRecordMetadata().partition() == 2;
+       assertEquals(1, meterRegistry.get(LibraryEventProducerMetrics.ACK).tag("partition", "2").timer().count());
+       assertEquals(1, meterRegistry.get(LibraryEventProducerMetrics.SERIALIZE).timer().count());
+       assertEquals(1, flightRecorder.dump("producer.send").size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void sendLibraryEvents_Transactional() throws JsonProcessingException, ExecutionException, InterruptedException {
+
+        //given
+        KafkaTemplate<Integer, String> transactionalKafkaTemplate = mock(KafkaTemplate.class);
+        KafkaOperations<Integer, String> operations = mock(KafkaOperations.class);
+        libraryEventProducer.transactionalKafkaTemplate = transactionalKafkaTemplate;
+
+        Book book = Book.builder()
+                .bookId(123)
+                .bookAuthor("olgun")
+                .bookName("Kafka using Spring Boot")
+                .build();
+        List<LibraryEvent> libraryEvents = List.of(
+                LibraryEvent.builder().libraryEventId(1).book(book).build(),
+                LibraryEvent.builder().libraryEventId(2).book(book).build());
+
+        when(operations.send(isA(ProducerRecord.class))).thenAnswer(invocation -> {
+            ProducerRecord<Integer, String> producerRecord = invocation.getArgument(0);
+            SettableListenableFuture<SendResult<Integer, String>> future = new SettableListenableFuture<>();
+            future.set(new SendResult<>(producerRecord, new RecordMetadata(new TopicPartition("library-events", 0),
+                    producerRecord.key(), 0, System.currentTimeMillis(), 1, 2)));
+            return future;
+        });
+        when(transactionalKafkaTemplate.executeInTransaction(any()))
+                .thenAnswer(invocation -> invocation.<KafkaOperations.OperationsCallback<Integer, String, ?>>getArgument(0)
+                        .doInOperations(operations));
+
+        //when
+        List<SendResult<Integer, String>> sendResults = libraryEventProducer.sendLibraryEvents_Transactional(libraryEvents);
+
+        //then
+        verify(operations, times(2)).send(isA(ProducerRecord.class));
+        assertEquals(2, sendResults.size());
+        assertEquals(1, sendResults.get(0).getRecordMetadata().offset());
+        assertEquals(2, sendResults.get(1).getRecordMetadata().offset());
+    }
+
+    @Test
+    void buildProducerRecord_traceHeaders() {
+
+        //given
+        long before = LibraryEventTraceHeaders.nowMicros();
+
+        //when
+        ProducerRecord<Integer, String> first = LibraryEventProducer.buildProducerRecord(123, "{}", "library-events");
+        ProducerRecord<Integer, String> second = LibraryEventProducer.buildProducerRecord(123, "{}", "library-events");
+
+        //then
+        long ingestTimestamp = LibraryEventTraceHeaders.ingestTimestamp(first.headers());
+        assertTrue(ingestTimestamp >= before && ingestTimestamp <= LibraryEventTraceHeaders.nowMicros());
+        assertEquals(36, LibraryEventTraceHeaders.correlationId(first.headers()).length());
+        assertNotEquals(LibraryEventTraceHeaders.correlationId(first.headers()), LibraryEventTraceHeaders.correlationId(second.headers()));
+        assertEquals(LibraryEventWireFormat.JSON, LibraryEventWireFormat.from(first.headers(), null));
     }
 }
 
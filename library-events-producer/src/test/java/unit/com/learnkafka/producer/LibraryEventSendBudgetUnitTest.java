@@ -0,0 +1,56 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.exception.LibraryEventRejectedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LibraryEventSendBudgetUnitTest {
+
+    @Test
+    void admit_rejectsOnceBudgetIsExhausted() {
+
+        //given
+        LibraryEventSendBudget sendBudget = new LibraryEventSendBudget(2, 0, 3);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        sendBudget.bindTo(registry);
+        SettableListenableFuture<String> first = new SettableListenableFuture<>();
+        SettableListenableFuture<String> second = new SettableListenableFuture<>();
+
+        //when
+        sendBudget.admit(() -> first);
+        sendBudget.admit(() -> second);
+        LibraryEventRejectedException rejected = assertThrows(LibraryEventRejectedException.class,
+                () -> sendBudget.admit(SettableListenableFuture::new));
+
+        //then
+        assertEquals(3, rejected.getRetryAfterSeconds());
+        assertEquals(2, registry.get("library.events.producer.in.flight").gauge().value());
+        assertEquals(1, registry.get("library.events.producer.rejected").functionCounter().count());
+    }
+
+    @Test
+    void admit_releasesOnCompletionAndOnFailure() {
+
+        //given
+        LibraryEventSendBudget sendBudget = new LibraryEventSendBudget(2, 0, 1);
+        SettableListenableFuture<String> acked = new SettableListenableFuture<>();
+        SettableListenableFuture<String> failed = new SettableListenableFuture<>();
+        sendBudget.admit(() -> acked);
+        assertThrows(IllegalStateException.class, () -> sendBudget.admit(() -> {
+            throw new IllegalStateException("send failed");
+        }));
+        sendBudget.admit(() -> failed);
+
+        //when
+        acked.set("acked");
+        failed.setException(new RuntimeException("Exception calling Kafka"));
+
+        //then
+        assertEquals(0, sendBudget.inFlight());
+        assertEquals(0, sendBudget.rejected());
+    }
+}
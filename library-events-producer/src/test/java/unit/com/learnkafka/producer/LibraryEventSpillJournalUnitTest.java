@@ -0,0 +1,161 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.codec.LibraryEventWireFormat;
+import org.apache.kafka.common.errors.NotLeaderOrFollowerException;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.kafka.core.KafkaProducerException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LibraryEventSpillJournalUnitTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendPeekCommit_inOrder() throws IOException {
+
+        //given
+        LibraryEventSpillJournal journal = open(4096);
+        journal.append(1, bytes("first"), LibraryEventWireFormat.JSON);
+        journal.append(null, bytes("second"), LibraryEventWireFormat.BINARY);
+        journal.append(3, bytes("third"), LibraryEventWireFormat.JSON);
+
+        //when
+        List<SpilledLibraryEvent> peeked = journal.peek(2);
+        journal.commit(1);
+
+        //then
+        assertEquals(2, peeked.size());
+        assertEquals(1, peeked.get(0).getKey());
+        assertArrayEquals(bytes("first"), peeked.get(0).getValue());
+        assertNull(peeked.get(1).getKey());
+        assertEquals(LibraryEventWireFormat.BINARY, peeked.get(1).getWireFormat());
+        assertEquals(2, journal.depth());
+        assertArrayEquals(bytes("second"), journal.peek(1).get(0).getValue());
+    }
+
+    @Test
+    void reopen_keepsPendingEntries() throws IOException {
+
+        //given
+        LibraryEventSpillJournal journal = open(4096);
+        journal.append(1, bytes("first"), LibraryEventWireFormat.JSON);
+        journal.append(2, bytes("second"), LibraryEventWireFormat.JSON);
+        journal.commit(1);
+        journal.close();
+
+        //when
+        LibraryEventSpillJournal reopened = open(4096);
+
+        //then
+        assertEquals(1, reopened.depth());
+        assertEquals(2, reopened.peek(10).get(0).getKey());
+        reopened.close();
+    }
+
+    @Test
+    void append_compactsAndDropsWhenFull() throws IOException {
+
+        //given : room for 3 entries of 100 bytes
+        int entrySize = Integer.BYTES + 1 + 1 + Integer.BYTES + 100;
+        LibraryEventSpillJournal journal = open(LibraryEventSpillJournal.HEADER_SIZE + 3 * entrySize);
+        byte[] value = new byte[100];
+        journal.append(1, value, LibraryEventWireFormat.JSON);
+        journal.append(2, value, LibraryEventWireFormat.JSON);
+        journal.append(3, value, LibraryEventWireFormat.JSON);
+
+        //when
+        boolean full = journal.append(4, value, LibraryEventWireFormat.JSON);
+        journal.commit(1);
+        boolean compacted = journal.append(5, value, LibraryEventWireFormat.JSON);
+
+        //then
+        assertFalse(full);
+        assertTrue(compacted);
+        List<SpilledLibraryEvent> pending = journal.peek(10);
+        assertEquals(3, pending.size());
+        assertEquals(2, pending.get(0).getKey());
+        assertEquals(5, pending.get(2).getKey());
+    }
+
+    @Test
+    void compact_renamesANewJournalIntoPlace() throws IOException {
+
+        //given
+        int entrySize = Integer.BYTES + 1 + 1 + Integer.BYTES + 100;
+        LibraryEventSpillJournal journal = open(LibraryEventSpillJournal.HEADER_SIZE + 3 * entrySize);
+        byte[] value = new byte[100];
+        journal.append(1, value, LibraryEventWireFormat.JSON);
+        journal.append(2, value, LibraryEventWireFormat.JSON);
+        journal.append(3, value, LibraryEventWireFormat.JSON);
+        journal.commit(2);
+
+        //when
+        journal.append(4, value, LibraryEventWireFormat.JSON);
+        journal.close();
+        LibraryEventSpillJournal reopened = open(LibraryEventSpillJournal.HEADER_SIZE + 3 * entrySize);
+
+        //then
+        assertFalse(Files.exists(directory.resolve("spill.journal.compact")));
+        List<SpilledLibraryEvent> pending = reopened.peek(10);
+        assertEquals(2, pending.size());
+        assertEquals(3, pending.get(0).getKey());
+        assertEquals(4, pending.get(1).getKey());
+        reopened.close();
+    }
+
+    @Test
+    void open_ignoresAnInterruptedCompaction() throws IOException {
+
+        //given : a crash after the new file was written, before the rename
+        LibraryEventSpillJournal journal = open(4096);
+        journal.append(1, bytes("first"), LibraryEventWireFormat.JSON);
+        journal.close();
+        Files.write(directory.resolve("spill.journal.compact"), new byte[4096]);
+
+        //when
+        LibraryEventSpillJournal reopened = open(4096);
+
+        //then
+        assertFalse(Files.exists(directory.resolve("spill.journal.compact")));
+        assertEquals(1, reopened.depth());
+        assertEquals(1, reopened.peek(1).get(0).getKey());
+        reopened.close();
+    }
+
+    @Test
+    void isRetriable() {
+
+        //then
+        assertTrue(LibraryEventSpillJournal.isRetriable(new KafkaProducerException(null, "timeout", new TimeoutException("expired"))));
+        assertTrue(LibraryEventSpillJournal.isRetriable(new NotLeaderOrFollowerException("moved")));
+        assertTrue(LibraryEventSpillJournal.isRetriable(new InterruptedException()));
+        assertFalse(LibraryEventSpillJournal.isRetriable(new KafkaProducerException(null, "too large", new RecordTooLargeException("too large"))));
+        assertFalse(LibraryEventSpillJournal.isRetriable(new SerializationException("bad value")));
+    }
+
+    private LibraryEventSpillJournal open(int capacity) throws IOException {
+        LibraryEventSpillJournal journal = new LibraryEventSpillJournal(true, directory.resolve("spill.journal").toString(), capacity);
+        journal.open();
+        return journal;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
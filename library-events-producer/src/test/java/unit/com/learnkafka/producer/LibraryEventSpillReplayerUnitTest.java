@@ -0,0 +1,70 @@
+package com.learnkafka.producer;
+
+import com.learnkafka.codec.LibraryEventWireFormat;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LibraryEventSpillReplayerUnitTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void replay_dropsRejectedEntries_stopsAtRetriableFailure() throws IOException {
+
+        //given : the second entry is too large, the fourth times out
+        LibraryEventSpillJournal journal = new LibraryEventSpillJournal(true, directory.resolve("spill.journal").toString(), 4096);
+        journal.open();
+        for (int key = 1; key <= 5; key++) {
+            journal.append(key, ("event " + key).getBytes(StandardCharsets.UTF_8), LibraryEventWireFormat.JSON);
+        }
+        LibraryEventSpillReplayer replayer = new LibraryEventSpillReplayer();
+        replayer.spillJournal = journal;
+        replayer.batchSize = 10;
+        replayer.timeoutMs = 1000;
+        replayer.replayKafkaTemplate = mock(KafkaTemplate.class);
+        when(replayer.replayKafkaTemplate.send(any(ProducerRecord.class))).thenReturn(
+                acked(), failed(new RecordTooLargeException("too large")), acked(), failed(new TimeoutException("expired")), acked());
+
+        //when
+        replayer.replay();
+
+        //then
+        List<SpilledLibraryEvent> pending = journal.peek(10);
+        assertEquals(2, pending.size());
+        assertEquals(4, pending.get(0).getKey());
+        assertEquals(5, pending.get(1).getKey());
+        journal.close();
+    }
+
+    private static SettableListenableFuture<SendResult<Integer, byte[]>> acked() {
+        SettableListenableFuture<SendResult<Integer, byte[]>> future = new SettableListenableFuture<>();
+        future.set(new SendResult<>(null, new RecordMetadata(new TopicPartition("library-events", 0), 0, 0, 0, 0, 0)));
+        return future;
+    }
+
+    private static SettableListenableFuture<SendResult<Integer, byte[]>> failed(Exception e) {
+        SettableListenableFuture<SendResult<Integer, byte[]>> future = new SettableListenableFuture<>();
+        future.setException(e);
+        return future;
+    }
+}